@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.Lists;
+import com.proofpoint.discovery.store.Clock;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for announcements: token buckets per announcing node and per remote address, and a
+ * limit on the number of announcements processed concurrently.
+ */
+public class AnnouncementLimiter
+{
+    static final int TOO_MANY_REQUESTS = 429;
+    static final String RETRY_AFTER = "Retry-After";
+
+    private static final long IDLE_SCAN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final Clock clock;
+    private final Limit nodeLimit;
+    private final Limit addressLimit;
+    private final Semaphore concurrency;
+    private final int maxConcurrent;
+
+    private final ConcurrentMap<Id<Node>, TokenBucket> nodeBuckets = new ConcurrentHashMap<Id<Node>, TokenBucket>();
+    private final ConcurrentMap<String, TokenBucket> addressBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final AtomicLong lastIdleScan = new AtomicLong();
+
+    private final AtomicLong throttledNodes = new AtomicLong();
+    private final AtomicLong throttledAddresses = new AtomicLong();
+    private final AtomicLong rejectedConcurrent = new AtomicLong();
+
+    @Inject
+    public AnnouncementLimiter(DiscoveryConfig config, Clock clock)
+    {
+        this.clock = clock;
+        this.nodeLimit = new Limit(config.getAnnouncementNodeRate(), config.getAnnouncementNodeBurst());
+        this.addressLimit = new Limit(config.getAnnouncementAddressRate(), config.getAnnouncementAddressBurst());
+        this.maxConcurrent = config.getMaxConcurrentAnnouncements();
+        this.concurrency = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Admits an announcement from the remote address on behalf of the given nodes. Returns null if it is
+     * admitted, in which case {@link #release()} must be called once it has been processed. Otherwise
+     * returns the response rejecting it; a rejected announcement takes no tokens from any bucket.
+     */
+    public Response acquire(String remoteAddress, Iterable<Id<Node>> nodeIds)
+    {
+        long now = clock.coarseTimeMillis();
+        removeIdleBuckets(now);
+
+        if (!concurrency.tryAcquire()) {
+            rejectedConcurrent.incrementAndGet();
+            return tooManyRequests(TimeUnit.SECONDS.toMillis(1));
+        }
+
+        // tokens taken before a later bucket turns the announcement away are given back
+        List<TokenBucket> addressDebits = Lists.newArrayListWithCapacity(1);
+        List<TokenBucket> nodeDebits = Lists.newArrayList();
+        Response rejection = null;
+
+        if (remoteAddress != null) {
+            long wait = addressLimit.tryAcquire(addressBuckets, remoteAddress, now, addressDebits);
+            if (wait > 0) {
+                throttledAddresses.incrementAndGet();
+                rejection = tooManyRequests(wait);
+            }
+        }
+
+        if (rejection == null) {
+            for (Id<Node> nodeId : nodeIds) {
+                long wait = nodeLimit.tryAcquire(nodeBuckets, nodeId, now, nodeDebits);
+                if (wait > 0) {
+                    throttledNodes.incrementAndGet();
+                    rejection = tooManyRequests(wait);
+                    break;
+                }
+            }
+        }
+
+        if (rejection != null) {
+            addressLimit.refund(addressDebits);
+            nodeLimit.refund(nodeDebits);
+            concurrency.release();
+        }
+        return rejection;
+    }
+
+    public void release()
+    {
+        concurrency.release();
+    }
+
+    @Managed
+    public long getThrottledNodes()
+    {
+        return throttledNodes.get();
+    }
+
+    @Managed
+    public long getThrottledAddresses()
+    {
+        return throttledAddresses.get();
+    }
+
+    @Managed
+    public long getRejectedConcurrent()
+    {
+        return rejectedConcurrent.get();
+    }
+
+    @Managed
+    public int getActiveAnnouncements()
+    {
+        return maxConcurrent - concurrency.availablePermits();
+    }
+
+    @Managed
+    public int getTrackedNodes()
+    {
+        return nodeBuckets.size();
+    }
+
+    @Managed
+    public int getTrackedAddresses()
+    {
+        return addressBuckets.size();
+    }
+
+    private void removeIdleBuckets(long now)
+    {
+        long last = lastIdleScan.get();
+        if (now - last < IDLE_SCAN_INTERVAL || !lastIdleScan.compareAndSet(last, now)) {
+            return;
+        }
+
+        // a full bucket behaves exactly like a missing one, so it need not be kept
+        nodeLimit.removeFull(nodeBuckets, now);
+        addressLimit.removeFull(addressBuckets, now);
+    }
+
+    private static Response tooManyRequests(long waitMillis)
+    {
+        long seconds = Math.max(1, (waitMillis + 999) / 1000);
+        return Response.status(TOO_MANY_REQUESTS)
+                .header(RETRY_AFTER, String.valueOf(seconds))
+                .build();
+    }
+
+    private static class Limit
+    {
+        private final double tokensPerMilli;
+        private final int burst;
+
+        private Limit(double ratePerSecond, int burst)
+        {
+            this.tokensPerMilli = ratePerSecond / 1000;
+            this.burst = burst;
+        }
+
+        /**
+         * Takes a token from the bucket for the key, adding the bucket to debited. Returns 0 if there was
+         * one, otherwise the number of milliseconds until there will be.
+         */
+        private <K> long tryAcquire(ConcurrentMap<K, TokenBucket> buckets, K key, long now, List<TokenBucket> debited)
+        {
+            if (tokensPerMilli <= 0) {
+                return 0;
+            }
+
+            TokenBucket bucket = buckets.get(key);
+            if (bucket == null) {
+                TokenBucket created = new TokenBucket(burst, now);
+                bucket = buckets.putIfAbsent(key, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+
+            long wait = bucket.tryAcquire(now, tokensPerMilli, burst);
+            if (wait == 0) {
+                debited.add(bucket);
+            }
+            return wait;
+        }
+
+        private void refund(List<TokenBucket> debited)
+        {
+            for (TokenBucket bucket : debited) {
+                bucket.refund(burst);
+            }
+        }
+
+        private <K> void removeFull(ConcurrentMap<K, TokenBucket> buckets, long now)
+        {
+            Iterator<TokenBucket> iterator = buckets.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isFull(now, tokensPerMilli, burst)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static class TokenBucket
+    {
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double tokens, long now)
+        {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        private synchronized long tryAcquire(long now, double tokensPerMilli, int burst)
+        {
+            refill(now, tokensPerMilli, burst);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerMilli);
+        }
+
+        private synchronized void refund(int burst)
+        {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        private synchronized boolean isFull(long now, double tokensPerMilli, int burst)
+        {
+            refill(now, tokensPerMilli, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, double tokensPerMilli, int burst)
+        {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMilli);
+                lastRefill = now;
+            }
+        }
+    }
+}
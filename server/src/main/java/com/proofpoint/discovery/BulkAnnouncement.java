@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Map;
+
+/**
+ * Announcements and renewals for many nodes, keyed by node id, sent by an agent announcing on
+ * behalf of the processes it runs. Renewals carry the tag returned when the node last announced.
+ */
+@Immutable
+public class BulkAnnouncement
+{
+    private final String environment;
+    private final Map<String, DynamicAnnouncement> announcements;
+    private final Map<String, String> renewals;
+
+    @JsonCreator
+    public BulkAnnouncement(
+            @JsonProperty("environment") String environment,
+            @JsonProperty("announcements") Map<String, DynamicAnnouncement> announcements,
+            @JsonProperty("renewals") Map<String, String> renewals)
+    {
+        this.environment = environment;
+        this.announcements = announcements == null ? ImmutableMap.<String, DynamicAnnouncement>of() : ImmutableMap.copyOf(announcements);
+        this.renewals = renewals == null ? ImmutableMap.<String, String>of() : ImmutableMap.copyOf(renewals);
+    }
+
+    @JsonProperty
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    @JsonProperty
+    public Map<String, DynamicAnnouncement> getAnnouncements()
+    {
+        return announcements;
+    }
+
+    @JsonProperty
+    public Map<String, String> getRenewals()
+    {
+        return renewals;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BulkAnnouncement{" +
+                "environment='" + environment + '\'' +
+                ", announcements=" + announcements +
+                ", renewals=" + renewals +
+                '}';
+    }
+}
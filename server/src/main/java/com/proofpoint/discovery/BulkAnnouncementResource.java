@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
+import com.proofpoint.discovery.monitor.ForMonitor;
+import com.proofpoint.node.NodeInfo;
+import com.sun.jersey.spi.container.ResourceFilters;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Iterables.concat;
+import static com.proofpoint.discovery.DynamicAnnouncementResource.withDefaultLocation;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTBULK;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
+import static java.lang.String.format;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+
+@Path("/v1/announcement")
+@ResourceFilters({DiscoveryMonitorResourceFilter.class, GzipResourceFilter.class})
+public class BulkAnnouncementResource
+{
+    private final NodeInfo nodeInfo;
+    private final DynamicStore dynamicStore;
+    private final AnnouncementLimiter limiter;
+
+    @Inject
+    public BulkAnnouncementResource(DynamicStore dynamicStore, NodeInfo nodeInfo, AnnouncementLimiter limiter)
+    {
+        this.dynamicStore = dynamicStore;
+        this.nodeInfo = nodeInfo;
+        this.limiter = limiter;
+    }
+
+    @POST
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = DYNAMICANNOUNCEMENTBULK, successCodes = {200})
+    public Response post(BulkAnnouncement bulkAnnouncement, @Context HttpServletRequest request)
+    {
+        if (bulkAnnouncement == null) {
+            return Response.status(BAD_REQUEST)
+                    .entity("Announcements are required")
+                    .build();
+        }
+        if (!nodeInfo.getEnvironment().equals(bulkAnnouncement.getEnvironment())) {
+            return Response.status(BAD_REQUEST)
+                    .entity(format("Environment mismatch. Expected: %s, Provided: %s", nodeInfo.getEnvironment(), bulkAnnouncement.getEnvironment()))
+                    .build();
+        }
+
+        // validate everything before applying anything, so a bad request has no effect
+        Map<Id<Node>, DynamicAnnouncement> announcements = Maps.newHashMap();
+        for (Map.Entry<String, DynamicAnnouncement> entry : bulkAnnouncement.getAnnouncements().entrySet()) {
+            Id<Node> nodeId = parseNodeId(entry.getKey());
+            DynamicAnnouncement announcement = entry.getValue();
+            if (nodeId == null || announcement == null || announcement.getServiceAnnouncements() == null) {
+                return Response.status(BAD_REQUEST)
+                        .entity(format("Invalid announcement for node %s", entry.getKey()))
+                        .build();
+            }
+            if (!nodeInfo.getEnvironment().equals(announcement.getEnvironment())) {
+                return Response.status(BAD_REQUEST)
+                        .entity(format("Environment mismatch for node %s. Expected: %s, Provided: %s", nodeId, nodeInfo.getEnvironment(), announcement.getEnvironment()))
+                        .build();
+            }
+            announcements.put(nodeId, withDefaultLocation(nodeId, announcement));
+        }
+
+        Map<Id<Node>, String> renewals = Maps.newHashMap();
+        for (Map.Entry<String, String> entry : bulkAnnouncement.getRenewals().entrySet()) {
+            Id<Node> nodeId = parseNodeId(entry.getKey());
+            if (nodeId == null || entry.getValue() == null) {
+                return Response.status(BAD_REQUEST)
+                        .entity(format("Invalid renewal for node %s", entry.getKey()))
+                        .build();
+            }
+            // a node announced in the same request is already current
+            if (!announcements.containsKey(nodeId)) {
+                renewals.put(nodeId, entry.getValue());
+            }
+        }
+
+        // every node in the request is charged, so batching does not get around the per-node limits
+        Response rejection = limiter.acquire(request.getRemoteAddr(), concat(announcements.keySet(), renewals.keySet()));
+        if (rejection != null) {
+            return rejection;
+        }
+        Map<Id<Node>, String> entityTags;
+        Set<Id<Node>> failedRenewals;
+        try {
+            entityTags = announcements.isEmpty() ? ImmutableMap.<Id<Node>, String>of() : dynamicStore.putAll(announcements);
+            failedRenewals = renewals.isEmpty() ? ImmutableSet.<Id<Node>>of() : dynamicStore.renewAll(renewals);
+        }
+        finally {
+            limiter.release();
+        }
+
+        Map<String, String> entityTagsByNode = Maps.newHashMap();
+        for (Map.Entry<Id<Node>, String> entry : entityTags.entrySet()) {
+            entityTagsByNode.put(entry.getKey().toString(), entry.getValue());
+        }
+        ImmutableSet.Builder<String> failedRenewalsByNode = ImmutableSet.builder();
+        for (Id<Node> nodeId : failedRenewals) {
+            failedRenewalsByNode.add(nodeId.toString());
+        }
+
+        return Response.ok(new BulkAnnouncementResult(entityTagsByNode, failedRenewalsByNode.build())).build();
+    }
+
+    private static Id<Node> parseNodeId(String nodeId)
+    {
+        try {
+            return Id.valueOf(nodeId);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The tag of each announcement in a {@link BulkAnnouncement}, and the nodes whose renewal failed
+ * because their announcement changed or expired. Those nodes have to announce again.
+ */
+@Immutable
+public class BulkAnnouncementResult
+{
+    private final Map<String, String> entityTags;
+    private final Set<String> failedRenewals;
+
+    public BulkAnnouncementResult(Map<String, String> entityTags, Set<String> failedRenewals)
+    {
+        Preconditions.checkNotNull(entityTags, "entityTags is null");
+        Preconditions.checkNotNull(failedRenewals, "failedRenewals is null");
+
+        this.entityTags = ImmutableMap.copyOf(entityTags);
+        this.failedRenewals = ImmutableSet.copyOf(failedRenewals);
+    }
+
+    @JsonProperty
+    public Map<String, String> getEntityTags()
+    {
+        return entityTags;
+    }
+
+    @JsonProperty
+    public Set<String> getFailedRenewals()
+    {
+        return failedRenewals;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BulkAnnouncementResult{" +
+                "entityTags=" + entityTags +
+                ", failedRenewals=" + failedRenewals +
+                '}';
+    }
+}
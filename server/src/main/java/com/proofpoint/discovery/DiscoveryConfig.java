@@ -18,12 +18,23 @@ package com.proofpoint.discovery;
 import com.proofpoint.configuration.Config;
 import com.proofpoint.units.Duration;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.concurrent.TimeUnit;
 
 public class DiscoveryConfig
 {
     private Duration maxAge = new Duration(30, TimeUnit.SECONDS);
+    private Duration maxWatchWait = new Duration(5, TimeUnit.MINUTES);
+    private int maxChangeLogSize = 10000;
+    private int maxSubscriptionBuffer = 1000;
+    private Duration subscriptionWriteTimeout = new Duration(30, TimeUnit.SECONDS);
+    // announcement rates are per second, 0 disables the limit
+    private double announcementNodeRate = 1;
+    private int announcementNodeBurst = 10;
+    private double announcementAddressRate = 100;
+    private int announcementAddressBurst = 1000;
+    private int maxConcurrentAnnouncements = 64;
 
     @NotNull
     public Duration getMaxAge()
@@ -37,4 +48,119 @@ public class DiscoveryConfig
         this.maxAge = maxAge;
         return this;
     }
+
+    @NotNull
+    public Duration getMaxWatchWait()
+    {
+        return maxWatchWait;
+    }
+
+    @Config("discovery.max-watch-wait")
+    public DiscoveryConfig setMaxWatchWait(Duration maxWatchWait)
+    {
+        this.maxWatchWait = maxWatchWait;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxChangeLogSize()
+    {
+        return maxChangeLogSize;
+    }
+
+    @Config("discovery.max-change-log-size")
+    public DiscoveryConfig setMaxChangeLogSize(int maxChangeLogSize)
+    {
+        this.maxChangeLogSize = maxChangeLogSize;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxSubscriptionBuffer()
+    {
+        return maxSubscriptionBuffer;
+    }
+
+    @Config("discovery.max-subscription-buffer")
+    public DiscoveryConfig setMaxSubscriptionBuffer(int maxSubscriptionBuffer)
+    {
+        this.maxSubscriptionBuffer = maxSubscriptionBuffer;
+        return this;
+    }
+
+    @NotNull
+    public Duration getSubscriptionWriteTimeout()
+    {
+        return subscriptionWriteTimeout;
+    }
+
+    @Config("discovery.subscription-write-timeout")
+    public DiscoveryConfig setSubscriptionWriteTimeout(Duration subscriptionWriteTimeout)
+    {
+        this.subscriptionWriteTimeout = subscriptionWriteTimeout;
+        return this;
+    }
+
+    public double getAnnouncementNodeRate()
+    {
+        return announcementNodeRate;
+    }
+
+    @Config("discovery.announcement.node-rate")
+    public DiscoveryConfig setAnnouncementNodeRate(double announcementNodeRate)
+    {
+        this.announcementNodeRate = announcementNodeRate;
+        return this;
+    }
+
+    @Min(1)
+    public int getAnnouncementNodeBurst()
+    {
+        return announcementNodeBurst;
+    }
+
+    @Config("discovery.announcement.node-burst")
+    public DiscoveryConfig setAnnouncementNodeBurst(int announcementNodeBurst)
+    {
+        this.announcementNodeBurst = announcementNodeBurst;
+        return this;
+    }
+
+    public double getAnnouncementAddressRate()
+    {
+        return announcementAddressRate;
+    }
+
+    @Config("discovery.announcement.address-rate")
+    public DiscoveryConfig setAnnouncementAddressRate(double announcementAddressRate)
+    {
+        this.announcementAddressRate = announcementAddressRate;
+        return this;
+    }
+
+    @Min(1)
+    public int getAnnouncementAddressBurst()
+    {
+        return announcementAddressBurst;
+    }
+
+    @Config("discovery.announcement.address-burst")
+    public DiscoveryConfig setAnnouncementAddressBurst(int announcementAddressBurst)
+    {
+        this.announcementAddressBurst = announcementAddressBurst;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentAnnouncements()
+    {
+        return maxConcurrentAnnouncements;
+    }
+
+    @Config("discovery.announcement.max-concurrent")
+    public DiscoveryConfig setMaxConcurrentAnnouncements(int maxConcurrentAnnouncements)
+    {
+        this.maxConcurrentAnnouncements = maxConcurrentAnnouncements;
+        return this;
+    }
 }
@@ -18,24 +18,40 @@ package com.proofpoint.discovery;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Binder;
 import com.google.inject.Module;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceInventory;
 import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.discovery.store.Clock;
+import com.proofpoint.discovery.store.ConflictResolver;
 import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.LocalStore;
+import com.proofpoint.discovery.store.LogStore;
+import com.proofpoint.discovery.store.LogStoreConfig;
+import com.proofpoint.discovery.store.OffHeapStore;
+import com.proofpoint.discovery.store.OffHeapStoreConfig;
 import com.proofpoint.discovery.store.PersistentStore;
 import com.proofpoint.discovery.store.PersistentStoreConfig;
 import com.proofpoint.discovery.store.ReplicatedStoreModule;
+import com.proofpoint.discovery.store.StoreCheckpointConfig;
+import com.proofpoint.discovery.store.StoreCheckpointer;
 import com.proofpoint.node.NodeInfo;
 import org.weakref.jmx.MBeanExporter;
 
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.management.MBeanServer;
 import java.util.List;
 
 import static com.proofpoint.configuration.ConfigurationModule.bindConfig;
 import static com.proofpoint.discovery.client.DiscoveryBinder.discoveryBinder;
+import static org.weakref.jmx.ObjectNames.generatedNameOf;
+import static org.weakref.jmx.guice.MBeanModule.newExporter;
 
 public class DiscoveryServerModule
         implements Module
@@ -44,19 +60,37 @@ public class DiscoveryServerModule
     {
         bindConfig(binder).to(DiscoveryConfig.class);
         binder.bind(ServiceResource.class).in(Scopes.SINGLETON);
+        binder.bind(GzipResourceFilter.class).in(Scopes.SINGLETON);
+        binder.bind(ServiceChangeLog.class).in(Scopes.SINGLETON);
+        binder.bind(ServiceChangeResource.class).in(Scopes.SINGLETON);
+        binder.bind(ServiceSubscriptions.class).in(Scopes.SINGLETON);
+        binder.bind(ServiceSubscriptionResource.class).in(Scopes.SINGLETON);
+        newExporter(binder).export(ServiceSubscriptions.class).withGeneratedName();
 
         discoveryBinder(binder).bindHttpAnnouncement("discovery");
 
         // dynamic announcements
         binder.bind(DynamicAnnouncementResource.class).in(Scopes.SINGLETON);
+        binder.bind(BulkAnnouncementResource.class).in(Scopes.SINGLETON);
+        binder.bind(AnnouncementLimiter.class).in(Scopes.SINGLETON);
+        newExporter(binder).export(AnnouncementLimiter.class).withGeneratedName();
         binder.bind(DynamicStore.class).to(ReplicatedDynamicStore.class).in(Scopes.SINGLETON);
-        binder.install(new ReplicatedStoreModule("dynamic", ForDynamicStore.class, InMemoryStore.class));
+        binder.install(new ReplicatedStoreModule("dynamic", ForDynamicStore.class));
+        binder.bind(StoreCheckpointer.class).toProvider(new StoreCheckpointerProvider()).in(Scopes.SINGLETON);
+        newExporter(binder).export(StoreCheckpointer.class).as(generatedNameOf(StoreCheckpointer.class, Names.named("dynamic")));
+        bindConfig(binder).prefixedWith("dynamic").to(OffHeapStoreConfig.class);
+        bindConfig(binder).prefixedWith("dynamic").to(StoreCheckpointConfig.class);
 
         // static announcements
         binder.bind(StaticAnnouncementResource.class).in(Scopes.SINGLETON);
         binder.bind(StaticStore.class).to(ReplicatedStaticStore.class).in(Scopes.SINGLETON);
-        binder.install(new ReplicatedStoreModule("static", ForStaticStore.class, PersistentStore.class));
+        binder.install(new ReplicatedStoreModule("static", ForStaticStore.class));
+        // unscoped, so that only the store the configuration selects is opened
+        binder.bind(LogStore.class);
+        binder.bind(PersistentStore.class);
+        newExporter(binder).export(LocalStore.class).annotatedWith(Names.named("static")).as(generatedNameOf(LocalStore.class, Names.named("static")));
         bindConfig(binder).prefixedWith("static").to(PersistentStoreConfig.class);
+        bindConfig(binder).prefixedWith("static").to(LogStoreConfig.class);
     }
 
     @Singleton
@@ -92,4 +126,85 @@ public class DiscoveryServerModule
             }
         };
     }
+
+    @Singleton
+    @Provides
+    @Named("dynamic-memory")
+    public LocalStore getDynamicMemoryStore(OffHeapStoreConfig offHeapStoreConfig, ConflictResolver resolver)
+    {
+        if (offHeapStoreConfig.isEnabled()) {
+            return new OffHeapStore(resolver, offHeapStoreConfig);
+        }
+        return new InMemoryStore(resolver);
+    }
+
+    @Singleton
+    @Provides
+    @Named("dynamic")
+    public LocalStore getDynamicLocalStore(@Named("dynamic-memory") LocalStore store, StoreCheckpointer checkpointer)
+    {
+        // the checkpointer loads the store when it is created, so that the store's index and expirations pick up the entries
+        return store;
+    }
+
+    @Singleton
+    @Provides
+    @Named("static")
+    public LocalStore getStaticLocalStore(LogStoreConfig logStoreConfig, Provider<LogStore> logStoreProvider, Provider<PersistentStore> persistentStoreProvider)
+    {
+        if (logStoreConfig.isEnabled()) {
+            return logStoreProvider.get();
+        }
+        return persistentStoreProvider.get();
+    }
+
+    private static class StoreCheckpointerProvider
+            implements Provider<StoreCheckpointer>
+    {
+        private LocalStore store;
+        private StoreCheckpointConfig checkpointConfig;
+        private Clock clock;
+
+        private StoreCheckpointer checkpointer;
+
+        @Override
+        public synchronized StoreCheckpointer get()
+        {
+            if (checkpointer == null) {
+                checkpointer = new StoreCheckpointer("dynamic", store, checkpointConfig, clock);
+                if (checkpointConfig.isEnabled()) {
+                    checkpointer.load();
+                    checkpointer.start();
+                }
+            }
+
+            return checkpointer;
+        }
+
+        @PreDestroy
+        public synchronized void shutdown()
+        {
+            if (checkpointer != null && checkpointConfig.isEnabled()) {
+                checkpointer.shutdown();
+            }
+        }
+
+        @Inject
+        public void setStore(@Named("dynamic-memory") LocalStore store)
+        {
+            this.store = store;
+        }
+
+        @Inject
+        public void setCheckpointConfig(StoreCheckpointConfig checkpointConfig)
+        {
+            this.checkpointConfig = checkpointConfig;
+        }
+
+        @Inject
+        public void setClock(Clock clock)
+        {
+            this.clock = clock;
+        }
+    }
 }
@@ -16,45 +16,56 @@
 package com.proofpoint.discovery;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
 import com.proofpoint.discovery.monitor.ForMonitor;
 import com.proofpoint.node.NodeInfo;
 import com.sun.jersey.spi.container.ResourceFilters;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENT;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTDELETE;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTRENEW;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
 import static java.lang.String.format;
 import static javax.ws.rs.core.Response.Status.ACCEPTED;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.PRECONDITION_FAILED;
 
 @Path("/v1/announcement/{node_id}")
-@ResourceFilters(DiscoveryMonitorResourceFilter.class)
+@ResourceFilters({DiscoveryMonitorResourceFilter.class, GzipResourceFilter.class})
 public class DynamicAnnouncementResource
 {
     private final NodeInfo nodeInfo;
     private final DynamicStore dynamicStore;
+    private final AnnouncementLimiter limiter;
 
     @Inject
-    public DynamicAnnouncementResource(DynamicStore dynamicStore, NodeInfo nodeInfo)
+    public DynamicAnnouncementResource(DynamicStore dynamicStore, NodeInfo nodeInfo, AnnouncementLimiter limiter)
     {
         this.dynamicStore = dynamicStore;
         this.nodeInfo = nodeInfo;
+        this.limiter = limiter;
     }
 
     @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
     @ForMonitor(type = DYNAMICANNOUNCEMENT, successCodes = {202})
-    public Response put(DynamicAnnouncement announcement, @PathParam("node_id") final Id<Node> nodeId)
+    public Response put(DynamicAnnouncement announcement, @PathParam("node_id") final Id<Node> nodeId, @Context HttpServletRequest request)
     {
         if (!nodeInfo.getEnvironment().equals(announcement.getEnvironment())) {
             return Response.status(BAD_REQUEST)
@@ -62,15 +73,66 @@ public class DynamicAnnouncementResource
                     .build();
         }
 
-        String location = Objects.firstNonNull(announcement.getLocation(), "/somewhere/" + nodeId.toString());
+        Response rejection = limiter.acquire(request.getRemoteAddr(), ImmutableList.of(nodeId));
+        if (rejection != null) {
+            return rejection;
+        }
+        String entityTag;
+        try {
+            entityTag = dynamicStore.put(nodeId, withDefaultLocation(nodeId, announcement));
+        }
+        finally {
+            limiter.release();
+        }
 
-        DynamicAnnouncement announcementWithLocation = DynamicAnnouncement.copyOf(announcement)
-                .setLocation(location)
+        // lets the node renew this announcement later without sending it again
+        return Response.status(ACCEPTED)
+                .tag(entityTag)
                 .build();
+    }
+
+    /**
+     * Extends the node's announcement if it is still the one identified by the If-Match tag, as
+     * returned when it was put. Answers 412 if it is not, in which case the node has to put it again.
+     */
+    @PUT
+    @Path("lease")
+    @ForMonitor(type = DYNAMICANNOUNCEMENTRENEW, successCodes = {204})
+    public Response renew(@PathParam("node_id") final Id<Node> nodeId, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, @Context HttpServletRequest request)
+    {
+        if (ifMatch == null) {
+            return Response.status(BAD_REQUEST)
+                    .entity("If-Match is required")
+                    .build();
+        }
+
+        EntityTag entityTag;
+        try {
+            entityTag = EntityTag.valueOf(ifMatch);
+        }
+        catch (IllegalArgumentException e) {
+            return Response.status(BAD_REQUEST)
+                    .entity(format("Invalid If-Match: %s", ifMatch))
+                    .build();
+        }
+
+        Response rejection = limiter.acquire(request.getRemoteAddr(), ImmutableList.of(nodeId));
+        if (rejection != null) {
+            return rejection;
+        }
+        boolean renewed;
+        try {
+            renewed = dynamicStore.renew(nodeId, entityTag.getValue());
+        }
+        finally {
+            limiter.release();
+        }
 
-        dynamicStore.put(nodeId, announcementWithLocation);
+        if (!renewed) {
+            return Response.status(PRECONDITION_FAILED).build();
+        }
 
-        return Response.status(ACCEPTED).build();
+        return Response.noContent().build();
     }
 
     @DELETE
@@ -83,4 +145,13 @@ public class DynamicAnnouncementResource
 
         return Response.noContent().build();
     }
+
+    static DynamicAnnouncement withDefaultLocation(Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
+        String location = Objects.firstNonNull(announcement.getLocation(), "/somewhere/" + nodeId.toString());
+
+        return DynamicAnnouncement.copyOf(announcement)
+                .setLocation(location)
+                .build();
+    }
 }
@@ -15,14 +15,55 @@
  */
 package com.proofpoint.discovery;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface DynamicStore
 {
-    boolean put(Id<Node> nodeId, DynamicAnnouncement announcement);
+    /**
+     * Puts the announcement of the node. Returns the tag identifying it, as returned by {@link #getEntityTag}.
+     */
+    String put(Id<Node> nodeId, DynamicAnnouncement announcement);
     boolean delete(Id<Node> nodeId);
 
+    /**
+     * Puts the announcements of many nodes as one batch. Returns the tag identifying each node's
+     * announcement, as returned by {@link #getEntityTag}.
+     */
+    Map<Id<Node>, String> putAll(Map<Id<Node>, DynamicAnnouncement> announcements);
+
+    /**
+     * Renews the announcements of many nodes as one batch, like {@link #renew}. Returns the nodes
+     * whose announcement was not the one identified by their tag.
+     */
+    Set<Id<Node>> renewAll(Map<Id<Node>, String> entityTags);
+
+    /**
+     * Returns a tag identifying the current announcement of the node, or null if it has none.
+     */
+    String getEntityTag(Id<Node> nodeId);
+
+    /**
+     * Extends the current announcement of the node by another max age if it is the one identified
+     * by entityTag. Returns false if it is not, in which case the node has to announce again.
+     */
+    boolean renew(Id<Node> nodeId, String entityTag);
+
     Set<Service> getAll();
+
+    /**
+     * Returns a weakly consistent view of all services, for writing out the catalog without copying it.
+     */
+    Iterable<Service> iterateAll();
+
     Set<Service> get(String type);
     Set<Service> get(String type, String pool);
+
+    /**
+     * Returns the services selected by each query, all answered from the same state of the store.
+     */
+    List<Set<Service>> get(List<ServiceQuery> queries);
+
+    void addListener(ServiceChangeListener listener);
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.sun.jersey.api.container.filter.GZIPContentEncodingFilter;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ResourceFilter;
+
+/**
+ * Decodes gzip request bodies and gzips responses for clients that accept it.
+ */
+public class GzipResourceFilter
+        implements ResourceFilter
+{
+    private final GZIPContentEncodingFilter filter = new GZIPContentEncodingFilter();
+
+    @Override
+    public ContainerRequestFilter getRequestFilter()
+    {
+        return filter;
+    }
+
+    @Override
+    public ContainerResponseFilter getResponseFilter()
+    {
+        return filter;
+    }
+}
@@ -15,25 +15,30 @@
  */
 package com.proofpoint.discovery;
 
-import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.proofpoint.discovery.store.Clock;
+import com.proofpoint.discovery.store.CloseableIterable;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.Lease;
+import com.proofpoint.discovery.store.StoreListener;
+import com.proofpoint.discovery.store.Version;
 import com.proofpoint.json.JsonCodec;
 import com.proofpoint.units.Duration;
 
 import javax.inject.Inject;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.google.common.base.Charsets.UTF_8;
-import static com.google.common.base.Predicates.and;
+import static com.google.common.base.Predicates.in;
 import static com.google.common.collect.ImmutableList.copyOf;
-import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.transform;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
-import static com.proofpoint.discovery.Service.matchesPool;
-import static com.proofpoint.discovery.Service.matchesType;
 
 public class ReplicatedDynamicStore
     implements DynamicStore
@@ -42,25 +47,114 @@ public class ReplicatedDynamicStore
 
     private final DistributedStore store;
     private final Duration maxAge;
+    private final Clock clock;
+    // expired announcements are dropped from the index when the store expires and deletes them
+    private final ServiceIndex index = new ServiceIndex();
 
     @Inject
-    public ReplicatedDynamicStore(@ForDynamicStore DistributedStore store, DiscoveryConfig config)
+    public ReplicatedDynamicStore(@ForDynamicStore DistributedStore store, DiscoveryConfig config, Clock clock)
     {
         this.store = store;
         this.maxAge = config.getMaxAge();
+        this.clock = clock;
+
+        // register before loading so that no concurrent write is missed; applying an entry twice is harmless
+        store.addListener(new IndexUpdater());
+        CloseableIterable<Entry> entries = store.getLocalStore().getAll();
+        try {
+            for (Entry entry : entries) {
+                index.put(entry, decode(entry));
+            }
+        }
+        finally {
+            entries.close();
+        }
     }
 
     @Override
-    public boolean put(Id<Node> nodeId, DynamicAnnouncement announcement)
+    public String put(Id<Node> nodeId, DynamicAnnouncement announcement)
     {
-        List<Service> services = copyOf(transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
-
         byte[] key = nodeId.toString().getBytes(UTF_8);
-        byte[] value = codec.toJson(services).getBytes(UTF_8);
+        byte[] value = encode(nodeId, announcement);
+        byte[] digest = Lease.digest(value);
 
-        store.put(key, value, maxAge);
+        // most announcements are heartbeats repeating the current one, which only need to extend its lease
+        if (!store.renew(key, digest, maxAge)) {
+            store.put(key, value, maxAge);
+        }
 
-        return true; // TODO
+        return toHex(digest);
+    }
+
+    @Override
+    public Map<Id<Node>, String> putAll(Map<Id<Node>, DynamicAnnouncement> announcements)
+    {
+        Map<ByteBuffer, byte[]> values = Maps.newHashMap();
+        Map<ByteBuffer, byte[]> digests = Maps.newHashMap();
+        ImmutableMap.Builder<Id<Node>, String> entityTags = ImmutableMap.builder();
+        for (Map.Entry<Id<Node>, DynamicAnnouncement> entry : announcements.entrySet()) {
+            ByteBuffer key = ByteBuffer.wrap(entry.getKey().toString().getBytes(UTF_8));
+            byte[] value = encode(entry.getKey(), entry.getValue());
+            byte[] digest = Lease.digest(value);
+
+            values.put(key, value);
+            digests.put(key, digest);
+            entityTags.put(entry.getKey(), toHex(digest));
+        }
+
+        // as with single announcements, only the ones that changed are put in full
+        Set<ByteBuffer> changed = store.renewAll(digests, maxAge);
+        if (!changed.isEmpty()) {
+            store.putAll(Maps.filterKeys(values, in(changed)), maxAge);
+        }
+
+        return entityTags.build();
+    }
+
+    @Override
+    public Set<Id<Node>> renewAll(Map<Id<Node>, String> entityTags)
+    {
+        ImmutableSet.Builder<Id<Node>> failed = ImmutableSet.builder();
+        Map<ByteBuffer, Id<Node>> nodeIds = Maps.newHashMap();
+        Map<ByteBuffer, byte[]> digests = Maps.newHashMap();
+        for (Map.Entry<Id<Node>, String> entry : entityTags.entrySet()) {
+            byte[] digest = fromHex(entry.getValue());
+            if (digest == null) {
+                failed.add(entry.getKey());
+                continue;
+            }
+
+            ByteBuffer key = ByteBuffer.wrap(entry.getKey().toString().getBytes(UTF_8));
+            nodeIds.put(key, entry.getKey());
+            digests.put(key, digest);
+        }
+
+        for (ByteBuffer key : store.renewAll(digests, maxAge)) {
+            failed.add(nodeIds.get(key));
+        }
+        return failed.build();
+    }
+
+    @Override
+    public String getEntityTag(Id<Node> nodeId)
+    {
+        byte[] value = store.get(nodeId.toString().getBytes(UTF_8));
+        if (value == null) {
+            return null;
+        }
+
+        return toHex(Lease.digest(value));
+    }
+
+    @Override
+    public boolean renew(Id<Node> nodeId, String entityTag)
+    {
+        byte[] digest = fromHex(entityTag);
+        if (digest == null) {
+            return false;
+        }
+
+        return store.renew(nodeId.toString().getBytes(UTF_8), digest, maxAge);
     }
 
     @Override
@@ -76,23 +170,100 @@ public class ReplicatedDynamicStore
     @Override
     public Set<Service> getAll()
     {
-        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
-        for (Entry entry : store.getAll()) {
-            builder.addAll(codec.fromJson(new String(entry.getValue(), Charsets.UTF_8)));
-        }
+        return index.getAll(clock.coarseTimeMillis());
+    }
 
-        return builder.build();
+    @Override
+    public Iterable<Service> iterateAll()
+    {
+        return index.iterateAll(clock.coarseTimeMillis());
     }
 
     @Override
     public Set<Service> get(String type)
     {
-        return ImmutableSet.copyOf(filter(getAll(), matchesType(type)));
+        return index.get(type, clock.coarseTimeMillis());
     }
 
     @Override
     public Set<Service> get(String type, String pool)
     {
-        return ImmutableSet.copyOf(filter(getAll(), and(matchesType(type), matchesPool(pool))));
+        return index.get(type, pool, clock.coarseTimeMillis());
+    }
+
+    @Override
+    public List<Set<Service>> get(List<ServiceQuery> queries)
+    {
+        return index.get(queries, clock.coarseTimeMillis());
+    }
+
+    @Override
+    public void addListener(ServiceChangeListener listener)
+    {
+        index.addListener(listener);
+    }
+
+    private byte[] encode(Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
+        List<Service> services = copyOf(transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
+
+        return codec.toJson(services).getBytes(UTF_8);
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] fromHex(String hex)
+    {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private List<Service> decode(Entry entry)
+    {
+        if (entry.getValue() == null) {
+            return null;
+        }
+
+        return codec.fromJson(new String(entry.getValue(), UTF_8));
+    }
+
+    private class IndexUpdater
+            implements StoreListener
+    {
+        @Override
+        public void entryPut(Entry entry)
+        {
+            // replication re-delivers entries we already have, and renewals repeat the indexed value,
+            // so only pay for decoding the new ones
+            if (index.isNewer(entry) && !index.renew(entry)) {
+                index.put(entry, decode(entry));
+            }
+        }
+
+        @Override
+        public void entryDeleted(byte[] key, Version version)
+        {
+            index.delete(key, version);
+        }
     }
 }
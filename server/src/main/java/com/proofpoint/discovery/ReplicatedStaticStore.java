@@ -15,36 +15,43 @@
  */
 package com.proofpoint.discovery;
 
-import com.google.common.base.Charsets;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.store.CloseableIterable;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.StoreListener;
+import com.proofpoint.discovery.store.Version;
 import com.proofpoint.json.JsonCodec;
-import com.proofpoint.units.Duration;
 
 import javax.inject.Inject;
 import java.util.List;
 import java.util.Set;
 
 import static com.google.common.base.Charsets.UTF_8;
-import static com.google.common.base.Predicates.and;
-import static com.google.common.collect.ImmutableList.copyOf;
-import static com.google.common.collect.Iterables.filter;
-import static com.google.common.collect.Iterables.transform;
-import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
-import static com.proofpoint.discovery.Service.matchesPool;
-import static com.proofpoint.discovery.Service.matchesType;
 
 public class ReplicatedStaticStore
     implements StaticStore
 {
     private final JsonCodec<Service> codec = JsonCodec.jsonCodec(Service.class);
     private final DistributedStore store;
+    private final ServiceIndex index = new ServiceIndex();
 
     @Inject
     public ReplicatedStaticStore(@ForStaticStore DistributedStore store)
     {
         this.store = store;
+
+        // register before loading so that no concurrent write is missed; applying an entry twice is harmless
+        store.addListener(new IndexUpdater());
+        CloseableIterable<Entry> entries = store.getLocalStore().getAll();
+        try {
+            for (Entry entry : entries) {
+                index.put(entry, decode(entry));
+            }
+        }
+        finally {
+            entries.close();
+        }
     }
 
     @Override
@@ -64,26 +71,68 @@ public class ReplicatedStaticStore
         store.delete(key);
     }
 
+    // static entries have no max age, so the time passed to the index does not matter
+
     @Override
     public Set<Service> getAll()
     {
-        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
-        for (Entry entry : store.getAll()) {
-            builder.add(codec.fromJson(new String(entry.getValue(), Charsets.UTF_8)));
-        }
+        return index.getAll(System.currentTimeMillis());
+    }
 
-        return builder.build();
+    @Override
+    public Iterable<Service> iterateAll()
+    {
+        return index.iterateAll(System.currentTimeMillis());
     }
 
     @Override
     public Set<Service> get(String type)
     {
-        return ImmutableSet.copyOf(filter(getAll(), matchesType(type)));
+        return index.get(type, System.currentTimeMillis());
     }
 
     @Override
     public Set<Service> get(String type, String pool)
     {
-        return ImmutableSet.copyOf(filter(getAll(), and(matchesType(type), matchesPool(pool))));
+        return index.get(type, pool, System.currentTimeMillis());
+    }
+
+    @Override
+    public List<Set<Service>> get(List<ServiceQuery> queries)
+    {
+        return index.get(queries, System.currentTimeMillis());
+    }
+
+    @Override
+    public void addListener(ServiceChangeListener listener)
+    {
+        index.addListener(listener);
+    }
+
+    private List<Service> decode(Entry entry)
+    {
+        if (entry.getValue() == null) {
+            return null;
+        }
+
+        return ImmutableList.of(codec.fromJson(new String(entry.getValue(), UTF_8)));
+    }
+
+    private class IndexUpdater
+            implements StoreListener
+    {
+        @Override
+        public void entryPut(Entry entry)
+        {
+            if (index.isNewer(entry)) {
+                index.put(entry, decode(entry));
+            }
+        }
+
+        @Override
+        public void entryDeleted(byte[] key, Version version)
+        {
+            index.delete(key, version);
+        }
     }
 }
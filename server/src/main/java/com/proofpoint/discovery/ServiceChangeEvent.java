@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Set;
+
+/**
+ * Services added or updated, and the ids of services removed, by a single change to the stores.
+ */
+@Immutable
+public class ServiceChangeEvent
+{
+    private final String environment;
+    private final Set<Service> services;
+    private final Set<Id<Service>> removed;
+
+    public ServiceChangeEvent(String environment, Set<Service> services, Set<Id<Service>> removed)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(services, "services is null");
+        Preconditions.checkNotNull(removed, "removed is null");
+
+        this.environment = environment;
+        this.services = ImmutableSet.copyOf(services);
+        this.removed = ImmutableSet.copyOf(removed);
+    }
+
+    @JsonProperty
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    @JsonProperty
+    public Set<Service> getServices()
+    {
+        return services;
+    }
+
+    @JsonProperty
+    public Set<Id<Service>> getRemoved()
+    {
+        return removed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceChangeEvent{" +
+                "environment='" + environment + '\'' +
+                ", services=" + services +
+                ", removed=" + removed +
+                '}';
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.proofpoint.node.NodeInfo;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.google.common.collect.Sets.union;
+
+/**
+ * Bounded log of the changes to the dynamic and static stores, numbered by catalog generation.
+ *
+ * Generations are only meaningful within an epoch, which is chosen at random when the log is
+ * created, so a generation obtained from another server or before a restart is never mistaken
+ * for a local one.
+ */
+@ThreadSafe
+public class ServiceChangeLog
+        implements ServiceChangeListener
+{
+    private final String environment;
+    private final String epoch = UUID.randomUUID().toString();
+    private final DynamicStore dynamicStore;
+    private final StaticStore staticStore;
+    private final int maxSize;
+
+    @GuardedBy("this")
+    private final Deque<Change> changes = new ArrayDeque<Change>();
+    @GuardedBy("this")
+    private long generation;
+    // generation of the most recent change dropped from the log
+    @GuardedBy("this")
+    private long truncatedGeneration;
+
+    @Inject
+    public ServiceChangeLog(DynamicStore dynamicStore, StaticStore staticStore, NodeInfo nodeInfo, DiscoveryConfig config)
+    {
+        Preconditions.checkNotNull(dynamicStore, "dynamicStore is null");
+        Preconditions.checkNotNull(staticStore, "staticStore is null");
+        Preconditions.checkNotNull(nodeInfo, "nodeInfo is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        this.environment = nodeInfo.getEnvironment();
+        this.dynamicStore = dynamicStore;
+        this.staticStore = staticStore;
+        this.maxSize = config.getMaxChangeLogSize();
+
+        dynamicStore.addListener(this);
+        staticStore.addListener(this);
+    }
+
+    @Override
+    public synchronized void servicesChanged(Collection<Service> removed, Collection<Service> added)
+    {
+        generation++;
+        changes.addLast(new Change(generation, ImmutableList.copyOf(removed), ImmutableList.copyOf(added)));
+
+        while (changes.size() > maxSize) {
+            truncatedGeneration = changes.removeFirst().getGeneration();
+        }
+    }
+
+    /**
+     * Returns the changes to services of the given type (and pool, if not null) after the given
+     * generation, or all matching services if those changes are no longer known. A null type
+     * matches all services.
+     */
+    public ServiceChanges getChangesSince(String epoch, long since, String type, String pool)
+    {
+        synchronized (this) {
+            if (this.epoch.equals(epoch) && since >= truncatedGeneration && since <= generation) {
+                List<Change> recent = getChangesAfter(since);
+                return new ServiceChanges(environment, this.epoch, generation, false, getChanged(recent, type, pool), getRemoved(recent, type, pool));
+            }
+        }
+
+        return getSnapshot(type, pool);
+    }
+
+    /**
+     * Returns all services of the given type (and pool, if not null). A null type matches all services.
+     */
+    public ServiceChanges getSnapshot(String type, String pool)
+    {
+        // the generation is read before the stores, so changes made while loading are reported
+        // again by the next request rather than lost
+        long snapshotGeneration;
+        synchronized (this) {
+            snapshotGeneration = generation;
+        }
+
+        Set<Service> services;
+        if (type == null) {
+            services = union(dynamicStore.getAll(), staticStore.getAll());
+        }
+        else if (pool == null) {
+            services = union(dynamicStore.get(type), staticStore.get(type));
+        }
+        else {
+            services = union(dynamicStore.get(type, pool), staticStore.get(type, pool));
+        }
+
+        return new ServiceChanges(environment, epoch, snapshotGeneration, true, services, ImmutableSet.<Id<Service>>of());
+    }
+
+    private static Set<Service> getChanged(List<Change> changes, String type, String pool)
+    {
+        Map<Id<Service>, Service> changed = new LinkedHashMap<Id<Service>, Service>();
+        for (Change change : changes) {
+            for (Service service : change.getRemoved()) {
+                changed.remove(service.getId());
+            }
+            for (Service service : change.getAdded()) {
+                if (matches(service, type, pool)) {
+                    changed.put(service.getId(), service);
+                }
+            }
+        }
+        return ImmutableSet.copyOf(changed.values());
+    }
+
+    private static Set<Id<Service>> getRemoved(List<Change> changes, String type, String pool)
+    {
+        Set<Id<Service>> removed = new LinkedHashSet<Id<Service>>();
+        for (Change change : changes) {
+            for (Service service : change.getRemoved()) {
+                if (matches(service, type, pool)) {
+                    removed.add(service.getId());
+                }
+            }
+            for (Service service : change.getAdded()) {
+                // updated in place, or removed and added back
+                if (matches(service, type, pool)) {
+                    removed.remove(service.getId());
+                }
+            }
+        }
+        return removed;
+    }
+
+    @GuardedBy("this")
+    private List<Change> getChangesAfter(long since)
+    {
+        // callers generally ask for recent changes, so walk back from the newest
+        List<Change> result = Lists.newArrayList();
+        Iterator<Change> iterator = changes.descendingIterator();
+        while (iterator.hasNext()) {
+            Change change = iterator.next();
+            if (change.getGeneration() <= since) {
+                break;
+            }
+            result.add(change);
+        }
+        return Lists.reverse(result);
+    }
+
+    private static boolean matches(Service service, String type, String pool)
+    {
+        if (type == null) {
+            return true;
+        }
+        return type.equals(service.getType()) && (pool == null || pool.equals(service.getPool()));
+    }
+
+    private static class Change
+    {
+        private final long generation;
+        private final List<Service> removed;
+        private final List<Service> added;
+
+        private Change(long generation, List<Service> removed, List<Service> added)
+        {
+            this.generation = generation;
+            this.removed = removed;
+            this.added = added;
+        }
+
+        public long getGeneration()
+        {
+            return generation;
+        }
+
+        public List<Service> getRemoved()
+        {
+            return removed;
+        }
+
+        public List<Service> getAdded()
+        {
+            return added;
+        }
+    }
+}
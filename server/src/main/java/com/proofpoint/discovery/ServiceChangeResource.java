@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
+import com.proofpoint.discovery.monitor.ForMonitor;
+import com.sun.jersey.spi.container.ResourceFilters;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICECHANGES;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+
+@Path("/v1/changes")
+@ResourceFilters({DiscoveryMonitorResourceFilter.class, GzipResourceFilter.class})
+public class ServiceChangeResource
+{
+    private final ServiceChangeLog changeLog;
+
+    @Inject
+    public ServiceChangeResource(ServiceChangeLog changeLog)
+    {
+        this.changeLog = Preconditions.checkNotNull(changeLog, "changeLog is null");
+    }
+
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = SERVICECHANGES, successCodes = {200})
+    public Response getChanges(@QueryParam("epoch") String epoch,
+            @QueryParam("since") Long since,
+            @QueryParam("type") String type,
+            @QueryParam("pool") String pool)
+    {
+        if (type == null && pool != null) {
+            return Response.status(BAD_REQUEST)
+                    .entity("Pool requires a type")
+                    .build();
+        }
+
+        if (epoch == null || since == null) {
+            return Response.ok(changeLog.getSnapshot(type, pool)).build();
+        }
+
+        return Response.ok(changeLog.getChangesSince(epoch, since, type, pool)).build();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Set;
+
+/**
+ * Services added, updated or removed after a catalog generation. When the changes since the
+ * requested generation are no longer known, {@link #isSnapshot()} is true and services holds
+ * the complete current set instead.
+ */
+@Immutable
+public class ServiceChanges
+{
+    private final String environment;
+    private final String epoch;
+    private final long generation;
+    private final boolean snapshot;
+    private final Set<Service> services;
+    private final Set<Id<Service>> removed;
+
+    public ServiceChanges(String environment, String epoch, long generation, boolean snapshot, Set<Service> services, Set<Id<Service>> removed)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(epoch, "epoch is null");
+        Preconditions.checkNotNull(services, "services is null");
+        Preconditions.checkNotNull(removed, "removed is null");
+
+        this.environment = environment;
+        this.epoch = epoch;
+        this.generation = generation;
+        this.snapshot = snapshot;
+        this.services = ImmutableSet.copyOf(services);
+        this.removed = ImmutableSet.copyOf(removed);
+    }
+
+    @JsonProperty
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    @JsonProperty
+    public String getEpoch()
+    {
+        return epoch;
+    }
+
+    @JsonProperty
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    @JsonProperty
+    public boolean isSnapshot()
+    {
+        return snapshot;
+    }
+
+    @JsonProperty
+    public Set<Service> getServices()
+    {
+        return services;
+    }
+
+    @JsonProperty
+    public Set<Id<Service>> getRemoved()
+    {
+        return removed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceChanges{" +
+                "environment='" + environment + '\'' +
+                ", epoch='" + epoch + '\'' +
+                ", generation=" + generation +
+                ", snapshot=" + snapshot +
+                ", services=" + services +
+                ", removed=" + removed +
+                '}';
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.Lease;
+import com.proofpoint.discovery.store.Version;
+import com.proofpoint.log.Logger;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.collect.Iterables.concat;
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.store.Version.Occurs.AFTER;
+import static com.proofpoint.discovery.store.Version.Occurs.BEFORE;
+
+/**
+ * Decoded view of the services held in a distributed store, indexed by type, by (type, pool), and
+ * by (type, property name) and (type, property name, value).
+ *
+ * The index mirrors the version semantics of the local store: a write is only applied if it is
+ * newer than what is indexed for the key, and tombstones are retained until the store drops them.
+ *
+ * Listeners are told about changes to the visible services. Writes that leave the services of a
+ * key as they were (e.g., announcement heartbeats) are not changes. Entries that reach their max age
+ * are filtered out by the queries, and reported as removed once the store expires and deletes them.
+ */
+@ThreadSafe
+class ServiceIndex
+{
+    private static final Logger log = Logger.get(ServiceIndex.class);
+
+    private final List<ServiceChangeListener> listeners = new CopyOnWriteArrayList<ServiceChangeListener>();
+    private final ConcurrentMap<ByteBuffer, IndexedEntry> entries = new ConcurrentHashMap<ByteBuffer, IndexedEntry>();
+    // buckets are removed once empty, so types, pools and property values that are no longer announced don't
+    // accumulate; like their creation, this happens under the index lock
+    private final ConcurrentMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>> byType = new ConcurrentHashMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>>> byTypeAndPool = new ConcurrentHashMap<String, ConcurrentMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>>>();
+    private final ConcurrentMap<PropertyKey, ConcurrentMap<ByteBuffer, IndexedEntry>> byProperty = new ConcurrentHashMap<PropertyKey, ConcurrentMap<ByteBuffer, IndexedEntry>>();
+
+    public void addListener(ServiceChangeListener listener)
+    {
+        Preconditions.checkNotNull(listener, "listener is null");
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns true if the entry is newer than what is indexed for its key, i.e., it is worth decoding.
+     */
+    public boolean isNewer(Entry entry)
+    {
+        IndexedEntry old = entries.get(ByteBuffer.wrap(entry.getKey()));
+        return old == null || entry.getVersion().compare(old.getVersion()) == AFTER;
+    }
+
+    /**
+     * @param services the decoded value of the entry, or null if the entry is a tombstone
+     */
+    public synchronized void put(Entry entry, List<Service> services)
+    {
+        Preconditions.checkNotNull(entry, "entry is null");
+
+        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+
+        IndexedEntry old = entries.get(key);
+        if (old != null && entry.getVersion().compare(old.getVersion()) != AFTER) {
+            return;
+        }
+
+        Long expiration = null;
+        if (entry.getMaxAgeInMs() != null) {
+            expiration = entry.getTimestamp() + entry.getMaxAgeInMs();
+        }
+
+        byte[] digest = entry.getValue() == null ? null : Lease.digest(entry.getValue());
+        IndexedEntry indexed = new IndexedEntry(entry.getVersion(), expiration, services, digest);
+        entries.put(key, indexed);
+
+        if (old != null) {
+            unlink(key, old, indexed);
+        }
+        link(key, indexed);
+
+        if (old == null) {
+            fireChange(ImmutableList.<Service>of(), indexed.getServices());
+        }
+        else {
+            fireChange(difference(old.getServices(), indexed.getServices()), difference(indexed.getServices(), old.getServices()));
+        }
+    }
+
+    /**
+     * Applies a newer entry whose value is the one indexed for its key, such as a renewed lease, by
+     * moving the indexed version and expiration without decoding or relinking anything. Returns false
+     * if the entry is not newer or its value differs, in which case it has to be put.
+     */
+    public synchronized boolean renew(Entry entry)
+    {
+        Preconditions.checkNotNull(entry, "entry is null");
+
+        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+
+        IndexedEntry old = entries.get(key);
+        if (old == null || old.getDigest() == null || entry.getValue() == null || entry.getVersion().compare(old.getVersion()) != AFTER) {
+            return false;
+        }
+        if (!Arrays.equals(old.getDigest(), Lease.digest(entry.getValue()))) {
+            return false;
+        }
+
+        Long expiration = null;
+        if (entry.getMaxAgeInMs() != null) {
+            expiration = entry.getTimestamp() + entry.getMaxAgeInMs();
+        }
+
+        old.renew(entry.getVersion(), expiration);
+        return true;
+    }
+
+    public synchronized void delete(byte[] key, Version version)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+        Preconditions.checkNotNull(version, "version is null");
+
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+
+        IndexedEntry old = entries.get(wrappedKey);
+        if (old != null && version.compare(old.getVersion()) != BEFORE) {
+            entries.remove(wrappedKey);
+            unlink(wrappedKey, old, null);
+
+            fireChange(old.getServices(), ImmutableList.<Service>of());
+        }
+    }
+
+    public Set<Service> getAll(long now)
+    {
+        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
+        for (IndexedEntry entry : entries.values()) {
+            if (!entry.isExpired(now)) {
+                builder.addAll(entry.getServices());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a live view of the services in entries that have not expired at now. The view is
+     * weakly consistent: an entry written while it is iterated may or may not be visible.
+     */
+    public Iterable<Service> iterateAll(final long now)
+    {
+        return concat(transform(filter(entries.values(), new Predicate<IndexedEntry>()
+        {
+            @Override
+            public boolean apply(IndexedEntry entry)
+            {
+                return !entry.isExpired(now);
+            }
+        }), new Function<IndexedEntry, Iterable<Service>>()
+        {
+            @Override
+            public Iterable<Service> apply(IndexedEntry entry)
+            {
+                return entry.getServices();
+            }
+        }));
+    }
+
+    public Set<Service> get(String type, long now)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+
+        return collect(byType.get(type), type, null, now);
+    }
+
+    public Set<Service> get(String type, String pool, long now)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+        Preconditions.checkNotNull(pool, "pool is null");
+
+        Map<String, ConcurrentMap<ByteBuffer, IndexedEntry>> pools = byTypeAndPool.get(type);
+        if (pools == null) {
+            return ImmutableSet.of();
+        }
+
+        return collect(pools.get(pool), type, pool, now);
+    }
+
+    /**
+     * Answers all queries from the same state of the index.
+     */
+    public synchronized List<Set<Service>> get(List<ServiceQuery> queries, long now)
+    {
+        Preconditions.checkNotNull(queries, "queries is null");
+
+        ImmutableList.Builder<Set<Service>> results = ImmutableList.builder();
+        for (ServiceQuery query : queries) {
+            if (query.hasPropertyPredicates()) {
+                results.add(getWithProperties(query, now));
+            }
+            else if (query.getPool() == null) {
+                results.add(get(query.getType(), now));
+            }
+            else {
+                results.add(get(query.getType(), query.getPool(), now));
+            }
+        }
+        return results.build();
+    }
+
+    /**
+     * Scans the smallest of the property buckets the query selects from, so the cost follows the
+     * number of services with the property rather than the number of services of the type.
+     */
+    private Set<Service> getWithProperties(ServiceQuery query, long now)
+    {
+        List<PropertyKey> keys = Lists.newArrayList();
+        for (Map.Entry<String, String> property : query.getProperties().entrySet()) {
+            keys.add(new PropertyKey(query.getType(), property.getKey(), property.getValue()));
+        }
+        for (String name : query.getHasProperties()) {
+            keys.add(new PropertyKey(query.getType(), name, null));
+        }
+
+        Map<ByteBuffer, IndexedEntry> smallest = null;
+        for (PropertyKey key : keys) {
+            Map<ByteBuffer, IndexedEntry> bucket = byProperty.get(key);
+            if (bucket == null) {
+                return ImmutableSet.of();
+            }
+            if (smallest == null || bucket.size() < smallest.size()) {
+                smallest = bucket;
+            }
+        }
+
+        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
+        for (IndexedEntry entry : smallest.values()) {
+            if (entry.isExpired(now)) {
+                continue;
+            }
+
+            for (Service service : entry.getServices()) {
+                if (query.matches(service)) {
+                    builder.add(service);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static Set<Service> collect(Map<ByteBuffer, IndexedEntry> bucket, String type, String pool, long now)
+    {
+        if (bucket == null) {
+            return ImmutableSet.of();
+        }
+
+        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
+        for (IndexedEntry entry : bucket.values()) {
+            if (entry.isExpired(now)) {
+                continue;
+            }
+
+            for (Service service : entry.getServices()) {
+                if (service.getType().equals(type) && (pool == null || service.getPool().equals(pool))) {
+                    builder.add(service);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private void fireChange(List<Service> removed, List<Service> added)
+    {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+
+        for (ServiceChangeListener listener : listeners) {
+            try {
+                listener.servicesChanged(removed, added);
+            }
+            catch (RuntimeException e) {
+                log.warn(e, "Error notifying service change listener");
+            }
+        }
+    }
+
+    /**
+     * Returns the services in the first list that do not have an identical counterpart in the second one.
+     */
+    private static List<Service> difference(List<Service> services, List<Service> others)
+    {
+        ImmutableList.Builder<Service> builder = ImmutableList.builder();
+        for (Service service : services) {
+            boolean found = false;
+            for (Service other : others) {
+                if (isIdentical(service, other)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                builder.add(service);
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean isIdentical(Service a, Service b)
+    {
+        // Service.equals only compares ids
+        return a.getId().equals(b.getId()) &&
+                Objects.equal(a.getNodeId(), b.getNodeId()) &&
+                a.getType().equals(b.getType()) &&
+                a.getPool().equals(b.getPool()) &&
+                a.getLocation().equals(b.getLocation()) &&
+                a.getProperties().equals(b.getProperties());
+    }
+
+    private void link(ByteBuffer key, IndexedEntry entry)
+    {
+        for (Service service : entry.getServices()) {
+            bucketFor(service.getType()).put(key, entry);
+            bucketFor(service.getType(), service.getPool()).put(key, entry);
+
+            for (PropertyKey propertyKey : PropertyKey.keysOf(service)) {
+                ConcurrentMap<ByteBuffer, IndexedEntry> bucket = byProperty.get(propertyKey);
+                if (bucket == null) {
+                    bucket = new ConcurrentHashMap<ByteBuffer, IndexedEntry>();
+                    byProperty.put(propertyKey, bucket);
+                }
+                bucket.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the buckets the old entry was linked into, except for those the
+     * replacement (if any) will be linked into, so readers never see the key disappear while
+     * it is being replaced.
+     */
+    private void unlink(ByteBuffer key, IndexedEntry old, IndexedEntry replacement)
+    {
+        for (Service service : old.getServices()) {
+            String type = service.getType();
+            String pool = service.getPool();
+
+            if (replacement == null || !replacement.hasType(type)) {
+                removeFrom(byType, type, key);
+            }
+
+            if (replacement == null || !replacement.hasTypeAndPool(type, pool)) {
+                ConcurrentMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>> pools = byTypeAndPool.get(type);
+                if (pools != null) {
+                    removeFrom(pools, pool, key);
+                    if (pools.isEmpty()) {
+                        byTypeAndPool.remove(type);
+                    }
+                }
+            }
+
+            for (PropertyKey propertyKey : PropertyKey.keysOf(service)) {
+                if (replacement == null || !replacement.hasProperty(propertyKey)) {
+                    removeFrom(byProperty, propertyKey, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the bucket under the bucket key, and the bucket itself once it is empty.
+     */
+    private static <K> void removeFrom(Map<K, ConcurrentMap<ByteBuffer, IndexedEntry>> buckets, K bucketKey, ByteBuffer key)
+    {
+        Map<ByteBuffer, IndexedEntry> bucket = buckets.get(bucketKey);
+        if (bucket != null) {
+            bucket.remove(key);
+            if (bucket.isEmpty()) {
+                buckets.remove(bucketKey);
+            }
+        }
+    }
+
+    private ConcurrentMap<ByteBuffer, IndexedEntry> bucketFor(String type)
+    {
+        ConcurrentMap<ByteBuffer, IndexedEntry> bucket = byType.get(type);
+        if (bucket == null) {
+            bucket = new ConcurrentHashMap<ByteBuffer, IndexedEntry>();
+            byType.put(type, bucket);
+        }
+        return bucket;
+    }
+
+    private ConcurrentMap<ByteBuffer, IndexedEntry> bucketFor(String type, String pool)
+    {
+        ConcurrentMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>> pools = byTypeAndPool.get(type);
+        if (pools == null) {
+            pools = new ConcurrentHashMap<String, ConcurrentMap<ByteBuffer, IndexedEntry>>();
+            byTypeAndPool.put(type, pools);
+        }
+
+        ConcurrentMap<ByteBuffer, IndexedEntry> bucket = pools.get(pool);
+        if (bucket == null) {
+            bucket = new ConcurrentHashMap<ByteBuffer, IndexedEntry>();
+            pools.put(pool, bucket);
+        }
+        return bucket;
+    }
+
+    private static class IndexedEntry
+    {
+        // moved forward in place by renewals, under the index lock
+        private volatile Version version;
+        private volatile Long expiration;
+        private final List<Service> services;
+        private final byte[] digest;
+
+        private IndexedEntry(Version version, Long expiration, Collection<Service> services, byte[] digest)
+        {
+            this.version = version;
+            this.expiration = expiration;
+            this.digest = digest;
+
+            if (services != null) {
+                this.services = ImmutableList.copyOf(services);
+            }
+            else {
+                this.services = ImmutableList.of();
+            }
+        }
+
+        public Version getVersion()
+        {
+            return version;
+        }
+
+        public Long getExpiration()
+        {
+            return expiration;
+        }
+
+        public List<Service> getServices()
+        {
+            return services;
+        }
+
+        /**
+         * Returns the digest of the value the services were decoded from, or null for tombstones and expired entries.
+         */
+        public byte[] getDigest()
+        {
+            return digest;
+        }
+
+        public void renew(Version version, Long expiration)
+        {
+            this.version = version;
+            this.expiration = expiration;
+        }
+
+        public boolean isExpired(long now)
+        {
+            Long expiration = this.expiration;
+            return expiration != null && now > expiration;
+        }
+
+        public boolean hasType(String type)
+        {
+            for (Service service : services) {
+                if (service.getType().equals(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean hasTypeAndPool(String type, String pool)
+        {
+            for (Service service : services) {
+                if (service.getType().equals(type) && service.getPool().equals(pool)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean hasProperty(PropertyKey key)
+        {
+            for (Service service : services) {
+                if (key.matches(service)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A property of services of a type, with a specific value or, if the value is null, any value.
+     */
+    private static class PropertyKey
+    {
+        private final String type;
+        private final String name;
+        private final String value;
+
+        private PropertyKey(String type, String name, String value)
+        {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        public static List<PropertyKey> keysOf(Service service)
+        {
+            ImmutableList.Builder<PropertyKey> keys = ImmutableList.builder();
+            for (Map.Entry<String, String> property : service.getProperties().entrySet()) {
+                keys.add(new PropertyKey(service.getType(), property.getKey(), property.getValue()));
+                keys.add(new PropertyKey(service.getType(), property.getKey(), null));
+            }
+            return keys.build();
+        }
+
+        public boolean matches(Service service)
+        {
+            if (!service.getType().equals(type) || !service.getProperties().containsKey(name)) {
+                return false;
+            }
+            return value == null || value.equals(service.getProperties().get(name));
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            PropertyKey that = (PropertyKey) o;
+
+            return type.equals(that.type) && name.equals(that.name) && Objects.equal(value, that.value);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(type, name, value);
+        }
+    }
+}
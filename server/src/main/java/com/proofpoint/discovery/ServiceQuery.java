@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects the services of a type, optionally restricted to a pool, to services with the given
+ * property values, and to services that have the given properties.
+ */
+@Immutable
+public class ServiceQuery
+{
+    private final String type;
+    private final String pool;
+    private final Map<String, String> properties;
+    private final Set<String> hasProperties;
+
+    public ServiceQuery(String type, String pool)
+    {
+        this(type, pool, null, null);
+    }
+
+    @JsonCreator
+    public ServiceQuery(@JsonProperty("type") String type,
+            @JsonProperty("pool") String pool,
+            @JsonProperty("properties") Map<String, String> properties,
+            @JsonProperty("hasProperties") Set<String> hasProperties)
+    {
+        this.type = type;
+        this.pool = pool;
+
+        if (properties != null) {
+            this.properties = ImmutableMap.copyOf(properties);
+        }
+        else {
+            this.properties = ImmutableMap.of();
+        }
+
+        if (hasProperties != null) {
+            this.hasProperties = ImmutableSet.copyOf(hasProperties);
+        }
+        else {
+            this.hasProperties = ImmutableSet.of();
+        }
+    }
+
+    @JsonProperty
+    @NotNull
+    public String getType()
+    {
+        return type;
+    }
+
+    @JsonProperty
+    public String getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Returns the property values the selected services must have.
+     */
+    @JsonProperty
+    public Map<String, String> getProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * Returns the names of the properties the selected services must have, with any value.
+     */
+    @JsonProperty
+    public Set<String> getHasProperties()
+    {
+        return hasProperties;
+    }
+
+    public boolean hasPropertyPredicates()
+    {
+        return !properties.isEmpty() || !hasProperties.isEmpty();
+    }
+
+    public boolean matches(Service service)
+    {
+        if (!service.getType().equals(type) || (pool != null && !service.getPool().equals(pool))) {
+            return false;
+        }
+
+        Map<String, String> serviceProperties = service.getProperties();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (!property.getValue().equals(serviceProperties.get(property.getKey()))) {
+                return false;
+            }
+        }
+        for (String name : hasProperties) {
+            if (!serviceProperties.containsKey(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ServiceQuery that = (ServiceQuery) o;
+
+        return Objects.equal(type, that.type) &&
+                Objects.equal(pool, that.pool) &&
+                properties.equals(that.properties) &&
+                hasProperties.equals(that.hasProperties);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(type, pool, properties, hasProperties);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceQuery{" +
+                "type='" + type + '\'' +
+                ", pool='" + pool + '\'' +
+                ", properties=" + properties +
+                ", hasProperties=" + hasProperties +
+                '}';
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Set;
+
+@Immutable
+public class ServiceQueryResult
+{
+    private final String type;
+    private final String pool;
+    private final Set<Service> services;
+
+    public ServiceQueryResult(ServiceQuery query, Set<Service> services)
+    {
+        Preconditions.checkNotNull(query, "query is null");
+        Preconditions.checkNotNull(services, "services is null");
+
+        this.type = query.getType();
+        this.pool = query.getPool();
+        this.services = ImmutableSet.copyOf(services);
+    }
+
+    @JsonProperty
+    public String getType()
+    {
+        return type;
+    }
+
+    @JsonProperty
+    public String getPool()
+    {
+        return pool;
+    }
+
+    @JsonProperty
+    public Set<Service> getServices()
+    {
+        return services;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceQueryResult{" +
+                "type='" + type + '\'' +
+                ", pool='" + pool + '\'' +
+                ", services=" + services +
+                '}';
+    }
+}
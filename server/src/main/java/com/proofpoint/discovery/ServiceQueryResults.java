@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+
+/**
+ * Results of a batch of service queries, in the order of the queries.
+ */
+@Immutable
+public class ServiceQueryResults
+{
+    private final String environment;
+    private final List<ServiceQueryResult> results;
+
+    public ServiceQueryResults(String environment, List<ServiceQueryResult> results)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(results, "results is null");
+
+        this.environment = environment;
+        this.results = ImmutableList.copyOf(results);
+    }
+
+    @JsonProperty
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    @JsonProperty
+    public List<ServiceQueryResult> getResults()
+    {
+        return results;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceQueryResults{" +
+                "environment='" + environment + '\'' +
+                ", results=" + results +
+                '}';
+    }
+}
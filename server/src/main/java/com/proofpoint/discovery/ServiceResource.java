@@ -15,61 +15,406 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.proofpoint.discovery.ServiceSelection.Strategy;
+import com.proofpoint.discovery.ServicesResponseCache.CachedResponse;
+import com.proofpoint.discovery.ServicesResponseCache.Watch;
 import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
 import com.proofpoint.discovery.monitor.ForMonitor;
 import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
 import com.sun.jersey.spi.container.ResourceFilters;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.collect.Iterables.concat;
 import static com.google.common.collect.Sets.union;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICEBATCHQUERY;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICEQUERY;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE_TYPE;
+import static java.lang.String.format;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 
 
 @Path("/v1/service")
-@ResourceFilters(DiscoveryMonitorResourceFilter.class)
+@ResourceFilters({DiscoveryMonitorResourceFilter.class, GzipResourceFilter.class})
 public class ServiceResource
 {
+    public static final String INDEX_HEADER = "X-Discovery-Index";
+
+    private static final String PROPERTY_PARAMETER_PREFIX = "property.";
+    private static final String HAS_PROPERTY_PARAMETER = "has";
+    private static final String LIMIT_PARAMETER = "limit";
+    private static final String SELECT_PARAMETER = "select";
+    private static final String KEY_PARAMETER = "key";
+    private static final String LOCATION_PARAMETER = "location";
+
+    private static final List<Variant> VARIANTS = Variant.mediaTypes(APPLICATION_JSON_TYPE, APPLICATION_SMILE_TYPE).add().build();
+
     private final DynamicStore dynamicStore;
     private final StaticStore staticStore;
     private final NodeInfo node;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService watchExecutor;
+    private final ServicesResponseCache cache;
+    private final CacheControl cacheControl;
+    private final CacheControl privateCacheControl;
+    private final CacheControl noCacheControl;
+    private final Duration maxWatchWait;
 
     @Inject
-    public ServiceResource(DynamicStore dynamicStore, StaticStore staticStore, NodeInfo node)
+    public ServiceResource(DynamicStore dynamicStore, StaticStore staticStore, NodeInfo node, DiscoveryConfig config, ObjectMapper objectMapper)
     {
         this.dynamicStore = dynamicStore;
         this.staticStore = staticStore;
         this.node = node;
+        this.objectMapper = objectMapper;
+        this.watchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("service-watch-%d").setDaemon(true).build());
+        this.cache = new ServicesResponseCache(node.getEnvironment(), dynamicStore, staticStore, objectMapper, watchExecutor);
+
+        // dynamic announcements are only guaranteed to be current for their max age, so results may be reused for that long
+        cacheControl = new CacheControl();
+        cacheControl.setMaxAge((int) config.getMaxAge().convertTo(TimeUnit.SECONDS));
+
+        // a selection is picked for one caller, so shared caches must not hand it to others
+        privateCacheControl = new CacheControl();
+        privateCacheControl.setMaxAge(cacheControl.getMaxAge());
+        privateCacheControl.setPrivate(true);
+
+        // a random selection is sampled afresh for every request
+        noCacheControl = new CacheControl();
+        noCacheControl.setNoCache(true);
+
+        maxWatchWait = config.getMaxWatchWait();
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        watchExecutor.shutdownNow();
     }
 
     @GET
     @Path("{type}/{pool}")
-    @Produces(MediaType.APPLICATION_JSON)
-    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202})
-    public Services getServices(@PathParam("type") final String type, @PathParam("pool") final String pool)
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202, 304})
+    public Response getServices(@Context HttpServletRequest servletRequest,
+            @Context Request request,
+            @PathParam("type") final String type,
+            @PathParam("pool") final String pool,
+            @QueryParam("index") Long index,
+            @QueryParam("wait") String wait,
+            @Context UriInfo uriInfo)
     {
-        return new Services(node.getEnvironment(), union(dynamicStore.get(type, pool), staticStore.get(type, pool)));
+        ServiceQuery query = toQuery(type, pool, uriInfo);
+        ServiceSelection selection = toSelection(uriInfo);
+        if (query.hasPropertyPredicates() || selection != null) {
+            long currentIndex = cache.getIndex(type, pool);
+            if (index != null) {
+                watch(servletRequest, type, pool, index, wait, currentIndex);
+            }
+            return respond(query, selection, currentIndex);
+        }
+
+        CachedResponse response = cache.get(type, pool, selectMediaType(request));
+        if (index != null) {
+            watch(servletRequest, type, pool, index, wait, response.getIndex());
+        }
+        return respond(request, response);
     }
 
     @GET
     @Path("{type}")
-    @Produces(MediaType.APPLICATION_JSON)
-    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202})
-    public Services getServices(@PathParam("type") final String type)
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202, 304})
+    public Response getServices(@Context HttpServletRequest servletRequest,
+            @Context Request request,
+            @PathParam("type") final String type,
+            @QueryParam("index") Long index,
+            @QueryParam("wait") String wait,
+            @Context UriInfo uriInfo)
     {
-        return new Services(node.getEnvironment(), union(dynamicStore.get(type), staticStore.get(type)));
+        ServiceQuery query = toQuery(type, null, uriInfo);
+        ServiceSelection selection = toSelection(uriInfo);
+        if (query.hasPropertyPredicates() || selection != null) {
+            long currentIndex = cache.getIndex(type, null);
+            if (index != null) {
+                watch(servletRequest, type, null, index, wait, currentIndex);
+            }
+            return respond(query, selection, currentIndex);
+        }
+
+        CachedResponse response = cache.get(type, selectMediaType(request));
+        if (index != null) {
+            watch(servletRequest, type, null, index, wait, response.getIndex());
+        }
+        return respond(request, response);
     }
 
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202})
-    public Services getServices()
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = SERVICEQUERY, successCodes = {200, 202, 304})
+    public Response getServices(@Context Request request)
+    {
+        // the body is only known once it has been written, so the tag follows the catalog's index
+        // on this server instead of the content
+        long index = cache.getIndex();
+        EntityTag entityTag = new EntityTag(node.getInstanceId() + "-" + index, true);
+
+        ResponseBuilder builder = request.evaluatePreconditions(entityTag);
+        if (builder == null) {
+            MediaType mediaType = selectMediaType(request);
+            StreamingServices services = new StreamingServices(node.getEnvironment(), concat(dynamicStore.iterateAll(), staticStore.iterateAll()), mediaType, objectMapper);
+            builder = Response.ok(services, mediaType).tag(entityTag);
+        }
+
+        return builder.cacheControl(cacheControl)
+                .header(INDEX_HEADER, index)
+                .header(HttpHeaders.VARY, "Accept, Accept-Encoding")
+                .build();
+    }
+
+    /**
+     * Answers every query in one response. All queries see the same state of the dynamic store, and
+     * all see the same state of the static store, but the two stores are read one after the other:
+     * a change to the static store made between the two reads may be seen alongside a dynamic store
+     * that predates it. The stores are replicated independently and no write spans both, so a single
+     * query never sees only part of a change.
+     */
+    @POST
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_SMILE})
+    @ForMonitor(type = SERVICEBATCHQUERY, successCodes = {200})
+    public Response getServices(List<ServiceQuery> queries)
+    {
+        if (queries == null) {
+            return Response.status(BAD_REQUEST)
+                    .entity("Queries are required")
+                    .build();
+        }
+        for (ServiceQuery query : queries) {
+            if (query == null || query.getType() == null) {
+                return Response.status(BAD_REQUEST)
+                        .entity(format("Query is missing a type: %s", query))
+                        .build();
+            }
+        }
+
+        List<Set<Service>> dynamicServices = dynamicStore.get(queries);
+        List<Set<Service>> staticServices = staticStore.get(queries);
+
+        ImmutableList.Builder<ServiceQueryResult> results = ImmutableList.builder();
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new ServiceQueryResult(queries.get(i), union(dynamicServices.get(i), staticServices.get(i))));
+        }
+
+        return Response.ok(new ServiceQueryResults(node.getEnvironment(), results.build())).build();
+    }
+
+    /**
+     * Parks the request until the result moves past index or the wait ends, unless it already has.
+     * The request is suspended and the servlet thread released; the container dispatches it again
+     * once it is resumed or times out, and that dispatch answers with the current result.
+     */
+    private void watch(HttpServletRequest servletRequest, String type, String pool, long index, String wait, long currentIndex)
+    {
+        final Continuation continuation = ContinuationSupport.getContinuation(servletRequest);
+        if (!continuation.isInitial() || currentIndex != index) {
+            return;
+        }
+
+        Duration timeout = maxWatchWait;
+        if (wait != null) {
+            try {
+                timeout = Duration.valueOf(wait);
+            }
+            catch (IllegalArgumentException e) {
+                throw new WebApplicationException(Response.status(BAD_REQUEST)
+                        .entity(format("Invalid wait: %s", wait))
+                        .build());
+            }
+            if (timeout.compareTo(maxWatchWait) > 0) {
+                timeout = maxWatchWait;
+            }
+        }
+
+        continuation.setTimeout(timeout.toMillis());
+        continuation.suspend();
+
+        // registered after suspending, so a change racing with the registration still resumes the request
+        final Watch watch = cache.watch(type, pool, index, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    continuation.resume();
+                }
+                catch (IllegalStateException ignored) {
+                    // timed out concurrently
+                }
+            }
+        });
+        continuation.addContinuationListener(new ContinuationListener()
+        {
+            @Override
+            public void onComplete(Continuation continuation)
+            {
+                watch.cancel();
+            }
+
+            @Override
+            public void onTimeout(Continuation continuation)
+            {
+                watch.cancel();
+            }
+        });
+
+        // leaves the dispatch without producing a response
+        continuation.undispatch();
+    }
+
+    /**
+     * Answers a query with property predicates or a selection straight from the stores' indexes.
+     * These results are too specific to be worth caching, so they carry no entity tag. Random
+     * selections must not be reused, and other selections may only be reused by the caller.
+     */
+    private Response respond(ServiceQuery query, ServiceSelection selection, long index)
+    {
+        List<ServiceQuery> queries = ImmutableList.of(query);
+        Set<Service> services = union(dynamicStore.get(queries).get(0), staticStore.get(queries).get(0));
+        CacheControl responseCacheControl = cacheControl;
+        if (selection != null) {
+            services = selection.select(services);
+            responseCacheControl = selection.getStrategy() == Strategy.RANDOM ? noCacheControl : privateCacheControl;
+        }
+
+        return Response.ok(new Services(node.getEnvironment(), services))
+                .cacheControl(responseCacheControl)
+                .header(INDEX_HEADER, index)
+                .header(HttpHeaders.VARY, "Accept, Accept-Encoding")
+                .build();
+    }
+
+    private Response respond(Request request, CachedResponse response)
+    {
+        // weak, since the same tag is sent whether or not the body is gzipped on the way out
+        EntityTag entityTag = new EntityTag(response.getEntityTag(), true);
+
+        // answers 304 if the client's If-None-Match matches
+        ResponseBuilder builder = request.evaluatePreconditions(entityTag);
+        if (builder == null) {
+            builder = Response.ok(response.getBody(), response.getMediaType()).tag(entityTag);
+        }
+
+        return builder.cacheControl(cacheControl)
+                .header(INDEX_HEADER, response.getIndex())
+                .header(HttpHeaders.VARY, "Accept, Accept-Encoding")
+                .build();
+    }
+
+    /**
+     * Reads the property predicates of a query: property.{name}={value} selects services with the
+     * property set to the value, and has={name} selects services with the property set at all.
+     */
+    private static ServiceQuery toQuery(String type, String pool, UriInfo uriInfo)
+    {
+        ImmutableMap.Builder<String, String> properties = ImmutableMap.builder();
+        ImmutableSet.Builder<String> hasProperties = ImmutableSet.builder();
+        for (Map.Entry<String, List<String>> parameter : uriInfo.getQueryParameters().entrySet()) {
+            if (parameter.getKey().startsWith(PROPERTY_PARAMETER_PREFIX)) {
+                String name = parameter.getKey().substring(PROPERTY_PARAMETER_PREFIX.length());
+                if (name.isEmpty() || parameter.getValue().size() != 1) {
+                    throw new WebApplicationException(Response.status(BAD_REQUEST)
+                            .entity(format("Invalid property predicate: %s", parameter.getKey()))
+                            .build());
+                }
+                properties.put(name, parameter.getValue().get(0));
+            }
+            else if (parameter.getKey().equals(HAS_PROPERTY_PARAMETER)) {
+                hasProperties.addAll(parameter.getValue());
+            }
+        }
+
+        return new ServiceQuery(type, pool, properties.build(), hasProperties.build());
+    }
+
+    /**
+     * Reads the selection of a query: limit={n} returns at most n services, picked according to
+     * select=random (the default), select=hash with key={key}, or select=location with
+     * location={location}.
+     */
+    private static ServiceSelection toSelection(UriInfo uriInfo)
+    {
+        MultivaluedMap<String, String> parameters = uriInfo.getQueryParameters();
+        String limit = parameters.getFirst(LIMIT_PARAMETER);
+        if (limit == null) {
+            return null;
+        }
+
+        try {
+            String select = parameters.getFirst(SELECT_PARAMETER);
+            Strategy strategy = select == null ? Strategy.RANDOM : Strategy.valueOf(select.toUpperCase());
+
+            String key = null;
+            if (strategy == Strategy.HASH) {
+                key = parameters.getFirst(KEY_PARAMETER);
+            }
+            else if (strategy == Strategy.LOCATION) {
+                key = parameters.getFirst(LOCATION_PARAMETER);
+            }
+
+            return new ServiceSelection(strategy, Integer.parseInt(limit), key);
+        }
+        catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(BAD_REQUEST)
+                    .entity(format("Invalid selection: %s", e.getMessage()))
+                    .build());
+        }
+    }
+
+    static MediaType selectMediaType(Request request)
     {
-        return new Services(node.getEnvironment(), union(dynamicStore.getAll(), staticStore.getAll()));
+        Variant variant = request.selectVariant(VARIANTS);
+        if (variant == null) {
+            return APPLICATION_JSON_TYPE;
+        }
+        return variant.getMediaType();
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Picks a bounded number of services out of a query result, so callers that only use a few
+ * instances of a large pool don't have to fetch all of them.
+ */
+@Immutable
+public class ServiceSelection
+{
+    public enum Strategy
+    {
+        /**
+         * Uniformly random services; every request gets a fresh sample.
+         */
+        RANDOM,
+
+        /**
+         * The services ranking highest for a key under rendezvous (highest random weight) hashing.
+         * All servers and callers pick the same services for a key, and a service joining or
+         * leaving only moves the keys that ranked it in the top.
+         */
+        HASH,
+
+        /**
+         * The services whose location shares the longest leading path with a location, like
+         * /US/West/SC4/rack1. Ties are broken by rendezvous hashing on that location.
+         */
+        LOCATION
+    }
+
+    private static final Random random = new Random();
+
+    private final Strategy strategy;
+    private final int limit;
+    private final String key;
+
+    public ServiceSelection(Strategy strategy, int limit, String key)
+    {
+        Preconditions.checkNotNull(strategy, "strategy is null");
+        Preconditions.checkArgument(limit > 0, "limit must be positive");
+        Preconditions.checkArgument(strategy == Strategy.RANDOM || key != null, "%s selection requires a key", strategy);
+
+        this.strategy = strategy;
+        this.limit = limit;
+        this.key = key;
+    }
+
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public Set<Service> select(Collection<Service> services)
+    {
+        if (services.size() <= limit) {
+            return ImmutableSet.copyOf(services);
+        }
+
+        if (strategy == Strategy.RANDOM) {
+            return selectRandom(Lists.newArrayList(services));
+        }
+
+        // rank once up front, rather than hashing on every comparison
+        long keyHash = hash(key);
+        List<Ranked> ranked = Lists.newArrayListWithCapacity(services.size());
+        for (Service service : services) {
+            int proximity = strategy == Strategy.LOCATION ? commonSegments(key, service.getLocation()) : 0;
+            ranked.add(new Ranked(service, proximity, weight(keyHash, service)));
+        }
+        Collections.sort(ranked);
+
+        ImmutableSet.Builder<Service> builder = ImmutableSet.builder();
+        for (Ranked entry : ranked.subList(0, limit)) {
+            builder.add(entry.service);
+        }
+        return builder.build();
+    }
+
+    private Set<Service> selectRandom(List<Service> candidates)
+    {
+        // partial Fisher-Yates shuffle of the first limit positions
+        for (int i = 0; i < limit; i++) {
+            int j = i + random.nextInt(candidates.size() - i);
+            Collections.swap(candidates, i, j);
+        }
+        return ImmutableSet.copyOf(candidates.subList(0, limit));
+    }
+
+    private static int commonSegments(String a, String b)
+    {
+        String[] aSegments = a.split("/");
+        String[] bSegments = b.split("/");
+
+        int common = 0;
+        for (int i = 0; i < Math.min(aSegments.length, bSegments.length); i++) {
+            if (!aSegments[i].equals(bSegments[i])) {
+                break;
+            }
+            if (!aSegments[i].isEmpty()) {
+                common++;
+            }
+        }
+        return common;
+    }
+
+    private static long weight(long keyHash, Service service)
+    {
+        return mix(keyHash ^ hash(service.getId().toString()));
+    }
+
+    // 64-bit FNV-1a; it only needs to be stable across servers, as the result is mixed before use
+    private static long hash(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // the splitmix64 finalizer, so that weights for nearby hashes are unrelated
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    private static class Ranked
+            implements Comparable<Ranked>
+    {
+        private final Service service;
+        private final int proximity;
+        private final long weight;
+
+        private Ranked(Service service, int proximity, long weight)
+        {
+            this.service = service;
+            this.proximity = proximity;
+            this.weight = weight;
+        }
+
+        @Override
+        public int compareTo(Ranked that)
+        {
+            // closest first, then highest weight first
+            if (proximity != that.proximity) {
+                return Ints.compare(that.proximity, proximity);
+            }
+            return Longs.compare(that.weight, weight);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this)
+                .add("strategy", strategy)
+                .add("limit", limit)
+                .add("key", key)
+                .toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import com.proofpoint.discovery.ServiceSubscriptions.Subscription;
+import com.proofpoint.discovery.monitor.DiscoveryMonitor;
+import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
+import com.proofpoint.discovery.monitor.ForMonitor;
+import com.sun.jersey.spi.container.ResourceFilters;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICESUBSCRIPTION;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+
+@Path("/v1/subscription")
+@ResourceFilters(DiscoveryMonitorResourceFilter.class)
+public class ServiceSubscriptionResource
+{
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    private final ServiceSubscriptions subscriptions;
+    private final DiscoveryMonitor monitor;
+
+    @Inject
+    public ServiceSubscriptionResource(ServiceSubscriptions subscriptions, DiscoveryMonitor monitor)
+    {
+        this.subscriptions = Preconditions.checkNotNull(subscriptions, "subscriptions is null");
+        this.monitor = Preconditions.checkNotNull(monitor, "monitor is null");
+    }
+
+    /**
+     * Streams the matching services as server-sent events. The request is suspended for the life of
+     * the subscription, so it does not hold a servlet thread; events are written by the subscription.
+     * Monitoring records the setting up of the subscription, not its lifetime. A subscription that is
+     * set up leaves the dispatch without a response, so it is recorded here; failures still produce a
+     * response, which the monitor filter records.
+     */
+    @GET
+    @Produces(EVENT_STREAM)
+    @ForMonitor(type = SERVICESUBSCRIPTION, successCodes = {})
+    public void subscribe(@Context HttpServletRequest request,
+            @Context HttpServletResponse response,
+            @Context UriInfo uriInfo,
+            @QueryParam("type") String type,
+            @QueryParam("pool") String pool)
+            throws IOException
+    {
+        long startTime = System.nanoTime();
+        if (type == null && pool != null) {
+            throw new WebApplicationException(Response.status(BAD_REQUEST)
+                    .entity("Pool requires a type")
+                    .build());
+        }
+
+        final Continuation continuation = ContinuationSupport.getContinuation(request);
+        if (!continuation.isInitial()) {
+            // subscriptions are completed, never resumed
+            return;
+        }
+
+        continuation.setTimeout(0);
+        continuation.suspend(response);
+
+        response.setContentType(EVENT_STREAM);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.flushBuffer();
+
+        final Subscription subscription = subscriptions.subscribe(type, pool, response.getOutputStream(), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                continuation.complete();
+            }
+        });
+        continuation.addContinuationListener(new ContinuationListener()
+        {
+            @Override
+            public void onComplete(Continuation continuation)
+            {
+                subscription.close();
+            }
+
+            @Override
+            public void onTimeout(Continuation continuation)
+            {
+                subscription.close();
+            }
+        });
+
+        monitor.monitorDiscoveryEvent(SERVICESUBSCRIPTION, true, request.getRemoteAddr(), uriInfo.getRequestUri().toString(), startTime);
+
+        // leaves the dispatch without producing a response
+        continuation.undispatch();
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.collect.Sets.union;
+
+/**
+ * Open subscriptions to changes in the service catalog, written as server-sent events.
+ *
+ * Each subscription first receives a snapshot event with the matching services, followed by a
+ * change event for every change to them. Events are queued per subscription and written by a
+ * small pool of writer threads, so the stores never wait for a subscriber. A subscriber that
+ * falls more than the buffer size behind is dropped, as is one that does not take a write within
+ * the write timeout, whose writer is interrupted so a stalled client cannot hold it.
+ */
+@ThreadSafe
+public class ServiceSubscriptions
+        implements ServiceChangeListener
+{
+    private static final Logger log = Logger.get(ServiceSubscriptions.class);
+
+    private static final int WRITER_THREADS = 16;
+    private static final long KEEP_ALIVE_INTERVAL_SECONDS = 15;
+    private static final byte[] KEEP_ALIVE = ":\n\n".getBytes(Charsets.UTF_8);
+    private static final long WRITE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final String environment;
+    private final DynamicStore dynamicStore;
+    private final StaticStore staticStore;
+    private final ObjectMapper objectMapper;
+    private final int bufferSize;
+    private final long writeTimeoutNanos;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService keepAliveExecutor;
+
+    // subscriptions to all services, and subscriptions filtered by type
+    private final Set<Subscription> unfiltered = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+    private final Map<String, Set<Subscription>> byType = new ConcurrentHashMap<String, Set<Subscription>>();
+
+    private final AtomicLong subscriptionCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    @Inject
+    public ServiceSubscriptions(DynamicStore dynamicStore, StaticStore staticStore, NodeInfo nodeInfo, DiscoveryConfig config, ObjectMapper objectMapper)
+    {
+        this(nodeInfo.getEnvironment(),
+                dynamicStore,
+                staticStore,
+                objectMapper,
+                config.getMaxSubscriptionBuffer(),
+                config.getSubscriptionWriteTimeout(),
+                Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactoryBuilder().setNameFormat("service-subscription-writer-%d").setDaemon(true).build()));
+    }
+
+    ServiceSubscriptions(String environment, DynamicStore dynamicStore, StaticStore staticStore, ObjectMapper objectMapper, int bufferSize, Duration writeTimeout, ExecutorService writers)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(dynamicStore, "dynamicStore is null");
+        Preconditions.checkNotNull(staticStore, "staticStore is null");
+        Preconditions.checkNotNull(objectMapper, "objectMapper is null");
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+        Preconditions.checkNotNull(writeTimeout, "writeTimeout is null");
+        Preconditions.checkNotNull(writers, "writers is null");
+
+        this.environment = environment;
+        this.dynamicStore = dynamicStore;
+        this.staticStore = staticStore;
+        this.objectMapper = objectMapper;
+        this.bufferSize = bufferSize;
+        this.writeTimeoutNanos = (long) writeTimeout.convertTo(TimeUnit.NANOSECONDS);
+        this.writers = writers;
+
+        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("service-subscription-keep-alive-%d").setDaemon(true).build());
+
+        dynamicStore.addListener(this);
+        staticStore.addListener(this);
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        // idle connections would otherwise be closed by the server, and dead clients never noticed
+        keepAliveExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    for (Subscription subscription : getSubscriptions()) {
+                        subscription.send(KEEP_ALIVE);
+                    }
+                }
+                catch (Throwable t) {
+                    log.warn(t, "Error sending keep alive to subscribers");
+                }
+            }
+        }, KEEP_ALIVE_INTERVAL_SECONDS, KEEP_ALIVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        keepAliveExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    dropStalledSubscriptions();
+                }
+                catch (Throwable t) {
+                    log.warn(t, "Error checking for stalled subscribers");
+                }
+            }
+        }, WRITE_CHECK_INTERVAL_MILLIS, WRITE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        keepAliveExecutor.shutdownNow();
+        for (Subscription subscription : getSubscriptions()) {
+            subscription.close();
+        }
+        writers.shutdown();
+    }
+
+    @Managed
+    public long getSubscriptionCount()
+    {
+        return subscriptionCount.get();
+    }
+
+    @Managed
+    public long getDroppedSubscriptionCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Opens a subscription to services of the given type (and pool, if not null), or to all services
+     * if type is null. Events are written to out; onClose is called once the subscription ends, after
+     * which out is no longer used.
+     */
+    public Subscription subscribe(String type, String pool, OutputStream out, Runnable onClose)
+    {
+        Preconditions.checkArgument(type != null || pool == null, "pool requires a type");
+        Preconditions.checkNotNull(out, "out is null");
+        Preconditions.checkNotNull(onClose, "onClose is null");
+
+        Subscription subscription = new Subscription(type, pool, out, onClose);
+        register(subscription);
+
+        // loaded outside the lock, so a new subscriber never holds up the stores; changes made meanwhile are
+        // buffered by the subscription and sent after the snapshot. A change that is already in the snapshot
+        // may be sent again, which is harmless as events are keyed by id
+        byte[] snapshot;
+        try {
+            snapshot = toEvent("snapshot", new Services(environment, load(type, pool)));
+        }
+        catch (RuntimeException e) {
+            subscription.close();
+            throw e;
+        }
+        subscription.start(snapshot);
+
+        return subscription;
+    }
+
+    private synchronized void register(Subscription subscription)
+    {
+        String type = subscription.getFilter().getType();
+        if (type == null) {
+            unfiltered.add(subscription);
+        }
+        else {
+            Set<Subscription> subscriptions = byType.get(type);
+            if (subscriptions == null) {
+                subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+                byType.put(type, subscriptions);
+            }
+            subscriptions.add(subscription);
+        }
+        subscriptionCount.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void servicesChanged(Collection<Service> removed, Collection<Service> added)
+    {
+        Set<Subscription> candidates = new LinkedHashSet<Subscription>(unfiltered);
+        for (Service service : ImmutableList.<Service>builder().addAll(removed).addAll(added).build()) {
+            Set<Subscription> subscriptions = byType.get(service.getType());
+            if (subscriptions != null) {
+                candidates.addAll(subscriptions);
+            }
+        }
+
+        // subscriptions with the same filter receive the same event
+        Map<Filter, byte[]> events = new HashMap<Filter, byte[]>();
+        for (Subscription subscription : candidates) {
+            Filter filter = subscription.getFilter();
+            if (!events.containsKey(filter)) {
+                events.put(filter, toChangeEvent(filter, removed, added));
+            }
+
+            byte[] event = events.get(filter);
+            if (event != null) {
+                subscription.send(event);
+            }
+        }
+    }
+
+    private synchronized void unregister(Subscription subscription)
+    {
+        boolean removed;
+        String type = subscription.getFilter().getType();
+        if (type == null) {
+            removed = unfiltered.remove(subscription);
+        }
+        else {
+            Set<Subscription> subscriptions = byType.get(type);
+            removed = subscriptions != null && subscriptions.remove(subscription);
+            if (subscriptions != null && subscriptions.isEmpty()) {
+                byType.remove(type);
+            }
+        }
+
+        if (removed) {
+            subscriptionCount.decrementAndGet();
+        }
+    }
+
+    void dropStalledSubscriptions()
+    {
+        long now = System.nanoTime();
+        for (Subscription subscription : getSubscriptions()) {
+            if (subscription.isWriteStalled(now) && subscription.abort()) {
+                droppedCount.incrementAndGet();
+                log.debug("Dropping subscription %s that has not taken a write for %sms", subscription.getFilter(), TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos));
+            }
+        }
+    }
+
+    private Set<Subscription> getSubscriptions()
+    {
+        Set<Subscription> subscriptions = new LinkedHashSet<Subscription>(unfiltered);
+        for (Set<Subscription> typeSubscriptions : byType.values()) {
+            subscriptions.addAll(typeSubscriptions);
+        }
+        return subscriptions;
+    }
+
+    private Set<Service> load(String type, String pool)
+    {
+        if (type == null) {
+            return union(dynamicStore.getAll(), staticStore.getAll());
+        }
+        else if (pool == null) {
+            return union(dynamicStore.get(type), staticStore.get(type));
+        }
+        return union(dynamicStore.get(type, pool), staticStore.get(type, pool));
+    }
+
+    /**
+     * Returns the change event for the subscriptions with the given filter, or null if the change
+     * does not affect them.
+     */
+    private byte[] toChangeEvent(Filter filter, Collection<Service> removed, Collection<Service> added)
+    {
+        Map<Id<Service>, Service> services = new LinkedHashMap<Id<Service>, Service>();
+        for (Service service : added) {
+            if (filter.matches(service)) {
+                services.put(service.getId(), service);
+            }
+        }
+
+        Set<Id<Service>> removedIds = new LinkedHashSet<Id<Service>>();
+        for (Service service : removed) {
+            // services updated in place are only reported as added
+            if (filter.matches(service) && !services.containsKey(service.getId())) {
+                removedIds.add(service.getId());
+            }
+        }
+
+        if (services.isEmpty() && removedIds.isEmpty()) {
+            return null;
+        }
+        return toEvent("change", new ServiceChangeEvent(environment, new LinkedHashSet<Service>(services.values()), removedIds));
+    }
+
+    private byte[] toEvent(String name, Object data)
+    {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(("event: " + name + "\ndata: ").getBytes(Charsets.UTF_8));
+            objectMapper.writeValue(out, data);
+            out.write("\n\n".getBytes(Charsets.UTF_8));
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public class Subscription
+    {
+        private final Filter filter;
+        private final OutputStream out;
+        private final Runnable onClose;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(bufferSize);
+
+        // events sent before the snapshot is queued, or null once it is; the snapshot takes one slot of the buffer
+        @GuardedBy("this")
+        private List<byte[]> buffered = new ArrayList<byte[]>();
+
+        // a single writer drains the queue at a time
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        // start of the write in progress, or zero
+        private volatile long writeStarted;
+
+        // the thread draining the queue, which is interrupted if its write stalls
+        @GuardedBy("this")
+        private Thread writer;
+
+        private Subscription(String type, String pool, OutputStream out, Runnable onClose)
+        {
+            this.filter = new Filter(type, pool);
+            this.out = out;
+            this.onClose = onClose;
+        }
+
+        private Filter getFilter()
+        {
+            return filter;
+        }
+
+        public boolean isClosed()
+        {
+            return closed.get();
+        }
+
+        public void close()
+        {
+            closeIfOpen();
+        }
+
+        private boolean closeIfOpen()
+        {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            unregister(this);
+            queue.clear();
+            schedule();
+            return true;
+        }
+
+        private void start(byte[] snapshot)
+        {
+            synchronized (this) {
+                if (!closed.get()) {
+                    queue.add(snapshot);
+                    queue.addAll(buffered);
+                }
+                buffered = null;
+            }
+            schedule();
+        }
+
+        private void send(byte[] event)
+        {
+            if (closed.get()) {
+                return;
+            }
+
+            boolean started;
+            boolean queued;
+            synchronized (this) {
+                started = buffered == null;
+                if (started) {
+                    queued = queue.offer(event);
+                }
+                else {
+                    queued = buffered.size() < bufferSize - 1 && buffered.add(event);
+                }
+            }
+
+            if (!queued) {
+                if (closeIfOpen()) {
+                    droppedCount.incrementAndGet();
+                    log.debug("Dropping subscription %s that is %s events behind", filter, bufferSize);
+                }
+                return;
+            }
+            if (started) {
+                schedule();
+            }
+        }
+
+        private void schedule()
+        {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            drain();
+                        }
+                    });
+                }
+                catch (RuntimeException e) {
+                    // the writers have been shut down
+                    scheduled.set(false);
+                    finish();
+                }
+            }
+        }
+
+        private boolean isWriteStalled(long now)
+        {
+            long started = writeStarted;
+            return started != 0 && now - started > writeTimeoutNanos;
+        }
+
+        private boolean abort()
+        {
+            if (!closeIfOpen()) {
+                return false;
+            }
+            synchronized (this) {
+                if (writer != null) {
+                    writer.interrupt();
+                }
+            }
+            return true;
+        }
+
+        private void drain()
+        {
+            synchronized (this) {
+                writer = Thread.currentThread();
+            }
+            try {
+                byte[] event = queue.poll();
+                while (event != null && !closed.get()) {
+                    writeStarted = System.nanoTime();
+                    out.write(event);
+                    event = queue.poll();
+                }
+                if (!closed.get()) {
+                    writeStarted = System.nanoTime();
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                // the client went away, or the write stalled and was interrupted
+                close();
+            }
+            finally {
+                writeStarted = 0;
+                synchronized (this) {
+                    writer = null;
+                    // an interrupt for this subscription must not reach the next task of the writer thread
+                    Thread.interrupted();
+                }
+            }
+
+            if (closed.get()) {
+                finish();
+                return;
+            }
+
+            scheduled.set(false);
+            if (!queue.isEmpty() || closed.get()) {
+                schedule();
+            }
+        }
+
+        private void finish()
+        {
+            if (finished.compareAndSet(false, true)) {
+                try {
+                    onClose.run();
+                }
+                catch (RuntimeException e) {
+                    log.warn(e, "Error closing subscription %s", filter);
+                }
+            }
+        }
+    }
+
+    private static class Filter
+    {
+        private final String type;
+        private final String pool;
+
+        private Filter(String type, String pool)
+        {
+            this.type = type;
+            this.pool = pool;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        public String getPool()
+        {
+            return pool;
+        }
+
+        public boolean matches(Service service)
+        {
+            if (type == null) {
+                return true;
+            }
+            return type.equals(service.getType()) && (pool == null || pool.equals(service.getPool()));
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Filter that = (Filter) o;
+
+            return Objects.equal(type, that.type) && Objects.equal(pool, that.pool);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(type, pool);
+        }
+
+        @Override
+        public String toString()
+        {
+            return Objects.toStringHelper(this)
+                    .add("type", type)
+                    .add("pool", pool)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.proofpoint.log.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.collect.Sets.union;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE_TYPE;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+
+/**
+ * Serialized {@link Services} responses for each queried type and (type, pool), in JSON and Smile,
+ * kept until a change in the dynamic or static store affects them or, once there are too many, until
+ * they are the least recently used. The full catalog is too large to keep a copy of, so only its
+ * index is tracked here.
+ *
+ * Each response carries an entity tag derived from its content, so identical results produce the
+ * same tag across invalidations and across discovery servers, and an index that advances whenever
+ * a change affects the query. Watchers registered for a query at an index are notified once the
+ * query's index moves past it. Changes are reported while the stores hold their index locks, so
+ * the watchers are notified from an executor rather than from the listener.
+ *
+ * The cache has no notion of time: announcements that reach their max age invalidate it like any
+ * other removal, once the dynamic store expires and deletes them.
+ */
+@ThreadSafe
+class ServicesResponseCache
+        implements ServiceChangeListener
+{
+    private static final Logger log = Logger.get(ServicesResponseCache.class);
+
+    // bounds the memory used by clients querying for arbitrary types, per media type
+    private static final int MAX_ENTRIES = 10000;
+
+    private final String environment;
+    private final DynamicStore dynamicStore;
+    private final StaticStore staticStore;
+    private final ObjectMapper objectMapper;
+    private final Executor watchExecutor;
+    private final int maxEntries;
+
+    // each map is guarded by itself, and is only locked after this when both are needed
+    private final Map<MediaType, ResponseMap> responses;
+    private final ConcurrentMap<Query, Long> indexes = new ConcurrentHashMap<Query, Long>();
+    private final ConcurrentMap<Query, Set<Watch>> watches = new ConcurrentHashMap<Query, Set<Watch>>();
+    private volatile long generation;
+
+    // the index of queries without one of their own; raised as indexes are pruned, so that no query's index goes back
+    private volatile long minimumIndex;
+    // guarded by this
+    private int nextPruneSize;
+
+    public ServicesResponseCache(String environment, DynamicStore dynamicStore, StaticStore staticStore, ObjectMapper objectMapper, Executor watchExecutor)
+    {
+        this(environment, dynamicStore, staticStore, objectMapper, watchExecutor, MAX_ENTRIES);
+    }
+
+    ServicesResponseCache(String environment, DynamicStore dynamicStore, StaticStore staticStore, ObjectMapper objectMapper, Executor watchExecutor, int maxEntries)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(dynamicStore, "dynamicStore is null");
+        Preconditions.checkNotNull(staticStore, "staticStore is null");
+        Preconditions.checkNotNull(objectMapper, "objectMapper is null");
+        Preconditions.checkNotNull(watchExecutor, "watchExecutor is null");
+        Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive");
+
+        this.environment = environment;
+        this.dynamicStore = dynamicStore;
+        this.staticStore = staticStore;
+        this.objectMapper = objectMapper;
+        this.watchExecutor = watchExecutor;
+        this.maxEntries = maxEntries;
+        this.nextPruneSize = maxEntries;
+
+        responses = ImmutableMap.of(
+                APPLICATION_JSON_TYPE, new ResponseMap(maxEntries),
+                APPLICATION_SMILE_TYPE, new ResponseMap(maxEntries));
+
+        dynamicStore.addListener(this);
+        staticStore.addListener(this);
+    }
+
+    public CachedResponse get(String type, MediaType mediaType)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+
+        return get(new Query(type, null), mediaType);
+    }
+
+    public CachedResponse get(String type, String pool, MediaType mediaType)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+        Preconditions.checkNotNull(pool, "pool is null");
+
+        return get(new Query(type, pool), mediaType);
+    }
+
+    /**
+     * Returns the index of the full catalog.
+     */
+    public long getIndex()
+    {
+        return getIndex(new Query(null, null));
+    }
+
+    /**
+     * Returns the index of the query for type (and pool, if not null), for responses built outside the cache.
+     */
+    public long getIndex(String type, String pool)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+
+        return getIndex(new Query(type, pool));
+    }
+
+    /**
+     * Registers a callback to run once the result of the query for type (and pool, if not null)
+     * changes from the one identified by index. The callback runs immediately, on the calling
+     * thread, if it already has.
+     */
+    public Watch watch(String type, String pool, long index, Runnable callback)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+        Preconditions.checkNotNull(callback, "callback is null");
+
+        Query query = new Query(type, pool);
+        Watch watch = new Watch(query, callback);
+        synchronized (this) {
+            if (getIndex(query) == index) {
+                Set<Watch> queryWatches = watches.get(query);
+                if (queryWatches == null) {
+                    queryWatches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+                    watches.put(query, queryWatches);
+                }
+                queryWatches.add(watch);
+                return watch;
+            }
+        }
+
+        watch.fire();
+        return watch;
+    }
+
+    @Override
+    public void servicesChanged(Collection<Service> removed, Collection<Service> added)
+    {
+        final List<Watch> fired = Lists.newArrayList();
+        synchronized (this) {
+            generation++;
+
+            invalidate(new Query(null, null), fired);
+            invalidate(removed, fired);
+            invalidate(added, fired);
+        }
+
+        if (fired.isEmpty()) {
+            return;
+        }
+
+        try {
+            watchExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (Watch watch : fired) {
+                        watch.fire();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down, nobody is left to answer the watchers
+        }
+    }
+
+    private void invalidate(Collection<Service> services, List<Watch> fired)
+    {
+        for (Service service : services) {
+            invalidate(new Query(service.getType(), null), fired);
+            invalidate(new Query(service.getType(), service.getPool()), fired);
+        }
+    }
+
+    private void invalidate(Query query, List<Watch> fired)
+    {
+        indexes.put(query, generation);
+        for (ResponseMap cached : responses.values()) {
+            synchronized (cached) {
+                cached.remove(query);
+            }
+        }
+
+        Set<Watch> queryWatches = watches.remove(query);
+        if (queryWatches != null) {
+            fired.addAll(queryWatches);
+        }
+
+        if (indexes.size() > nextPruneSize) {
+            pruneIndexes();
+        }
+    }
+
+    /**
+     * Drops the indexes of queries that are neither cached nor watched, raising the minimum index to
+     * the highest one dropped so that those queries keep an index at least as high as they had.
+     */
+    private void pruneIndexes()
+    {
+        long highestPruned = minimumIndex;
+        List<Query> pruned = Lists.newArrayList();
+        for (Map.Entry<Query, Long> entry : indexes.entrySet()) {
+            Query query = entry.getKey();
+            if (!watches.containsKey(query) && !isCached(query)) {
+                pruned.add(query);
+                highestPruned = Math.max(highestPruned, entry.getValue());
+            }
+        }
+
+        // raised before any index is removed, so that a concurrent reader never sees a lower one
+        minimumIndex = highestPruned;
+        for (Query query : pruned) {
+            indexes.remove(query);
+        }
+
+        // what is left is in use, so only prune again once the indexes have grown well past it
+        nextPruneSize = Math.max(maxEntries, 2 * indexes.size());
+    }
+
+    private boolean isCached(Query query)
+    {
+        for (ResponseMap cached : responses.values()) {
+            synchronized (cached) {
+                if (cached.containsKey(query)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void cancel(Watch watch)
+    {
+        Set<Watch> queryWatches = watches.get(watch.query);
+        if (queryWatches != null && queryWatches.remove(watch) && queryWatches.isEmpty()) {
+            watches.remove(watch.query);
+        }
+    }
+
+    private long getIndex(Query query)
+    {
+        Long index = indexes.get(query);
+        if (index == null) {
+            return minimumIndex;
+        }
+        return index;
+    }
+
+    private CachedResponse get(Query query, MediaType mediaType)
+    {
+        ResponseMap cached = responses.get(mediaType);
+        Preconditions.checkArgument(cached != null, "unsupported media type %s", mediaType);
+
+        CachedResponse response;
+        synchronized (cached) {
+            response = cached.get(query);
+        }
+        if (response != null) {
+            return response;
+        }
+
+        long expectedGeneration = generation;
+        long index = getIndex(query);
+        response = new CachedResponse(serialize(load(query), mediaType), mediaType, index);
+
+        // only cache the response if no change happened while it was being built, as the invalidation
+        // for that change may already have run
+        synchronized (this) {
+            if (generation == expectedGeneration) {
+                synchronized (cached) {
+                    cached.put(query, response);
+                }
+            }
+        }
+
+        return response;
+    }
+
+    private Set<Service> load(Query query)
+    {
+        if (query.getPool() == null) {
+            return union(dynamicStore.get(query.getType()), staticStore.get(query.getType()));
+        }
+
+        return union(dynamicStore.get(query.getType(), query.getPool()), staticStore.get(query.getType(), query.getPool()));
+    }
+
+    private byte[] serialize(Set<Service> services, MediaType mediaType)
+    {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new StreamingServices(environment, services, mediaType, objectMapper).write(out);
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Immutable
+    public static class CachedResponse
+    {
+        private final byte[] body;
+        private final MediaType mediaType;
+        private final String entityTag;
+        private final long index;
+
+        private CachedResponse(byte[] body, MediaType mediaType, long index)
+        {
+            this.body = body;
+            this.mediaType = mediaType;
+            this.entityTag = digest(body);
+            this.index = index;
+        }
+
+        /**
+         * Returns the serialized response. The array is shared and must not be modified.
+         */
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public MediaType getMediaType()
+        {
+            return mediaType;
+        }
+
+        /**
+         * Returns a digest of the uncompressed body, to be sent as a weak entity tag.
+         */
+        public String getEntityTag()
+        {
+            return entityTag;
+        }
+
+        public long getIndex()
+        {
+            return index;
+        }
+
+        private static String digest(byte[] body)
+        {
+            try {
+                return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(body)));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    public class Watch
+    {
+        private final Query query;
+        private final Runnable callback;
+
+        private Watch(Query query, Runnable callback)
+        {
+            this.query = query;
+            this.callback = callback;
+        }
+
+        public void cancel()
+        {
+            ServicesResponseCache.this.cancel(this);
+        }
+
+        private void fire()
+        {
+            try {
+                callback.run();
+            }
+            catch (RuntimeException e) {
+                log.warn(e, "Error notifying watcher of %s", query);
+            }
+        }
+    }
+
+    /**
+     * Responses for one media type, evicting the least recently used once there are more than maxEntries.
+     */
+    private static class ResponseMap
+            extends LinkedHashMap<Query, CachedResponse>
+    {
+        private final int maxEntries;
+
+        private ResponseMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Query, CachedResponse> eldest)
+        {
+            return size() > maxEntries;
+        }
+    }
+
+    private static class Query
+    {
+        private final String type;
+        private final String pool;
+
+        private Query(String type, String pool)
+        {
+            this.type = type;
+            this.pool = pool;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        public String getPool()
+        {
+            return pool;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Query that = (Query) o;
+
+            return Objects.equal(type, that.type) && Objects.equal(pool, that.pool);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(type, pool);
+        }
+
+        @Override
+        public String toString()
+        {
+            return Objects.toStringHelper(this)
+                    .add("type", type)
+                    .add("pool", pool)
+                    .toString();
+        }
+    }
+}
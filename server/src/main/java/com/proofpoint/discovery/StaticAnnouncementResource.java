@@ -20,6 +20,7 @@ import com.proofpoint.discovery.monitor.DiscoveryMonitorResourceFilter;
 import com.proofpoint.discovery.monitor.ForMonitor;
 import com.proofpoint.node.NodeInfo;
 import com.sun.jersey.spi.container.ResourceFilters;
+import org.codehaus.jackson.map.ObjectMapper;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
@@ -30,6 +31,8 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
@@ -38,25 +41,28 @@ import java.net.URI;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENT;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENTDELETE;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENTLIST;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
 import static java.lang.String.format;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 
 @Path("/v1/announcement/static")
-@ResourceFilters(DiscoveryMonitorResourceFilter.class)
+@ResourceFilters({DiscoveryMonitorResourceFilter.class, GzipResourceFilter.class})
 public class StaticAnnouncementResource
 {
     private final StaticStore store;
     private final NodeInfo nodeInfo;
+    private final ObjectMapper objectMapper;
 
     @Inject
-    public StaticAnnouncementResource(StaticStore store, NodeInfo nodeInfo)
+    public StaticAnnouncementResource(StaticStore store, NodeInfo nodeInfo, ObjectMapper objectMapper)
     {
         this.store = store;
         this.nodeInfo = nodeInfo;
+        this.objectMapper = objectMapper;
     }
 
     @POST
-    @Consumes("application/json")
+    @Consumes({"application/json", APPLICATION_SMILE})
     @ForMonitor(type = STATICANNOUNCEMENT, successCodes = {201})
     public Response post(@Context UriInfo uriInfo, StaticAnnouncement announcement)
     {
@@ -81,11 +87,12 @@ public class StaticAnnouncementResource
     }
 
     @GET
-    @Produces("application/json")
+    @Produces({"application/json", APPLICATION_SMILE})
     @ForMonitor(type = STATICANNOUNCEMENTLIST, successCodes = {200})
-    public Services get()
+    public Response get(@Context Request request)
     {
-        return new Services(nodeInfo.getEnvironment(), store.getAll());
+        MediaType mediaType = ServiceResource.selectMediaType(request);
+        return Response.ok(new StreamingServices(nodeInfo.getEnvironment(), store.iterateAll(), mediaType, objectMapper), mediaType).build();
     }
 
     @DELETE
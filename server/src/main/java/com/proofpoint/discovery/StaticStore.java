@@ -15,6 +15,7 @@
  */
 package com.proofpoint.discovery;
 
+import java.util.List;
 import java.util.Set;
 
 public interface StaticStore
@@ -23,6 +24,19 @@ public interface StaticStore
     void delete(Id<Service> id);
 
     Set<Service> getAll();
+
+    /**
+     * Returns a weakly consistent view of all services, for writing out the catalog without copying it.
+     */
+    Iterable<Service> iterateAll();
+
     Set<Service> get(String type);
     Set<Service> get(String type, String pool);
+
+    /**
+     * Returns the services selected by each query, all answered from the same state of the store.
+     */
+    List<Set<Service>> get(List<ServiceQuery> queries);
+
+    void addListener(ServiceChangeListener listener);
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE_TYPE;
+
+/**
+ * Writes a {@link Services} response one service at a time, straight from the stores, so writing
+ * out the full catalog takes the same memory however large the catalog is.
+ */
+class StreamingServices
+        implements StreamingOutput
+{
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
+    private final String environment;
+    private final Iterable<Service> services;
+    private final MediaType mediaType;
+    private final ObjectMapper objectMapper;
+
+    public StreamingServices(String environment, Iterable<Service> services, MediaType mediaType, ObjectMapper objectMapper)
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        Preconditions.checkNotNull(services, "services is null");
+        Preconditions.checkNotNull(mediaType, "mediaType is null");
+        Preconditions.checkNotNull(objectMapper, "objectMapper is null");
+
+        this.environment = environment;
+        this.services = services;
+        this.mediaType = mediaType;
+        this.objectMapper = objectMapper;
+    }
+
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    @Override
+    public void write(OutputStream out)
+            throws IOException
+    {
+        JsonFactory factory = mediaType.equals(APPLICATION_SMILE_TYPE) ? SMILE_FACTORY : objectMapper.getJsonFactory();
+        // the mapper flushes after every value it writes, which would push each service out separately
+        JsonGenerator generator = factory.createJsonGenerator(new NonFlushingOutputStream(out), JsonEncoding.UTF8);
+
+        // the container owns the stream
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        generator.writeStartObject();
+        generator.writeStringField("environment", environment);
+        generator.writeArrayFieldStart("services");
+        for (Service service : services) {
+            objectMapper.writeValue(generator, service);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    private static class NonFlushingOutputStream
+            extends FilterOutputStream
+    {
+        private NonFlushingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+    }
+}
@@ -3,10 +3,15 @@ package com.proofpoint.discovery.monitor;
 public enum DiscoveryEventType
 {
     SERVICEQUERY("v1/service", "GET"),
+    SERVICEBATCHQUERY("v1/service", "POST"),
+    SERVICECHANGES("v1/changes", "GET"),
+    SERVICESUBSCRIPTION("v1/subscription", "GET"),
     STATICANNOUNCEMENT("v1/announcement/static", "POST"),
     STATICANNOUNCEMENTLIST("v1/announcement/static", "GET"),
     STATICANNOUNCEMENTDELETE("v1/announcement/static", "DELETE"),
     DYNAMICANNOUNCEMENT("v1/announcement", "PUT"),
+    DYNAMICANNOUNCEMENTRENEW("v1/announcement", "PUT"),
+    DYNAMICANNOUNCEMENTBULK("v1/announcement", "POST"),
     DYNAMICANNOUNCEMENTDELETE("v1/announcement", "DELETE");
     
     private final String path;
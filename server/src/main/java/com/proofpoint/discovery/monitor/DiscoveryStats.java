@@ -8,9 +8,14 @@ import org.weakref.jmx.Nested;
 import java.util.EnumMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICEBATCHQUERY;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICECHANGES;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICESUBSCRIPTION;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.SERVICEQUERY;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENT;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTBULK;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTDELETE;
+import static com.proofpoint.discovery.monitor.DiscoveryEventType.DYNAMICANNOUNCEMENTRENEW;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENT;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENTLIST;
 import static com.proofpoint.discovery.monitor.DiscoveryEventType.STATICANNOUNCEMENTDELETE;
@@ -39,6 +44,42 @@ public class DiscoveryStats
         return eventTypeStats.get(SERVICEQUERY).getFailureCount();
     }
 
+    @Managed
+    public long getServiceBatchQuerySuccessCount()
+    {
+        return eventTypeStats.get(SERVICEBATCHQUERY).getSuccessCount();
+    }
+
+    @Managed
+    public long getServiceBatchQueryFailureCount()
+    {
+        return eventTypeStats.get(SERVICEBATCHQUERY).getFailureCount();
+    }
+
+    @Managed
+    public long getServiceChangesSuccessCount()
+    {
+        return eventTypeStats.get(SERVICECHANGES).getSuccessCount();
+    }
+
+    @Managed
+    public long getServiceChangesFailureCount()
+    {
+        return eventTypeStats.get(SERVICECHANGES).getFailureCount();
+    }
+
+    @Managed
+    public long getServiceSubscriptionSuccessCount()
+    {
+        return eventTypeStats.get(SERVICESUBSCRIPTION).getSuccessCount();
+    }
+
+    @Managed
+    public long getServiceSubscriptionFailureCount()
+    {
+        return eventTypeStats.get(SERVICESUBSCRIPTION).getFailureCount();
+    }
+
     @Managed
     public long getStaticAnnouncementSuccessCount()
     {
@@ -87,6 +128,30 @@ public class DiscoveryStats
         return eventTypeStats.get(DYNAMICANNOUNCEMENT).getFailureCount();
     }
 
+    @Managed
+    public long getDynamicAnnouncementRenewSuccessCount()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTRENEW).getSuccessCount();
+    }
+
+    @Managed
+    public long getDynamicAnnouncementRenewFailureCount()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTRENEW).getFailureCount();
+    }
+
+    @Managed
+    public long getDynamicAnnouncementBulkSuccessCount()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTBULK).getSuccessCount();
+    }
+
+    @Managed
+    public long getDynamicAnnouncementBulkFailureCount()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTBULK).getFailureCount();
+    }
+
     @Managed
     public long getDynamicAnnouncementDeleteSuccessCount()
     {
@@ -106,6 +171,27 @@ public class DiscoveryStats
         return eventTypeStats.get(SERVICEQUERY).getProcessingTime();
     }
 
+    @Managed
+    @Nested
+    public TimedStat getServiceBatchQueryProcessingTime()
+    {
+        return eventTypeStats.get(SERVICEBATCHQUERY).getProcessingTime();
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getServiceChangesProcessingTime()
+    {
+        return eventTypeStats.get(SERVICECHANGES).getProcessingTime();
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getServiceSubscriptionProcessingTime()
+    {
+        return eventTypeStats.get(SERVICESUBSCRIPTION).getProcessingTime();
+    }
+
     @Managed
     @Nested
     public TimedStat getStaticAnnouncementProcessingTime()
@@ -134,6 +220,20 @@ public class DiscoveryStats
         return eventTypeStats.get(DYNAMICANNOUNCEMENT).getProcessingTime();
     }
 
+    @Managed
+    @Nested
+    public TimedStat getDynamicAnnouncementRenewProcessingTime()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTRENEW).getProcessingTime();
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getDynamicAnnouncementBulkProcessingTime()
+    {
+        return eventTypeStats.get(DYNAMICANNOUNCEMENTBULK).getProcessingTime();
+    }
+
     @Managed
     @Nested
     public TimedStat getDynamicAnnouncementDeleteProcessingTime()
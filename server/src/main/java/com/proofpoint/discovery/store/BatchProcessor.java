@@ -25,7 +25,9 @@ import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -38,18 +40,32 @@ public class BatchProcessor<T>
     private final static Logger log = Logger.get(BatchProcessor.class);
 
     private final BatchHandler<T> handler;
+    private final Coalescer<T> coalescer;
     private final int maxBatchSize;
-    private final BlockingQueue<T> queue;
     private final String name;
 
+    // the queue holds keys in arrival order; the entry to send for each key waits in pending, where a
+    // newer entry for the same key can replace it without taking another place in the queue
+    private final BlockingQueue<Object> queue;
+    private final Map<Object, T> pending = new HashMap<Object, T>();
+
     private ExecutorService executor;
     private volatile Future<?> future;
 
     private final AtomicLong processedEntries = new AtomicLong();
     private final AtomicLong droppedEntries = new AtomicLong();
+    private final AtomicLong coalescedEntries = new AtomicLong();
     private final AtomicLong errors = new AtomicLong();
 
     public BatchProcessor(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize)
+    {
+        this(name, handler, null, maxBatchSize, queueSize);
+    }
+
+    /**
+     * Creates a processor that keeps at most one entry per key of the coalescer waiting to be handled.
+     */
+    public BatchProcessor(String name, BatchHandler<T> handler, Coalescer<T> coalescer, int maxBatchSize, int queueSize)
     {
         Preconditions.checkNotNull(name, "name is null");
         Preconditions.checkNotNull(handler, "handler is null");
@@ -58,8 +74,9 @@ public class BatchProcessor<T>
 
         this.name = name;
         this.handler = handler;
+        this.coalescer = coalescer;
         this.maxBatchSize = maxBatchSize;
-        this.queue = new ArrayBlockingQueue<T>(queueSize);
+        this.queue = new ArrayBlockingQueue<Object>(queueSize);
     }
 
     @PostConstruct
@@ -72,12 +89,17 @@ public class BatchProcessor<T>
                 public void run()
                 {
                     while (!Thread.interrupted()) {
-                        final List<T> entries = new ArrayList<T>(maxBatchSize);
+                        final List<Object> keys = new ArrayList<Object>(maxBatchSize);
 
                         try {
-                            T first = queue.take();
-                            entries.add(first);
-                            queue.drainTo(entries, maxBatchSize - 1);
+                            Object first = queue.take();
+                            keys.add(first);
+                            queue.drainTo(keys, maxBatchSize - 1);
+
+                            List<T> entries = takePending(keys);
+                            if (entries.isEmpty()) {
+                                continue;
+                            }
 
                             handler.processBatch(Collections.unmodifiableList(entries));
 
@@ -110,6 +132,12 @@ public class BatchProcessor<T>
         return droppedEntries.get();
     }
 
+    @Managed
+    public long getCoalescedEntries()
+    {
+        return coalescedEntries.get();
+    }
+
     @Managed
     public long getErrors()
     {
@@ -133,21 +161,80 @@ public class BatchProcessor<T>
         }
     }
 
-    public void put(T entry)
+    public synchronized void put(T entry)
     {
         Preconditions.checkState(!future.isCancelled(), "Processor is not running");
         Preconditions.checkNotNull(entry, "entry is null");
 
-        while (!queue.offer(entry)) {
-            // throw away oldest and try again
-            if (queue.poll() != null) {
-                droppedEntries.incrementAndGet();
+        enqueue(entry);
+    }
+
+    /**
+     * Queues the entries back to back, so that they are handled in as few batches as possible.
+     */
+    public synchronized void putAll(Collection<T> entries)
+    {
+        Preconditions.checkState(!future.isCancelled(), "Processor is not running");
+        Preconditions.checkNotNull(entries, "entries is null");
+
+        for (T entry : entries) {
+            Preconditions.checkNotNull(entry, "entry is null");
+            enqueue(entry);
+        }
+    }
+
+    private void enqueue(T entry)
+    {
+        Object key = coalescer == null ? new Object() : coalescer.getKey(entry);
+
+        synchronized (pending) {
+            T queued = pending.get(key);
+            if (queued != null) {
+                pending.put(key, coalescer.merge(queued, entry));
+                coalescedEntries.incrementAndGet();
+                return;
+            }
+
+            while (!queue.offer(key)) {
+                // throw away oldest and try again
+                Object oldest = queue.poll();
+                if (oldest != null && pending.remove(oldest) != null) {
+                    droppedEntries.incrementAndGet();
+                }
             }
+            pending.put(key, entry);
         }
     }
 
+    private List<T> takePending(List<Object> keys)
+    {
+        List<T> entries = new ArrayList<T>(keys.size());
+        synchronized (pending) {
+            for (Object key : keys) {
+                T entry = pending.remove(key);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
     public static interface BatchHandler<T>
     {
         void processBatch(Collection<T> entries);
     }
+
+    public static interface Coalescer<T>
+    {
+        /**
+         * Returns the key identifying what the entry is about; entries with equal keys are coalesced.
+         */
+        Object getKey(T entry);
+
+        /**
+         * Returns the entry to send in place of a queued entry and a newer one with the same key.
+         */
+        T merge(T queued, T entry);
+    }
 }
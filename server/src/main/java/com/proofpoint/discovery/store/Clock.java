@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+/**
+ * Source of the current time, in milliseconds since the epoch.
+ */
+public interface Clock
+{
+    /**
+     * Returns the current time. Used where ordering matters, such as for entry versions.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Returns the current time to within the resolution of the clock. It is cheap enough to be read
+     * once per entry, which makes it suitable for expiration checks but not for versions.
+     */
+    long coarseTimeMillis();
+}
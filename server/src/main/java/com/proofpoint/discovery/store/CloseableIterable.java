@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import java.io.Closeable;
+
+/**
+ * An Iterable whose iterators may hold resources, such as a database snapshot, until they reach the
+ * end. Callers that might stop iterating early must close it once they are done.
+ */
+public interface CloseableIterable<T>
+        extends Iterable<T>, Closeable
+{
+    /**
+     * Releases the resources held by the iterators obtained from this iterable. Those iterators
+     * return no further elements.
+     */
+    @Override
+    void close();
+}
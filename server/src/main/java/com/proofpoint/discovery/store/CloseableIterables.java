@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import java.util.Iterator;
+
+final class CloseableIterables
+{
+    private CloseableIterables()
+    {
+    }
+
+    /**
+     * Wraps an iterable whose iterators hold no resources, so closing it does nothing.
+     */
+    static <T> CloseableIterable<T> fromIterable(final Iterable<T> iterable)
+    {
+        return new CloseableIterable<T>()
+        {
+            @Override
+            public Iterator<T> iterator()
+            {
+                return iterable.iterator();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
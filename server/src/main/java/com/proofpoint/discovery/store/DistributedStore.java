@@ -17,21 +17,32 @@ package com.proofpoint.discovery.store;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
 import com.proofpoint.units.Duration;
-import org.joda.time.DateTime;
 import org.weakref.jmx.Managed;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import javax.inject.Provider;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Predicates.and;
 import static com.google.common.base.Predicates.not;
@@ -41,47 +52,106 @@ import static com.google.common.base.Predicates.not;
  */
 public class DistributedStore
 {
+    private final static Logger log = Logger.get(DistributedStore.class);
+
+    private static final int WHEEL_SIZE = 4096;
+    private static final int LOCK_STRIPES = 256;
+
     private final String name;
     private final LocalStore localStore;
     private final RemoteStore remoteStore;
-    private final Provider<DateTime> timeProvider;
+    private final Clock clock;
     private final Duration tombstoneMaxAge;
     private final Duration garbageCollectionInterval;
+    private final Duration expirationTick;
+    private final ExpirationWheel expirations;
+    private final Duration gcSliceInterval;
+    private final int gcSliceMaxEntries;
+    private final Duration gcSliceMaxTime;
 
     private final ScheduledExecutorService garbageCollector;
     private final AtomicLong lastGcTimestamp = new AtomicLong();
+    private final AtomicLong expiredEntries = new AtomicLong();
+
+    // state of the garbage collection pass in progress, guarded by this
+    private CloseableIterable<Entry> gcEntries;
+    private Iterator<Entry> gcIterator;
+    private long gcPassStart;
+    private long gcPassScanned;
+    private long lastGcPassScanned;
+    private long nextGcPass;
+
+    private final AtomicLong gcEntriesScanned = new AtomicLong();
+    private final AtomicLong gcTombstonesPurged = new AtomicLong();
+    private final AtomicLong gcExpiredEntriesRemoved = new AtomicLong();
+    private final AtomicLong gcPasses = new AtomicLong();
+    private final AtomicLong lastGcPassDuration = new AtomicLong();
+    private final List<StoreListener> listeners = new CopyOnWriteArrayList<StoreListener>();
+
+    // local writes to a key read the clock, and renewals the current entry, under its stripe's lock, so a renewal
+    // cannot interleave with a put and extend the value that the put replaced
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
 
     @Inject
-    public DistributedStore(String name, LocalStore localStore, RemoteStore remoteStore, StoreConfig config, Provider<DateTime> timeProvider)
+    public DistributedStore(String name, LocalStore localStore, RemoteStore remoteStore, StoreConfig config, Clock clock)
     {
         Preconditions.checkNotNull(name, "name is null");
         Preconditions.checkNotNull(localStore, "localStore is null");
         Preconditions.checkNotNull(remoteStore, "remoteStore is null");
         Preconditions.checkNotNull(config, "config is null");
-        Preconditions.checkNotNull(timeProvider, "timeProvider is null");
+        Preconditions.checkNotNull(clock, "clock is null");
 
         this.name = name;
-        this.localStore = localStore;
+        this.localStore = new NotifyingLocalStore(localStore);
         this.remoteStore = remoteStore;
-        this.timeProvider = timeProvider;
+        this.clock = clock;
 
         tombstoneMaxAge = config.getTombstoneMaxAge();
         garbageCollectionInterval = config.getGarbageCollectionInterval();
-        
+        expirationTick = config.getExpirationTick();
+        expirations = new ExpirationWheel((long) expirationTick.toMillis(), WHEEL_SIZE, clock.currentTimeMillis());
+        gcSliceInterval = config.getGarbageCollectionSliceInterval();
+        gcSliceMaxEntries = config.getGarbageCollectionSliceMaxEntries();
+        gcSliceMaxTime = config.getGarbageCollectionSliceMaxTime();
+
         garbageCollector = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("distributed-store-gc-" + name + "-%d").setDaemon(true).build());
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
     }
 
     @PostConstruct
     public void start()
     {
-        garbageCollector.scheduleAtFixedRate(new Runnable()
+        // the first pass also schedules whatever the local store held before this instance
+        garbageCollector.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    collectGarbage();
+                }
+                catch (Throwable t) {
+                    log.warn(t, "Error collecting garbage of %s store", name);
+                }
+            }
+        }, 0, (long) gcSliceInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+        garbageCollector.scheduleWithFixedDelay(new Runnable()
         {
             @Override
             public void run()
             {
-                removeExpiredEntries();
+                try {
+                    expireDueEntries();
+                }
+                catch (Throwable t) {
+                    log.warn(t, "Error expiring entries of %s store", name);
+                }
             }
-        }, 0, (long) garbageCollectionInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }, (long) expirationTick.toMillis(), (long) expirationTick.toMillis(), TimeUnit.MILLISECONDS);
     }
 
     @Managed
@@ -90,6 +160,22 @@ public class DistributedStore
         return name;
     }
 
+    /**
+     * Returns the local store backing this instance. Writes made through it (e.g., by replication)
+     * are reported to the registered listeners.
+     */
+    public LocalStore getLocalStore()
+    {
+        return localStore;
+    }
+
+    public void addListener(StoreListener listener)
+    {
+        Preconditions.checkNotNull(listener, "listener is null");
+
+        listeners.add(listener);
+    }
+
     @Managed
     public long getLastGcTimestamp()
     {
@@ -97,29 +183,214 @@ public class DistributedStore
     }
 
     @Managed
-    public void removeExpiredEntries()
+    public long getExpiredEntries()
+    {
+        return expiredEntries.get();
+    }
+
+    @Managed
+    public int getScheduledExpirations()
+    {
+        return expirations.size();
+    }
+
+    @Managed
+    public long getGcEntriesScanned()
+    {
+        return gcEntriesScanned.get();
+    }
+
+    @Managed
+    public long getGcTombstonesPurged()
+    {
+        return gcTombstonesPurged.get();
+    }
+
+    @Managed
+    public long getGcExpiredEntriesRemoved()
+    {
+        return gcExpiredEntriesRemoved.get();
+    }
+
+    @Managed
+    public long getGcPasses()
+    {
+        return gcPasses.get();
+    }
+
+    @Managed
+    public long getLastGcPassDurationMillis()
+    {
+        return lastGcPassDuration.get();
+    }
+
+    /**
+     * Returns an estimate of the entries left to scan in the pass in progress, based on the size of
+     * the previous pass.
+     */
+    @Managed
+    public synchronized long getGcBacklog()
+    {
+        if (gcIterator == null) {
+            return 0;
+        }
+        return Math.max(0, lastGcPassScanned - gcPassScanned);
+    }
+
+    /**
+     * Scans the whole local store at once, removing expired entries and scheduling the expiration of
+     * the others. Entries normally expire on schedule, and the store is scanned in slices every
+     * gc-interval, so this is only needed to reconcile the schedule with the store right away.
+     */
+    @Managed
+    public synchronized void removeExpiredEntries()
+    {
+        while (!collectGarbage(Integer.MAX_VALUE, Long.MAX_VALUE)) {
+            // keep going until the pass is complete
+        }
+    }
+
+    private synchronized void collectGarbage()
     {
-        for (Entry entry : localStore.getAll()) {
-            if (isExpired(entry)) {
+        if (gcIterator == null) {
+            long now = clock.currentTimeMillis();
+            if (now < nextGcPass) {
+                return;
+            }
+            nextGcPass = now + (long) garbageCollectionInterval.toMillis();
+        }
+
+        collectGarbage(gcSliceMaxEntries, (long) gcSliceMaxTime.convertTo(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Scans the next slice of the pass in progress, or of a new one, stopping once maxEntries have
+     * been scanned or maxNanos have elapsed. Returns true if the pass is complete.
+     */
+    synchronized boolean collectGarbage(int maxEntries, long maxNanos)
+    {
+        if (gcIterator == null) {
+            gcEntries = localStore.getAll();
+            gcIterator = gcEntries.iterator();
+            gcPassStart = clock.currentTimeMillis();
+            gcPassScanned = 0;
+        }
+
+        long now = clock.coarseTimeMillis();
+        long start = System.nanoTime();
+        int scanned = 0;
+        try {
+            while (gcIterator.hasNext()) {
+                if (scanned >= maxEntries || System.nanoTime() - start >= maxNanos) {
+                    return false;
+                }
+
+                Entry entry = gcIterator.next();
+                scanned++;
+                gcPassScanned++;
+                gcEntriesScanned.incrementAndGet();
+
+                if (isExpired(entry, now)) {
+                    localStore.delete(entry.getKey(), entry.getVersion());
+                    if (entry.getValue() == null) {
+                        gcTombstonesPurged.incrementAndGet();
+                    }
+                    else {
+                        gcExpiredEntriesRemoved.incrementAndGet();
+                    }
+                }
+                else {
+                    scheduleExpiration(entry);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            // abandon the pass, so that the next one starts over with a fresh iterator
+            closeGcPass();
+            throw e;
+        }
+
+        closeGcPass();
+        lastGcPassScanned = gcPassScanned;
+        long end = clock.currentTimeMillis();
+        lastGcPassDuration.set(end - gcPassStart);
+        lastGcTimestamp.set(end);
+        gcPasses.incrementAndGet();
+        return true;
+    }
+
+    private void closeGcPass()
+    {
+        if (gcEntries != null) {
+            gcEntries.close();
+        }
+        gcEntries = null;
+        gcIterator = null;
+    }
+
+    @Managed
+    public void expireDueEntries()
+    {
+        long now = clock.coarseTimeMillis();
+        for (ExpirationWheel.Deadline deadline : expirations.advance(now)) {
+            // the entry may have been replaced by a write that lost the race to schedule it
+            Entry entry = localStore.get(deadline.getKey());
+            if (entry == null) {
+                continue;
+            }
+
+            if (isExpired(entry, now)) {
                 localStore.delete(entry.getKey(), entry.getVersion());
+                expiredEntries.incrementAndGet();
+            }
+            else {
+                scheduleExpiration(entry);
             }
         }
+    }
 
-        lastGcTimestamp.set(System.currentTimeMillis());
+    private void scheduleExpiration(Entry entry)
+    {
+        Long expiration = expirationOf(entry);
+        if (expiration == null) {
+            expirations.cancel(entry.getKey(), entry.getVersion());
+        }
+        else {
+            // isExpired holds from the first millisecond past the expiration
+            expirations.schedule(entry.getKey(), entry.getVersion(), expiration + 1);
+        }
+    }
+
+    private Long expirationOf(Entry entry)
+    {
+        if (entry.getValue() == null) {
+            return entry.getTimestamp() + (long) tombstoneMaxAge.toMillis();
+        }
+        if (entry.getMaxAgeInMs() != null) {
+            return entry.getTimestamp() + entry.getMaxAgeInMs();
+        }
+        return null;
     }
 
     private boolean isExpired(Entry entry)
     {
-        long ageInMs = timeProvider.get().getMillis() - entry.getTimestamp();
+        return isExpired(entry, clock.coarseTimeMillis());
+    }
 
-        return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||  // TODO: this is repeated in StoreResource
-                entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs();
+    private boolean isExpired(Entry entry, long now)
+    {
+        // TODO: this is repeated in StoreResource
+        Long expiration = expirationOf(entry);
+        return expiration != null && now > expiration;
     }
 
     @PreDestroy
     public void shutdown()
     {
         garbageCollector.shutdownNow();
+        synchronized (this) {
+            closeGcPass();
+        }
     }
 
     public void put(byte[] key, byte[] value)
@@ -127,11 +398,18 @@ public class DistributedStore
         Preconditions.checkNotNull(key, "key is null");
         Preconditions.checkNotNull(value, "value is null");
 
-        long now = timeProvider.get().getMillis();
-
-        Entry entry = new Entry(key, value, new Version(now), now, null);
+        Entry entry;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            long now = clock.currentTimeMillis();
 
-        localStore.put(entry);
+            entry = new Entry(key, value, new Version(now), now, null);
+            localStore.put(entry);
+        }
+        finally {
+            lock.unlock();
+        }
         remoteStore.put(entry);
     }
     
@@ -141,14 +419,172 @@ public class DistributedStore
         Preconditions.checkNotNull(value, "value is null");
         Preconditions.checkNotNull(maxAge, "maxAge is null");
 
-        long now = timeProvider.get().getMillis();
-
-        Entry entry = new Entry(key, value, new Version(now), now, (long) maxAge.toMillis());
+        Entry entry;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            long now = clock.currentTimeMillis();
 
-        localStore.put(entry);
+            entry = new Entry(key, value, new Version(now), now, (long) maxAge.toMillis());
+            localStore.put(entry);
+        }
+        finally {
+            lock.unlock();
+        }
         remoteStore.put(entry);
     }
 
+    /**
+     * Puts many values at once. They are written locally before any is replicated, and are queued
+     * for replication as one group.
+     */
+    public void putAll(Map<ByteBuffer, byte[]> values, Duration maxAge)
+    {
+        Preconditions.checkNotNull(values, "values is null");
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+
+        List<Entry> entries = Lists.newArrayListWithCapacity(values.size());
+        BitSet stripes = stripesOf(values.keySet());
+        lockAll(stripes);
+        try {
+            long now = clock.currentTimeMillis();
+
+            for (Map.Entry<ByteBuffer, byte[]> value : values.entrySet()) {
+                Preconditions.checkNotNull(value.getValue(), "value is null");
+                entries.add(new Entry(toArray(value.getKey()), value.getValue(), new Version(now), now, (long) maxAge.toMillis()));
+            }
+            localStore.putAll(entries);
+        }
+        finally {
+            unlockAll(stripes);
+        }
+        remoteStore.putAll(entries);
+    }
+
+    /**
+     * Extends the entry for key by maxAge if it is live and its value has the given digest (see
+     * {@link Lease#digest}), replicating only a {@link Lease}. Returns false if it does not, in
+     * which case the value has to be put again.
+     */
+    public boolean renew(byte[] key, byte[] digest, Duration maxAge)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+        Preconditions.checkNotNull(digest, "digest is null");
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+
+        Lease lease;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            // the clock is read before the entry, so the lease is never newer than a put the entry misses
+            long now = clock.currentTimeMillis();
+
+            Entry old = localStore.get(key);
+            if (old == null || isExpired(old)) {
+                return false;
+            }
+
+            lease = new Lease(key, digest, new Version(now), now, (long) maxAge.toMillis());
+            Entry entry = lease.renew(old);
+            if (entry == null) {
+                return false;
+            }
+
+            localStore.put(entry);
+        }
+        finally {
+            lock.unlock();
+        }
+        remoteStore.renew(lease);
+
+        return true;
+    }
+
+    /**
+     * Renews many entries at once, like {@link #renew}, replicating the leases as one group.
+     * Returns the keys that could not be renewed.
+     */
+    public Set<ByteBuffer> renewAll(Map<ByteBuffer, byte[]> digests, Duration maxAge)
+    {
+        Preconditions.checkNotNull(digests, "digests is null");
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+
+        ImmutableSet.Builder<ByteBuffer> failed = ImmutableSet.builder();
+        List<Lease> leases = Lists.newArrayListWithCapacity(digests.size());
+        BitSet stripes = stripesOf(digests.keySet());
+        lockAll(stripes);
+        try {
+            long now = clock.currentTimeMillis();
+
+            for (Map.Entry<ByteBuffer, byte[]> digest : digests.entrySet()) {
+                byte[] key = toArray(digest.getKey());
+
+                Entry old = localStore.get(key);
+                Lease lease = new Lease(key, digest.getValue(), new Version(now), now, (long) maxAge.toMillis());
+                Entry entry = old == null || isExpired(old) ? null : lease.renew(old);
+                if (entry == null) {
+                    failed.add(digest.getKey());
+                    continue;
+                }
+
+                localStore.put(entry);
+                leases.add(lease);
+            }
+        }
+        finally {
+            unlockAll(stripes);
+        }
+
+        if (!leases.isEmpty()) {
+            remoteStore.renewAll(leases);
+        }
+        return failed.build();
+    }
+
+    private Lock lockFor(byte[] key)
+    {
+        return locks[stripeOf(ByteBuffer.wrap(key))];
+    }
+
+    private static BitSet stripesOf(Iterable<ByteBuffer> keys)
+    {
+        BitSet stripes = new BitSet(LOCK_STRIPES);
+        for (ByteBuffer key : keys) {
+            stripes.set(stripeOf(key));
+        }
+        return stripes;
+    }
+
+    // stripes are always locked in ascending order, so that batches cannot deadlock
+    private void lockAll(BitSet stripes)
+    {
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].lock();
+        }
+    }
+
+    private void unlockAll(BitSet stripes)
+    {
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].unlock();
+        }
+    }
+
+    private static int stripeOf(ByteBuffer key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (LOCK_STRIPES - 1);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     public byte[] get(byte[] key)
     {
         Preconditions.checkNotNull(key, "key is null");
@@ -167,17 +603,30 @@ public class DistributedStore
     {
         Preconditions.checkNotNull(key, "key is null");
 
-        long now = timeProvider.get().getMillis();
-
-        Entry entry = new Entry(key, null, new Version(now), now, null);
+        Entry entry;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            long now = clock.currentTimeMillis();
 
-        localStore.put(entry);
+            entry = new Entry(key, null, new Version(now), now, null);
+            localStore.put(entry);
+        }
+        finally {
+            lock.unlock();
+        }
         remoteStore.put(entry);
     }
 
     public Iterable<Entry> getAll()
     {
-        return Iterables.filter(localStore.getAll(), and(not(expired()), not(tombstone())));
+        CloseableIterable<Entry> entries = localStore.getAll();
+        try {
+            return ImmutableList.copyOf(Iterables.filter(entries, and(not(expired()), not(tombstone()))));
+        }
+        finally {
+            entries.close();
+        }
     }
 
     private Predicate<? super Entry> expired()
@@ -201,4 +650,79 @@ public class DistributedStore
             }
         };
     }
+
+    private class NotifyingLocalStore
+            implements LocalStore
+    {
+        private final LocalStore delegate;
+
+        private NotifyingLocalStore(LocalStore delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void put(Entry entry)
+        {
+            delegate.put(entry);
+            scheduleExpiration(entry);
+
+            for (StoreListener listener : listeners) {
+                try {
+                    listener.entryPut(entry);
+                }
+                catch (RuntimeException e) {
+                    log.warn(e, "Error notifying listener of %s store", name);
+                }
+            }
+        }
+
+        @Override
+        public void putAll(Iterable<Entry> entries)
+        {
+            List<Entry> list = ImmutableList.copyOf(entries);
+            delegate.putAll(list);
+
+            for (Entry entry : list) {
+                scheduleExpiration(entry);
+
+                for (StoreListener listener : listeners) {
+                    try {
+                        listener.entryPut(entry);
+                    }
+                    catch (RuntimeException e) {
+                        log.warn(e, "Error notifying listener of %s store", name);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Entry get(byte[] key)
+        {
+            return delegate.get(key);
+        }
+
+        @Override
+        public void delete(byte[] key, Version version)
+        {
+            delegate.delete(key, version);
+            expirations.cancel(key, version);
+
+            for (StoreListener listener : listeners) {
+                try {
+                    listener.entryDeleted(key, version);
+                }
+                catch (RuntimeException e) {
+                    log.warn(e, "Error notifying listener of %s store", name);
+                }
+            }
+        }
+
+        @Override
+        public CloseableIterable<Entry> getAll()
+        {
+            return delegate.getAll();
+        }
+    }
 }
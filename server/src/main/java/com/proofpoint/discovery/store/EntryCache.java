@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of decoded entries, evicting the least recently used ones.
+ * <p/>
+ * Writers invalidate the key after writing to the underlying store. A reader notes {@link
+ * #getModifications()} before reading from the underlying store and caches what it read with {@link
+ * #putIfUnmodified}, which does nothing if any key was invalidated since. So the cache never holds a
+ * value older than the store's.
+ */
+class EntryCache
+{
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final AtomicLong modifications = new AtomicLong();
+
+    EntryCache(int maxEntries)
+    {
+        Preconditions.checkArgument(maxEntries >= 0, "maxEntries is negative");
+
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((maxEntries + SEGMENTS - 1) / SEGMENTS);
+        }
+    }
+
+    public Entry get(ByteBuffer key)
+    {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public long getModifications()
+    {
+        return modifications.get();
+    }
+
+    public void putIfUnmodified(Entry entry, long modifications)
+    {
+        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (this.modifications.get() == modifications) {
+                segment.put(key, entry);
+            }
+        }
+    }
+
+    public void invalidate(ByteBuffer key)
+    {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+            modifications.incrementAndGet();
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(ByteBuffer key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static class Segment
+            extends LinkedHashMap<ByteBuffer, Entry>
+    {
+        private final int maxEntries;
+
+        private Segment(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest)
+        {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * A hashed timing wheel of entry deadlines. Each key has at most one deadline; scheduling a key again
+ * replaces it. Advancing the wheel only visits the slots for the ticks that passed, so the cost is
+ * proportional to the deadlines due plus those parked in the same slots for a later revolution.
+ */
+class ExpirationWheel
+{
+    private final long tickMillis;
+    private final List<List<Deadline>> slots;
+    private final Map<ByteBuffer, Deadline> deadlines = newHashMap();
+
+    // all deadlines before this tick have been handed out
+    private long nextTick;
+
+    ExpirationWheel(long tickMillis, int wheelSize, long now)
+    {
+        Preconditions.checkArgument(tickMillis > 0, "tickMillis must be greater than 0");
+        Preconditions.checkArgument(wheelSize > 0, "wheelSize must be greater than 0");
+
+        this.tickMillis = tickMillis;
+        this.slots = Lists.newArrayListWithCapacity(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(Lists.<Deadline>newArrayList());
+        }
+        this.nextTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the key, at the given version, to be handed out once the deadline has passed.
+     */
+    public synchronized void schedule(byte[] key, Version version, long deadline)
+    {
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+
+        Deadline old = deadlines.get(wrappedKey);
+        if (old != null) {
+            if (old.getVersion().compare(version) == Version.Occurs.AFTER) {
+                // a newer write already scheduled the key
+                return;
+            }
+            old.cancel();
+        }
+
+        // a deadline in a tick already handed out goes out with the next one
+        long tick = Math.max(deadline / tickMillis, nextTick);
+        Deadline entry = new Deadline(key, version, deadline);
+        slots.get((int) (tick % slots.size())).add(entry);
+        deadlines.put(wrappedKey, entry);
+    }
+
+    /**
+     * Removes the deadline of the key if it is for the given version or an earlier one.
+     */
+    public synchronized void cancel(byte[] key, Version version)
+    {
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+
+        Deadline old = deadlines.get(wrappedKey);
+        if (old != null && old.getVersion().compare(version) != Version.Occurs.AFTER) {
+            old.cancel();
+            deadlines.remove(wrappedKey);
+        }
+    }
+
+    /**
+     * Removes and returns the deadlines of all ticks that ended by now.
+     */
+    public synchronized List<Deadline> advance(long now)
+    {
+        long endTick = now / tickMillis;
+        if (endTick <= nextTick) {
+            return Lists.newArrayList();
+        }
+
+        long limit = endTick * tickMillis;
+        long ticks = Math.min(endTick - nextTick, slots.size());
+
+        List<Deadline> due = Lists.newArrayList();
+        for (long tick = nextTick; tick < nextTick + ticks; tick++) {
+            Iterator<Deadline> iterator = slots.get((int) (tick % slots.size())).iterator();
+            while (iterator.hasNext()) {
+                Deadline deadline = iterator.next();
+                if (deadline.isCancelled()) {
+                    iterator.remove();
+                }
+                else if (deadline.getDeadline() < limit) {
+                    iterator.remove();
+                    deadlines.remove(ByteBuffer.wrap(deadline.getKey()));
+                    due.add(deadline);
+                }
+            }
+        }
+
+        nextTick = endTick;
+        return due;
+    }
+
+    public synchronized int size()
+    {
+        return deadlines.size();
+    }
+
+    static class Deadline
+    {
+        private final byte[] key;
+        private final Version version;
+        private final long deadline;
+        private boolean cancelled;
+
+        private Deadline(byte[] key, Version version, long deadline)
+        {
+            this.key = key;
+            this.version = version;
+            this.deadline = deadline;
+        }
+
+        public byte[] getKey()
+        {
+            return key;
+        }
+
+        public Version getVersion()
+        {
+            return version;
+        }
+
+        public long getDeadline()
+        {
+            return deadline;
+        }
+
+        private boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        private void cancel()
+        {
+            cancelled = true;
+        }
+    }
+}
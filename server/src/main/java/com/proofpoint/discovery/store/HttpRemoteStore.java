@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.discovery.store.Version.Occurs;
 import com.proofpoint.http.client.BodyGenerator;
 import com.proofpoint.http.client.HttpClient;
 import com.proofpoint.http.client.Request;
@@ -42,6 +43,7 @@ import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -77,10 +79,13 @@ public class HttpRemoteStore
     private final Duration updateInterval;
 
     private final ConcurrentMap<String, BatchProcessor<Entry>> processors = new ConcurrentHashMap<String, BatchProcessor<Entry>>();
+    // renewals are queued separately, so that a burst of them can't push out entries carrying new values
+    private final ConcurrentMap<String, BatchProcessor<Lease>> leaseProcessors = new ConcurrentHashMap<String, BatchProcessor<Lease>>();
     private final String name;
     private final NodeInfo node;
     private final ServiceSelector selector;
     private final HttpClient httpClient;
+    private final Clock clock;
 
     private Future<?> future;
     private ScheduledExecutorService executor;
@@ -95,7 +100,8 @@ public class HttpRemoteStore
             ServiceSelector selector,
             StoreConfig config,
             HttpClient httpClient,
-            MBeanExporter mbeanExporter)
+            MBeanExporter mbeanExporter,
+            Clock clock)
     {
         Preconditions.checkNotNull(name, "name is null");
         Preconditions.checkNotNull(node, "node is null");
@@ -103,12 +109,14 @@ public class HttpRemoteStore
         Preconditions.checkNotNull(httpClient, "httpClient is null");
         Preconditions.checkNotNull(config, "config is null");
         Preconditions.checkNotNull(mbeanExporter, "mBeanExporter is null");
+        Preconditions.checkNotNull(clock, "clock is null");
 
         this.name = name;
         this.node = node;
         this.selector = selector;
         this.httpClient = httpClient;
         this.mbeanExporter = mbeanExporter;
+        this.clock = clock;
 
         maxBatchSize = config.getMaxBatchSize();
         queueSize = config.getQueueSize();
@@ -180,6 +188,12 @@ public class HttpRemoteStore
                 iterator.remove();
                 entry.getValue().stop();
                 mbeanExporter.unexport(nameFor(entry.getKey()));
+
+                BatchProcessor<Lease> leaseProcessor = leaseProcessors.remove(entry.getKey());
+                if (leaseProcessor != null) {
+                    leaseProcessor.stop();
+                    mbeanExporter.unexport(nameFor(entry.getKey() + "-leases"));
+                }
             }
         }
 
@@ -187,8 +201,20 @@ public class HttpRemoteStore
         Iterable<ServiceDescriptor> newDescriptors = filter(descriptors, predicate);
 
         for (ServiceDescriptor descriptor : newDescriptors) {
+            BatchProcessor<Lease> leaseProcessor = new BatchProcessor<Lease>(descriptor.getNodeId() + "-leases",
+                    new MyBatchHandler<Lease>(name, "/leases", descriptor, httpClient),
+                    LEASE_COALESCER,
+                    maxBatchSize,
+                    queueSize);
+
+            leaseProcessor.start();
+            leaseProcessors.put(descriptor.getNodeId(), leaseProcessor);
+            mbeanExporter.export(nameFor(descriptor.getNodeId() + "-leases"), leaseProcessor);
+
+            // registered last, as its presence marks the node as known
             BatchProcessor<Entry> processor = new BatchProcessor<Entry>(descriptor.getNodeId(),
-                    new MyBatchHandler(name, descriptor, httpClient),
+                    new MyBatchHandler<Entry>(name, "", descriptor, httpClient),
+                    ENTRY_COALESCER,
                     maxBatchSize,
                     queueSize);
 
@@ -197,7 +223,7 @@ public class HttpRemoteStore
             mbeanExporter.export(nameFor(descriptor.getNodeId()), processor);
         }
 
-        lastRemoteServerRefreshTimestamp.set(System.currentTimeMillis());
+        lastRemoteServerRefreshTimestamp.set(clock.currentTimeMillis());
     }
 
     private String nameFor(String id)
@@ -230,24 +256,79 @@ public class HttpRemoteStore
         }
     }
 
-    private static class MyBatchHandler
-            implements BatchProcessor.BatchHandler<Entry>
+    @Override
+    public void putAll(Collection<Entry> entries)
+    {
+        for (BatchProcessor<Entry> processor : processors.values()) {
+            processor.putAll(entries);
+        }
+    }
+
+    @Override
+    public void renew(Lease lease)
+    {
+        for (BatchProcessor<Lease> processor : leaseProcessors.values()) {
+            processor.put(lease);
+        }
+    }
+
+    @Override
+    public void renewAll(Collection<Lease> leases)
+    {
+        for (BatchProcessor<Lease> processor : leaseProcessors.values()) {
+            processor.putAll(leases);
+        }
+    }
+
+    // while waiting to be sent, only the latest entry for a key matters to the remote node
+    private static final BatchProcessor.Coalescer<Entry> ENTRY_COALESCER = new BatchProcessor.Coalescer<Entry>()
+    {
+        @Override
+        public Object getKey(Entry entry)
+        {
+            return ByteBuffer.wrap(entry.getKey());
+        }
+
+        @Override
+        public Entry merge(Entry queued, Entry entry)
+        {
+            return entry.getVersion().compare(queued.getVersion()) == Occurs.BEFORE ? queued : entry;
+        }
+    };
+
+    private static final BatchProcessor.Coalescer<Lease> LEASE_COALESCER = new BatchProcessor.Coalescer<Lease>()
+    {
+        @Override
+        public Object getKey(Lease lease)
+        {
+            return ByteBuffer.wrap(lease.getKey());
+        }
+
+        @Override
+        public Lease merge(Lease queued, Lease lease)
+        {
+            return lease.getVersion().compare(queued.getVersion()) == Occurs.BEFORE ? queued : lease;
+        }
+    };
+
+    private static class MyBatchHandler<T>
+            implements BatchProcessor.BatchHandler<T>
     {
         private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
 
         private final URI uri;
         private final HttpClient httpClient;
 
-        public MyBatchHandler(String name, ServiceDescriptor descriptor, HttpClient httpClient)
+        public MyBatchHandler(String name, String path, ServiceDescriptor descriptor, HttpClient httpClient)
         {
             this.httpClient = httpClient;
 
             // TODO: build URI from resource class
-            uri = URI.create(descriptor.getProperties().get("http") + "/v1/store/" + name);
+            uri = URI.create(descriptor.getProperties().get("http") + "/v1/store/" + name + path);
         }
 
         @Override
-        public void processBatch(final Collection<Entry> entries)
+        public void processBatch(final Collection<T> entries)
         {
             final Request request = RequestBuilder.preparePost()
                     .setUri(uri)
@@ -16,6 +16,7 @@
 package com.proofpoint.discovery.store;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 
 import javax.inject.Inject;
 import java.nio.ByteBuffer;
@@ -29,6 +30,8 @@ import static com.proofpoint.discovery.store.Version.Occurs.SAME;
 public class InMemoryStore
         implements LocalStore
 {
+    // keys are almost always the text of a node or service id, which are held as two longs
+    private final UuidKeyMap<Entry> uuidMap = new UuidKeyMap<Entry>();
     private final ConcurrentMap<ByteBuffer, Entry> map = new ConcurrentHashMap<ByteBuffer, Entry>();
     private final ConflictResolver resolver;
 
@@ -41,28 +44,61 @@ public class InMemoryStore
     @Override
     public void put(Entry entry)
     {
-        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+        byte[] key = entry.getKey();
+        if (UuidKeyMap.isUuid(key)) {
+            putUuid(UuidKeyMap.mostSignificantBits(key), UuidKeyMap.leastSignificantBits(key), entry);
+            return;
+        }
+
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
 
         boolean done = false;
         while (!done) {
-            Entry old = map.putIfAbsent(key, entry);
+            Entry old = map.putIfAbsent(wrappedKey, entry);
 
             done = true;
             if (old != null) {
                 entry = resolver.resolve(old, entry);
 
                 if (entry != old) {
-                    done = map.replace(key, old, entry);
+                    done = map.replace(wrappedKey, old, entry);
                 }
             }
         }
     }
 
+    @Override
+    public void putAll(Iterable<Entry> entries)
+    {
+        for (Entry entry : entries) {
+            put(entry);
+        }
+    }
+
+    private void putUuid(long mostSignificantBits, long leastSignificantBits, Entry entry)
+    {
+        Entry resolved = entry;
+
+        boolean done = false;
+        while (!done) {
+            Entry old = uuidMap.get(mostSignificantBits, leastSignificantBits);
+
+            resolved = entry;
+            if (old != null) {
+                resolved = resolver.resolve(old, entry);
+            }
+            done = resolved == old || uuidMap.replace(mostSignificantBits, leastSignificantBits, old, resolved);
+        }
+    }
+
     @Override
     public Entry get(byte[] key)
     {
         Preconditions.checkNotNull(key, "key is null");
 
+        if (UuidKeyMap.isUuid(key)) {
+            return uuidMap.get(UuidKeyMap.mostSignificantBits(key), UuidKeyMap.leastSignificantBits(key));
+        }
         return map.get(ByteBuffer.wrap(key));
     }
 
@@ -71,6 +107,11 @@ public class InMemoryStore
     {
         Preconditions.checkNotNull(key, "key is null");
 
+        if (UuidKeyMap.isUuid(key)) {
+            deleteUuid(UuidKeyMap.mostSignificantBits(key), UuidKeyMap.leastSignificantBits(key), version);
+            return;
+        }
+
         ByteBuffer wrappedKey = ByteBuffer.wrap(key);
 
         boolean done = false;
@@ -84,9 +125,22 @@ public class InMemoryStore
         }
     }
 
+    private void deleteUuid(long mostSignificantBits, long leastSignificantBits, Version version)
+    {
+        boolean done = false;
+        while (!done) {
+            Entry old = uuidMap.get(mostSignificantBits, leastSignificantBits);
+
+            done = true;
+            if (old != null && EnumSet.of(AFTER, SAME).contains(version.compare(old.getVersion()))) {
+                done = uuidMap.replace(mostSignificantBits, leastSignificantBits, old, null);
+            }
+        }
+    }
+
     @Override
-    public Iterable<Entry> getAll()
+    public CloseableIterable<Entry> getAll()
     {
-        return map.values();
+        return CloseableIterables.fromIterable(Iterables.concat(uuidMap.values(), map.values()));
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import javax.annotation.concurrent.Immutable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.proofpoint.discovery.store.Version.Occurs.AFTER;
+
+/**
+ * A renewal of an entry whose value has not changed. It identifies the value by its digest rather
+ * than carrying it, so replicating a renewal costs the same however large the value is.
+ */
+@Immutable
+public class Lease
+{
+    private final byte[] key;
+    private final byte[] digest;
+    private final Version version;
+    private final long timestamp;
+    private final long maxAgeInMs;
+
+    public Lease(@JsonProperty("key") byte[] key,
+            @JsonProperty("digest") byte[] digest,
+            @JsonProperty("version") Version version,
+            @JsonProperty("timestamp") long timestamp,
+            @JsonProperty("maxAge") long maxAgeInMs)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+        Preconditions.checkNotNull(digest, "digest is null");
+        Preconditions.checkNotNull(version, "version is null");
+        Preconditions.checkArgument(maxAgeInMs > 0, "maxAgeInMs must be greater than 0");
+
+        this.key = key;
+        this.digest = digest;
+        this.version = version;
+        this.timestamp = timestamp;
+        this.maxAgeInMs = maxAgeInMs;
+    }
+
+    @JsonProperty
+    public byte[] getKey()
+    {
+        return key;
+    }
+
+    @JsonProperty
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    @JsonProperty
+    public Version getVersion()
+    {
+        return version;
+    }
+
+    @JsonProperty
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @JsonProperty("maxAge")
+    public long getMaxAgeInMs()
+    {
+        return maxAgeInMs;
+    }
+
+    /**
+     * Returns the entry renewed by this lease, or null if the lease does not apply to it: the entry
+     * is missing, deleted, holds a different value, or is already as recent as the lease. A replica
+     * in that state catches up through a full put or through replication instead.
+     */
+    public Entry renew(Entry entry)
+    {
+        if (entry == null || entry.getValue() == null || version.compare(entry.getVersion()) != AFTER) {
+            return null;
+        }
+        if (!Arrays.equals(digest, digest(entry.getValue()))) {
+            return null;
+        }
+
+        return new Entry(key, entry.getValue(), version, timestamp, maxAgeInMs);
+    }
+
+    public static byte[] digest(byte[] value)
+    {
+        try {
+            return MessageDigest.getInstance("MD5").digest(value);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        Lease lease = (Lease) o;
+
+        if (timestamp != lease.timestamp) {
+            return false;
+        }
+        if (maxAgeInMs != lease.maxAgeInMs) {
+            return false;
+        }
+        if (!Arrays.equals(key, lease.key)) {
+            return false;
+        }
+        if (!Arrays.equals(digest, lease.digest)) {
+            return false;
+        }
+        if (!version.equals(lease.version)) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = Arrays.hashCode(key);
+        result = 31 * result + Arrays.hashCode(digest);
+        result = 31 * result + version.hashCode();
+        result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
+        result = 31 * result + (int) (maxAgeInMs ^ (maxAgeInMs >>> 32));
+        return result;
+    }
+}
@@ -18,7 +18,8 @@ package com.proofpoint.discovery.store;
 public interface LocalStore
 {
     void put(Entry entry);
+    void putAll(Iterable<Entry> entries);
     Entry get(byte[] key);
     void delete(byte[] key, Version version);
-    Iterable<Entry> getAll();
+    CloseableIterable<Entry> getAll();
 }
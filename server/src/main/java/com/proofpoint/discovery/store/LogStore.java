@@ -0,0 +1,643 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.units.Duration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.proofpoint.discovery.store.Version.Occurs.AFTER;
+import static com.proofpoint.discovery.store.Version.Occurs.SAME;
+
+/**
+ * A local store that appends every change to a log of memory-mapped segment files, and finds the
+ * latest record of each key through an in-memory index. Reads decode records straight out of the
+ * mapped segments.
+ * <p/>
+ * Segments are compacted oldest first: the records of the oldest segment that are still live are
+ * appended again to the end of the log and the segment file is deleted, which drops superseded
+ * versions and deletions. On startup the index is rebuilt by replaying the segments in order; a
+ * record that is torn or fails its checksum ends the segment.
+ */
+public class LogStore
+        implements LocalStore
+{
+    private static final Logger log = Logger.get(LogStore.class);
+
+    // record layout: length, checksum of the rest, type, key length, value length (or NO_VALUE), version, timestamp, max age (or NO_MAX_AGE), key, value
+    private static final int LENGTH_OFFSET = 0;
+    private static final int CHECKSUM_OFFSET = 4;
+    private static final int TYPE_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 9;
+    private static final int VALUE_LENGTH_OFFSET = 13;
+    private static final int VERSION_OFFSET = 17;
+    private static final int TIMESTAMP_OFFSET = 25;
+    private static final int MAX_AGE_OFFSET = 33;
+    private static final int HEADER_SIZE = 41;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int NO_VALUE = -1;
+    private static final long NO_MAX_AGE = -1;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final double MIN_GARBAGE_RATIO = 0.5;
+    private static final int COMPACTION_BATCH = 256;
+
+    private final ConflictResolver resolver;
+    private final File location;
+    private final int segmentSize;
+    private final Duration compactionInterval;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // guarded by lock
+    private final Map<ByteBuffer, Long> index = new HashMap<ByteBuffer, Long>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment current;
+
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public LogStore(ConflictResolver resolver, LogStoreConfig config)
+            throws IOException
+    {
+        Preconditions.checkNotNull(resolver, "resolver is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        this.resolver = resolver;
+        this.location = config.getLocation();
+        this.segmentSize = (int) config.getSegmentSize().toBytes();
+        this.compactionInterval = config.getCompactionInterval();
+        Preconditions.checkArgument(segmentSize >= HEADER_SIZE, "segment size must be at least %s bytes", HEADER_SIZE);
+
+        if (!location.isDirectory() && !location.mkdirs()) {
+            throw new IOException("Cannot create log directory " + location);
+        }
+        recover();
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("log-store-compactor-%d").setDaemon(true).build());
+            executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        compact();
+                    }
+                    catch (Throwable t) {
+                        log.warn(t, "Error compacting log in %s", location);
+                    }
+                }
+            }, (long) compactionInterval.toMillis(), (long) compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            current.buffer.force();
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Entry entry)
+    {
+        Preconditions.checkNotNull(entry, "entry is null");
+
+        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            Long old = index.get(key);
+            if (old != null) {
+                Entry oldEntry = read(old);
+                if (resolver.resolve(oldEntry, entry) == oldEntry) {
+                    return;
+                }
+            }
+
+            long address = append(PUT, entry.getKey(), entry.getValue(), entry.getVersion(), entry.getTimestamp(), entry.getMaxAgeInMs());
+            index.put(key, address);
+            if (old != null) {
+                release(old);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Iterable<Entry> entries)
+    {
+        Preconditions.checkNotNull(entries, "entries is null");
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            for (Entry entry : entries) {
+                put(entry);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Entry get(byte[] key)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        long address;
+        Segment segment;
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            Long found = index.get(ByteBuffer.wrap(key));
+            if (found == null) {
+                return null;
+            }
+            address = found;
+            segment = segments.get(segmentId(address));
+        }
+        finally {
+            readLock.unlock();
+        }
+
+        // records are never modified, and a mapping outlives the deletion of its file
+        return decode(segment.buffer, offset(address));
+    }
+
+    @Override
+    public void delete(byte[] key, Version version)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+        Preconditions.checkNotNull(version, "version is null");
+
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            Long old = index.get(wrappedKey);
+            if (old == null) {
+                return;
+            }
+
+            Version.Occurs occurs = version.compare(read(old).getVersion());
+            if (occurs == AFTER || occurs == SAME) {
+                append(DELETE, key, null, version, 0, null);
+                index.remove(wrappedKey);
+                release(old);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the entries as of the call. They are decoded as the iteration reaches them.
+     */
+    @Override
+    public CloseableIterable<Entry> getAll()
+    {
+        return CloseableIterables.fromIterable(new Iterable<Entry>()
+        {
+            @Override
+            public Iterator<Entry> iterator()
+            {
+                final long[] addresses;
+                final Map<Long, Segment> segmentsSnapshot;
+
+                Lock readLock = lock.readLock();
+                readLock.lock();
+                try {
+                    addresses = new long[index.size()];
+                    int i = 0;
+                    for (long address : index.values()) {
+                        addresses[i++] = address;
+                    }
+                    segmentsSnapshot = ImmutableMap.copyOf(segments);
+                }
+                finally {
+                    readLock.unlock();
+                }
+
+                return new AbstractIterator<Entry>()
+                {
+                    private int position;
+
+                    @Override
+                    protected Entry computeNext()
+                    {
+                        if (position == addresses.length) {
+                            return endOfData();
+                        }
+                        long address = addresses[position++];
+                        return decode(segmentsSnapshot.get(segmentId(address)).buffer, offset(address));
+                    }
+                };
+            }
+        });
+    }
+
+    public int size()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return index.size();
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    public int getSegmentCount()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return segments.size();
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Compacts the oldest segments while at least half of the bytes in the segments before the current
+     * one are garbage, compacting each of those segments at most once.
+     */
+    public void compact()
+            throws IOException
+    {
+        int remaining;
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            remaining = segments.size() - 1;
+        }
+        finally {
+            readLock.unlock();
+        }
+
+        while (remaining-- > 0 && needsCompaction()) {
+            compactOldest();
+        }
+    }
+
+    private boolean needsCompaction()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            long total = 0;
+            long live = 0;
+            for (Segment segment : segments.values()) {
+                if (segment != current) {
+                    total += segment.end;
+                    live += segment.liveBytes;
+                }
+            }
+            return total > 0 && total - live >= total * MIN_GARBAGE_RATIO;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    private void compactOldest()
+            throws IOException
+    {
+        Segment oldest;
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            oldest = segments.firstEntry().getValue();
+            if (oldest == current) {
+                return;
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+
+        // the lock is let go between batches, so that reads and writes are not held up for the whole segment
+        Lock writeLock = lock.writeLock();
+        int offset = 0;
+        while (offset < oldest.end) {
+            writeLock.lock();
+            try {
+                for (int i = 0; i < COMPACTION_BATCH && offset < oldest.end; i++) {
+                    int length = oldest.buffer.getInt(offset + LENGTH_OFFSET);
+                    long address = address(oldest.id, offset);
+                    // deletions are dropped: there is no older segment left for them to hide a record in
+                    if (oldest.buffer.get(offset + TYPE_OFFSET) == PUT) {
+                        Entry entry = decode(oldest.buffer, offset);
+                        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+                        Long live = index.get(key);
+                        if (live != null && live == address) {
+                            index.put(key, append(PUT, entry.getKey(), entry.getValue(), entry.getVersion(), entry.getTimestamp(), entry.getMaxAgeInMs()));
+                            release(address);
+                        }
+                    }
+                    offset += length;
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+        writeLock.lock();
+        try {
+            // the moved records must be on disk before the only other copy goes away
+            current.buffer.force();
+            segments.remove(oldest.id);
+        }
+        finally {
+            writeLock.unlock();
+        }
+
+        if (!oldest.file.delete()) {
+            throw new IOException("Cannot delete log segment " + oldest.file);
+        }
+    }
+
+    private void recover()
+            throws IOException
+    {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        File[] children = location.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list log directory " + location);
+        }
+        for (File file : children) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                files.put(Long.parseLong(matcher.group(1)), file);
+            }
+        }
+
+        for (Map.Entry<Long, File> file : files.entrySet()) {
+            Segment segment = openSegment(file.getKey(), file.getValue(), (int) file.getValue().length());
+            segments.put(segment.id, segment);
+            replay(segment);
+            current = segment;
+        }
+
+        if (current == null) {
+            roll(0);
+        }
+    }
+
+    private void replay(Segment segment)
+    {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset + LENGTH_OFFSET);
+            if (length == 0) {
+                break;
+            }
+            if (length < HEADER_SIZE || length > buffer.capacity() - offset || buffer.getInt(offset + CHECKSUM_OFFSET) != checksum(buffer, offset, length)) {
+                log.error("Corrupt record in log segment %s at offset %s, discarding the rest of the segment", segment.file, offset);
+                for (int i = offset; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+
+            ByteBuffer key = ByteBuffer.wrap(readKey(buffer, offset));
+            Long old;
+            if (buffer.get(offset + TYPE_OFFSET) == PUT) {
+                old = index.put(key, address(segment.id, offset));
+                segment.liveBytes += length;
+            }
+            else {
+                old = index.remove(key);
+            }
+            if (old != null) {
+                release(old);
+            }
+            offset += length;
+        }
+        segment.end = offset;
+    }
+
+    private long append(byte type, byte[] key, byte[] value, Version version, long timestamp, Long maxAgeInMs)
+    {
+        int length = HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+        Preconditions.checkArgument(length <= segmentSize, "entry of %s bytes does not fit in a log segment", length);
+
+        if (current.end + length > current.buffer.capacity()) {
+            try {
+                roll(current.id + 1);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Cannot create log segment in " + location, e);
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(TYPE_OFFSET, type);
+        record.putInt(KEY_LENGTH_OFFSET, key.length);
+        record.putInt(VALUE_LENGTH_OFFSET, value == null ? NO_VALUE : value.length);
+        record.putLong(VERSION_OFFSET, version.getSequence());
+        record.putLong(TIMESTAMP_OFFSET, timestamp);
+        record.putLong(MAX_AGE_OFFSET, maxAgeInMs == null ? NO_MAX_AGE : maxAgeInMs);
+        record.position(HEADER_SIZE);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        record.putInt(CHECKSUM_OFFSET, checksum(record, 0, length));
+
+        // the length goes in last, so that a record is not seen before it is complete
+        int offset = current.end;
+        ByteBuffer target = current.buffer.duplicate();
+        target.position(offset + CHECKSUM_OFFSET);
+        record.position(CHECKSUM_OFFSET);
+        target.put(record);
+        current.buffer.putInt(offset + LENGTH_OFFSET, length);
+
+        current.end += length;
+        if (type == PUT) {
+            current.liveBytes += length;
+        }
+        return address(current.id, offset);
+    }
+
+    private void roll(long id)
+            throws IOException
+    {
+        if (current != null) {
+            current.buffer.force();
+        }
+        current = openSegment(id, new File(location, "segment-" + id + ".log"), segmentSize);
+        segments.put(id, current);
+    }
+
+    private void release(long address)
+    {
+        Segment segment = segments.get(segmentId(address));
+        segment.liveBytes -= segment.buffer.getInt(offset(address) + LENGTH_OFFSET);
+    }
+
+    private Entry read(long address)
+    {
+        return decode(segments.get(segmentId(address)).buffer, offset(address));
+    }
+
+    private static Segment openSegment(long id, File file, int size)
+            throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size) {
+                randomAccessFile.setLength(size);
+            }
+            return new Segment(id, file, randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, size));
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Entry decode(ByteBuffer buffer, int offset)
+    {
+        int valueLength = buffer.getInt(offset + VALUE_LENGTH_OFFSET);
+        long maxAge = buffer.getLong(offset + MAX_AGE_OFFSET);
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE);
+        byte[] key = new byte[buffer.getInt(offset + KEY_LENGTH_OFFSET)];
+        record.get(key);
+        byte[] value = null;
+        if (valueLength != NO_VALUE) {
+            value = new byte[valueLength];
+            record.get(value);
+        }
+
+        return new Entry(key,
+                value,
+                new Version(buffer.getLong(offset + VERSION_OFFSET)),
+                buffer.getLong(offset + TIMESTAMP_OFFSET),
+                maxAge == NO_MAX_AGE ? null : maxAge);
+    }
+
+    private static byte[] readKey(ByteBuffer buffer, int offset)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE);
+        byte[] key = new byte[buffer.getInt(offset + KEY_LENGTH_OFFSET)];
+        record.get(key);
+        return key;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length)
+    {
+        byte[] bytes = new byte[length - TYPE_OFFSET];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + TYPE_OFFSET);
+        record.get(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static long address(long segmentId, int offset)
+    {
+        return (segmentId << 32) | offset;
+    }
+
+    private static long segmentId(long address)
+    {
+        return address >>> 32;
+    }
+
+    private static int offset(long address)
+    {
+        return (int) address;
+    }
+
+    private static class Segment
+    {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        // guarded by the lock of the store
+        private int end;
+        private int liveBytes;
+
+        private Segment(long id, File file, MappedByteBuffer buffer)
+        {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
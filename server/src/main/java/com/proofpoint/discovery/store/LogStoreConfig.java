@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.configuration.Config;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
+import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDuration;
+
+import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class LogStoreConfig
+{
+    private boolean enabled = false;
+    private File location = new File("log");
+    private DataSize segmentSize = new DataSize(64, Unit.MEGABYTE);
+    private Duration compactionInterval = new Duration(1, TimeUnit.MINUTES);
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("log.enabled")
+    public LogStoreConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @NotNull
+    public File getLocation()
+    {
+        return location;
+    }
+
+    @Config("log.location")
+    public LogStoreConfig setLocation(File location)
+    {
+        this.location = location;
+        return this;
+    }
+
+    @NotNull
+    public DataSize getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    @Config("log.segment-size")
+    public LogStoreConfig setSegmentSize(DataSize segmentSize)
+    {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getCompactionInterval()
+    {
+        return compactionInterval;
+    }
+
+    @Config("log.compaction-interval")
+    public LogStoreConfig setCompactionInterval(Duration compactionInterval)
+    {
+        this.compactionInterval = compactionInterval;
+        return this;
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import javax.inject.Inject;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.proofpoint.discovery.store.Version.Occurs.AFTER;
+import static com.proofpoint.discovery.store.Version.Occurs.SAME;
+
+/**
+ * A local store that keeps its entries outside of the Java heap, so that the heap does not grow with
+ * the number of entries.
+ * <p/>
+ * Entries are appended as records to large direct buffers ("slabs"). A record is never modified: a
+ * newer version is appended as a new record, and slabs whose records are mostly superseded are
+ * compacted by moving the live ones to the slab being appended to. Keys are found through an
+ * open-addressing index, itself a direct buffer, whose slots hold the addresses of the records.
+ */
+public class OffHeapStore
+        implements LocalStore
+{
+    // record layout: length, key length, value length (or NO_VALUE), version, timestamp, max age (or NO_MAX_AGE), key, value
+    private static final int LENGTH_OFFSET = 0;
+    private static final int KEY_LENGTH_OFFSET = 4;
+    private static final int VALUE_LENGTH_OFFSET = 8;
+    private static final int VERSION_OFFSET = 12;
+    private static final int TIMESTAMP_OFFSET = 20;
+    private static final int MAX_AGE_OFFSET = 28;
+    private static final int HEADER_SIZE = 36;
+
+    private static final int NO_VALUE = -1;
+    private static final long NO_MAX_AGE = -1;
+
+    // index slots: 0, tag (15 bits), slab number + 1 (16 bits), offset (32 bits)
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int MAX_SLABS = 0xFFFF - 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ConflictResolver resolver;
+    private final int slabSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // guarded by lock
+    private LongBuffer index;
+    private int mask;
+    private int size;
+    private int usedSlots;
+
+    private final List<ByteBuffer> slabs = Lists.newArrayList();
+    private int[] slabEnds = new int[16];
+    private int[] liveBytes = new int[16];
+    private int currentSlab = -1;
+
+    @Inject
+    public OffHeapStore(ConflictResolver resolver, OffHeapStoreConfig config)
+    {
+        Preconditions.checkNotNull(resolver, "resolver is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        this.resolver = resolver;
+        this.slabSize = (int) config.getSlabSize().toBytes();
+        Preconditions.checkArgument(slabSize >= HEADER_SIZE, "slab size must be at least %s bytes", HEADER_SIZE);
+
+        allocateIndex(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void put(Entry entry)
+    {
+        Preconditions.checkNotNull(entry, "entry is null");
+
+        byte[] key = entry.getKey();
+        int hash = hash(key);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                long address = index.get(slot);
+                Entry old = read(address);
+                if (resolver.resolve(old, entry) == old) {
+                    return;
+                }
+
+                long replacement = append(entry, hash);
+                index.put(slot, replacement);
+                release(address);
+                return;
+            }
+
+            long address = append(entry, hash);
+            int free = -(slot + 1);
+            if (index.get(free) == EMPTY) {
+                usedSlots++;
+            }
+            index.put(free, address);
+            size++;
+
+            if (usedSlots > (mask + 1) / 4 * 3) {
+                // grow only if live entries need the room, otherwise just clear out deleted slots
+                rehash(size > (mask + 1) / 2 ? (mask + 1) * 2 : mask + 1);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Iterable<Entry> entries)
+    {
+        Preconditions.checkNotNull(entries, "entries is null");
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            for (Entry entry : entries) {
+                put(entry);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Entry get(byte[] key)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        int hash = hash(key);
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            return read(index.get(slot));
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(byte[] key, Version version)
+    {
+        Preconditions.checkNotNull(key, "key is null");
+
+        int hash = hash(key);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return;
+            }
+
+            long address = index.get(slot);
+            Version.Occurs occurs = version.compare(readVersion(address));
+            if (occurs == AFTER || occurs == SAME) {
+                index.put(slot, DELETED);
+                size--;
+                release(address);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the entries as of the call. Their addresses and the slabs holding them are copied under
+     * the read lock, and the records decoded as the iteration reaches them: records are never modified,
+     * and a slab that is compacted or released meanwhile stays readable until the iteration lets go.
+     */
+    @Override
+    public CloseableIterable<Entry> getAll()
+    {
+        return CloseableIterables.fromIterable(new Iterable<Entry>()
+        {
+            @Override
+            public Iterator<Entry> iterator()
+            {
+                final long[] addresses;
+                final ByteBuffer[] slabsSnapshot;
+
+                Lock readLock = lock.readLock();
+                readLock.lock();
+                try {
+                    addresses = new long[size];
+                    int count = 0;
+                    for (int slot = 0; slot <= mask; slot++) {
+                        long address = index.get(slot);
+                        if (address != EMPTY && address != DELETED) {
+                            addresses[count++] = address;
+                        }
+                    }
+                    slabsSnapshot = slabs.toArray(new ByteBuffer[slabs.size()]);
+                }
+                finally {
+                    readLock.unlock();
+                }
+
+                return new AbstractIterator<Entry>()
+                {
+                    private int position;
+
+                    @Override
+                    protected Entry computeNext()
+                    {
+                        if (position == addresses.length) {
+                            return endOfData();
+                        }
+                        long address = addresses[position++];
+                        return read(slabsSnapshot[slabOf(address)], offsetOf(address));
+                    }
+                };
+            }
+        });
+    }
+
+    public int size()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return size;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated outside of the heap, for the slabs and the index.
+     */
+    public long getAllocatedBytes()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            long bytes = (mask + 1) * 8L;
+            for (ByteBuffer slab : slabs) {
+                if (slab != null) {
+                    bytes += slab.capacity();
+                }
+            }
+            return bytes;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot holding the key, or -(slot + 1) for the slot where it would be inserted.
+     */
+    private int find(byte[] key, int hash)
+    {
+        long tag = tagOf(hash);
+        int firstDeleted = -1;
+        int slot = hash & mask;
+        while (true) {
+            long address = index.get(slot);
+            if (address == EMPTY) {
+                return -((firstDeleted >= 0 ? firstDeleted : slot) + 1);
+            }
+            if (address == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            }
+            else if ((address >>> 48) == tag && keyEquals(address, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void allocateIndex(int capacity)
+    {
+        index = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+        mask = capacity - 1;
+        usedSlots = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        LongBuffer old = index;
+        allocateIndex(capacity);
+
+        for (int i = 0; i < old.capacity(); i++) {
+            long address = old.get(i);
+            if (address != EMPTY && address != DELETED) {
+                int slot = hashOf(address) & mask;
+                while (index.get(slot) != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                index.put(slot, address);
+                usedSlots++;
+            }
+        }
+    }
+
+    private long append(Entry entry, int hash)
+    {
+        byte[] key = entry.getKey();
+        byte[] value = entry.getValue();
+        int length = HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+
+        ByteBuffer slab = slabFor(length);
+        int offset = slabEnds[currentSlab];
+
+        ByteBuffer record = slab.duplicate();
+        record.position(offset);
+        record.putInt(length);
+        record.putInt(key.length);
+        record.putInt(value == null ? NO_VALUE : value.length);
+        record.putLong(entry.getVersion().getSequence());
+        record.putLong(entry.getTimestamp());
+        record.putLong(entry.getMaxAgeInMs() == null ? NO_MAX_AGE : entry.getMaxAgeInMs());
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+
+        slabEnds[currentSlab] = offset + length;
+        liveBytes[currentSlab] += length;
+
+        return addressOf(tagOf(hash), currentSlab, offset);
+    }
+
+    private ByteBuffer slabFor(int length)
+    {
+        if (currentSlab >= 0 && slabs.get(currentSlab).capacity() - slabEnds[currentSlab] >= length) {
+            return slabs.get(currentSlab);
+        }
+
+        int previous = currentSlab;
+
+        // reuse the number of a released slab if there is one
+        int number = slabs.indexOf(null);
+        if (number < 0) {
+            number = slabs.size();
+            Preconditions.checkState(number < MAX_SLABS, "store is full");
+            slabs.add(null);
+            if (number >= slabEnds.length) {
+                slabEnds = Arrays.copyOf(slabEnds, slabEnds.length * 2);
+                liveBytes = Arrays.copyOf(liveBytes, liveBytes.length * 2);
+            }
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+        slabs.set(number, slab);
+        slabEnds[number] = 0;
+        liveBytes[number] = 0;
+        currentSlab = number;
+
+        // a slab is not compacted while appended to, so catch up on one that emptied meanwhile; one that
+        // is only sparse gets compacted on its next release
+        if (previous >= 0 && liveBytes[previous] == 0) {
+            slabs.set(previous, null);
+        }
+        return slab;
+    }
+
+    private void release(long address)
+    {
+        int slab = slabOf(address);
+        liveBytes[slab] -= lengthOf(address);
+        if (slab != currentSlab) {
+            compactIfSparse(slab);
+        }
+    }
+
+    private void compactIfSparse(int slab)
+    {
+        if (liveBytes[slab] == 0) {
+            slabs.set(slab, null);
+        }
+        else if (liveBytes[slab] < slabs.get(slab).capacity() / 4) {
+            compact(slab);
+        }
+    }
+
+    /**
+     * Moves the live records of the slab to the current one and releases it.
+     */
+    private void compact(int number)
+    {
+        ByteBuffer slab = slabs.get(number);
+        int end = slabEnds[number];
+
+        int offset = 0;
+        while (offset < end && liveBytes[number] > 0) {
+            int length = slab.getInt(offset + LENGTH_OFFSET);
+
+            byte[] key = readKey(slab, offset);
+            int hash = hash(key);
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                long address = index.get(slot);
+                if (slabOf(address) == number && offsetOf(address) == offset) {
+                    Entry entry = read(address);
+                    index.put(slot, append(entry, hash));
+                    liveBytes[number] -= length;
+                }
+            }
+            offset += length;
+        }
+
+        slabs.set(number, null);
+    }
+
+    private boolean keyEquals(long address, byte[] key)
+    {
+        ByteBuffer slab = slabs.get(slabOf(address));
+        int offset = offsetOf(address);
+        if (slab.getInt(offset + KEY_LENGTH_OFFSET) != key.length) {
+            return false;
+        }
+
+        int start = offset + HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Entry read(long address)
+    {
+        return read(slabs.get(slabOf(address)), offsetOf(address));
+    }
+
+    private static Entry read(ByteBuffer slab, int offset)
+    {
+        byte[] key = readKey(slab, offset);
+
+        byte[] value = null;
+        int valueLength = slab.getInt(offset + VALUE_LENGTH_OFFSET);
+        if (valueLength != NO_VALUE) {
+            value = new byte[valueLength];
+            ByteBuffer record = slab.duplicate();
+            record.position(offset + HEADER_SIZE + key.length);
+            record.get(value);
+        }
+
+        long maxAge = slab.getLong(offset + MAX_AGE_OFFSET);
+        return new Entry(key,
+                value,
+                new Version(slab.getLong(offset + VERSION_OFFSET)),
+                slab.getLong(offset + TIMESTAMP_OFFSET),
+                maxAge == NO_MAX_AGE ? null : maxAge);
+    }
+
+    private Version readVersion(long address)
+    {
+        return new Version(slabs.get(slabOf(address)).getLong(offsetOf(address) + VERSION_OFFSET));
+    }
+
+    private int lengthOf(long address)
+    {
+        return slabs.get(slabOf(address)).getInt(offsetOf(address) + LENGTH_OFFSET);
+    }
+
+    private int hashOf(long address)
+    {
+        return hash(readKey(slabs.get(slabOf(address)), offsetOf(address)));
+    }
+
+    private static byte[] readKey(ByteBuffer slab, int offset)
+    {
+        byte[] key = new byte[slab.getInt(offset + KEY_LENGTH_OFFSET)];
+        ByteBuffer record = slab.duplicate();
+        record.position(offset + HEADER_SIZE);
+        record.get(key);
+        return key;
+    }
+
+    private static int hash(byte[] key)
+    {
+        // spread the bits, as the slot is taken from the low ones and the tag from the high ones
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static long tagOf(int hash)
+    {
+        return (hash >>> 17) & 0x7FFF;
+    }
+
+    private static long addressOf(long tag, int slab, int offset)
+    {
+        return (tag << 48) | ((long) (slab + 1) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slabOf(long address)
+    {
+        return (int) ((address >>> 32) & 0xFFFF) - 1;
+    }
+
+    private static int offsetOf(long address)
+    {
+        return (int) address;
+    }
+}
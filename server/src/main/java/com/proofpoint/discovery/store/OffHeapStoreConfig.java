@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.configuration.Config;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
+
+import javax.validation.constraints.NotNull;
+
+public class OffHeapStoreConfig
+{
+    private boolean enabled = false;
+    private DataSize slabSize = new DataSize(16, Unit.MEGABYTE);
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("off-heap.enabled")
+    public OffHeapStoreConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @NotNull
+    public DataSize getSlabSize()
+    {
+        return slabSize;
+    }
+
+    @Config("off-heap.slab-size")
+    public OffHeapStoreConfig setSlabSize(DataSize slabSize)
+    {
+        this.slabSize = slabSize;
+        return this;
+    }
+}
@@ -15,56 +15,191 @@
  */
 package com.proofpoint.discovery.store;
 
-import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.proofpoint.log.Logger;
+import com.proofpoint.stats.TimedStat;
+import com.proofpoint.units.Duration;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.smile.SmileFactory;
 import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
 import javax.inject.Inject;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static com.google.common.base.Predicates.notNull;
+import static com.proofpoint.discovery.store.Version.Occurs.AFTER;
+import static com.proofpoint.discovery.store.Version.Occurs.SAME;
 
 public class PersistentStore
     implements LocalStore
 {
     private static final Logger log = Logger.get(PersistentStore.class);
+    private static final int ITERATION_CHUNK = 256;
+    private static final int LOCK_STRIPES = 256;
+
     private final DB db;
     private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+    private final EntryCache cache;
+    private final ConflictResolver resolver;
+    private final WriteOptions writeOptions;
+
+    // writes to a key resolve conflicts under its stripe's lock, so a read-compare-write is not interleaved with another
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    // writes queue up here while a commit is in progress, and are committed together by the next writer to get the lock
+    private final List<Write> pendingWrites = Lists.newArrayList();
+    private final Lock commitLock = new ReentrantLock();
+
+    private final TimedStat writeTime = new TimedStat();
+    private final TimedStat commitTime = new TimedStat();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedWrites = new AtomicLong();
+    private final AtomicLong staleEntries = new AtomicLong();
+    private final AtomicLong openSnapshots = new AtomicLong();
 
     @Inject
-    public PersistentStore(PersistentStoreConfig config)
+    public PersistentStore(PersistentStoreConfig config, ConflictResolver resolver)
             throws IOException
     {
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(resolver, "resolver is null");
+
+        this.resolver = resolver;
         db = Iq80DBFactory.factory.open(config.getLocation(), new Options().createIfMissing(true));
+        cache = new EntryCache(config.getCacheSize());
+        writeOptions = new WriteOptions().sync(config.isSync());
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getWriteTime()
+    {
+        return writeTime;
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getCommitTime()
+    {
+        return commitTime;
+    }
+
+    @Managed
+    public long getCommits()
+    {
+        return commits.get();
+    }
+
+    @Managed
+    public long getCommittedWrites()
+    {
+        return committedWrites.get();
+    }
+
+    @Managed
+    public long getStaleEntries()
+    {
+        return staleEntries.get();
+    }
+
+    @Managed
+    public long getOpenSnapshots()
+    {
+        return openSnapshots.get();
     }
 
     @Override
     public void put(Entry entry)
     {
-        byte[] dbEntry;
+        Preconditions.checkNotNull(entry, "entry is null");
+
+        Lock lock = lockFor(entry.getKey());
+        lock.lock();
         try {
-            dbEntry = mapper.writeValueAsBytes(entry);
+            if (isStale(entry)) {
+                return;
+            }
+            write(new Write(ImmutableList.of(entry.getKey()), Collections.singletonList(encode(entry))));
         }
-        catch (IOException e) {
-            throw Throwables.propagate(e);
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Iterable<Entry> entries)
+    {
+        Preconditions.checkNotNull(entries, "entries is null");
+
+        // resolve conflicts within the batch first, so that it holds one entry per key
+        Map<ByteBuffer, Entry> newest = Maps.newLinkedHashMap();
+        BitSet stripes = new BitSet(LOCK_STRIPES);
+        for (Entry entry : entries) {
+            ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+            Entry other = newest.get(key);
+            newest.put(key, other == null ? entry : resolver.resolve(other, entry));
+            stripes.set(stripeOf(entry.getKey()));
+        }
+
+        // stripes are always locked in ascending order, so that batches cannot deadlock
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].lock();
         }
+        try {
+            List<byte[]> keys = Lists.newArrayListWithCapacity(newest.size());
+            List<byte[]> values = Lists.newArrayListWithCapacity(newest.size());
+            for (Entry entry : newest.values()) {
+                if (!isStale(entry)) {
+                    keys.add(entry.getKey());
+                    values.add(encode(entry));
+                }
+            }
 
-        db.put(entry.getKey(), dbEntry);
+            if (!keys.isEmpty()) {
+                write(new Write(keys, values));
+            }
+        }
+        finally {
+            for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+                locks[i].unlock();
+            }
+        }
     }
 
     @Override
     public Entry get(byte[] key)
     {
         try {
-            return mapper.readValue(db.get(key), Entry.class);
+            return read(key);
         }
         catch (IOException e) {
             throw Throwables.propagate(e);
@@ -74,31 +209,358 @@ public class PersistentStore
     @Override
     public void delete(byte[] key, Version version)
     {
-        db.delete(key);
+        Preconditions.checkNotNull(key, "key is null");
+        Preconditions.checkNotNull(version, "version is null");
+
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            Entry old = readForWrite(key);
+            if (old == null) {
+                return;
+            }
+
+            Version.Occurs occurs = version.compare(old.getVersion());
+            if (occurs == AFTER || occurs == SAME) {
+                write(new Write(ImmutableList.of(key), Collections.<byte[]>singletonList(null)));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Returns the entries of a snapshot of the database taken when iteration starts. The database is
+     * read in chunks, each with its own iterator that is closed before the entries are returned, and
+     * the snapshot is released once iteration completes or the iterable is closed.
+     */
     @Override
-    public Iterable<Entry> getAll()
+    public CloseableIterable<Entry> getAll()
     {
-        return Iterables.filter(Iterables.transform(db, new Function<Map.Entry<byte[], byte[]>, Entry>()
+        return new CloseableIterable<Entry>()
         {
+            private final List<SnapshotIterator> iterators = Lists.newArrayList();
+            private boolean closed;
+
+            @Override
+            public synchronized Iterator<Entry> iterator()
+            {
+                Preconditions.checkState(!closed, "iterable is closed");
+                SnapshotIterator iterator = new SnapshotIterator();
+                iterators.add(iterator);
+                return iterator;
+            }
+
             @Override
-            public Entry apply(Map.Entry<byte[], byte[]> dbEntry)
+            public synchronized void close()
             {
-                try {
-                    return mapper.readValue(dbEntry.getValue(), Entry.class);
+                closed = true;
+                for (SnapshotIterator iterator : iterators) {
+                    iterator.close();
                 }
-                catch (IOException e) {
-                    byte[] key = dbEntry.getKey();
-                    log.error(e, "Corrupt entry " + Arrays.toString(key));
+                iterators.clear();
+            }
+        };
+    }
+
+    private Entry read(byte[] key)
+            throws IOException
+    {
+        Entry entry = cache.get(ByteBuffer.wrap(key));
+        if (entry != null) {
+            return entry;
+        }
 
-                    // delete the corrupt entry... if another node has a non-corrupt version it will be replicated
-                    db.delete(key);
+        long modifications = cache.getModifications();
+        byte[] dbEntry = db.get(key);
+        if (dbEntry == null) {
+            return null;
+        }
 
-                    // null if filtered below
-                    return null;
+        entry = mapper.readValue(dbEntry, Entry.class);
+        cache.putIfUnmodified(entry, modifications);
+        return entry;
+    }
+
+    /**
+     * Returns the current entry for the key, or null if there is none or it is corrupt, in which case
+     * the write replaces it.
+     */
+    private Entry readForWrite(byte[] key)
+    {
+        try {
+            return read(key);
+        }
+        catch (IOException e) {
+            log.error(e, "Corrupt entry " + Arrays.toString(key));
+            return null;
+        }
+    }
+
+    // called with the key's lock held
+    private boolean isStale(Entry entry)
+    {
+        Entry old = readForWrite(entry.getKey());
+        if (old != null && resolver.resolve(old, entry) == old) {
+            staleEntries.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private Lock lockFor(byte[] key)
+    {
+        return locks[stripeOf(key)];
+    }
+
+    private static int stripeOf(byte[] key)
+    {
+        int hash = Arrays.hashCode(key);
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (LOCK_STRIPES - 1);
+    }
+
+    private void deleteCorrupt(byte[] key, byte[] dbEntry)
+    {
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            // unless it has been rewritten since
+            if (Arrays.equals(db.get(key), dbEntry)) {
+                write(new Write(ImmutableList.of(key), Collections.<byte[]>singletonList(null)));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] encode(Entry entry)
+    {
+        try {
+            return mapper.writeValueAsBytes(entry);
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Queues the write and waits for it to be committed, committing it along with any other queued
+     * writes if no commit in progress picks it up.
+     */
+    private void write(Write write)
+    {
+        long start = System.nanoTime();
+
+        synchronized (pendingWrites) {
+            pendingWrites.add(write);
+        }
+
+        commitLock.lock();
+        try {
+            if (!write.committed) {
+                commitPending();
+            }
+        }
+        finally {
+            commitLock.unlock();
+        }
+
+        writeTime.addValue(Duration.nanosSince(start));
+        if (write.failure != null) {
+            throw write.failure;
+        }
+    }
+
+    // called with commitLock held
+    private void commitPending()
+    {
+        List<Write> writes;
+        synchronized (pendingWrites) {
+            writes = ImmutableList.copyOf(pendingWrites);
+            pendingWrites.clear();
+        }
+
+        long start = System.nanoTime();
+        RuntimeException failure = null;
+        WriteBatch batch = db.createWriteBatch();
+        try {
+            for (Write write : writes) {
+                for (int i = 0; i < write.keys.size(); i++) {
+                    byte[] value = write.values.get(i);
+                    if (value == null) {
+                        batch.delete(write.keys.get(i));
+                    }
+                    else {
+                        batch.put(write.keys.get(i), value);
+                    }
                 }
             }
-        }), notNull());
+            db.write(batch, writeOptions);
+        }
+        catch (RuntimeException e) {
+            failure = e;
+        }
+        finally {
+            closeQuietly(batch);
+        }
+
+        for (Write write : writes) {
+            for (byte[] key : write.keys) {
+                cache.invalidate(ByteBuffer.wrap(key));
+            }
+            write.failure = failure;
+            write.committed = true;
+        }
+
+        commitTime.addValue(Duration.nanosSince(start));
+        commits.incrementAndGet();
+        committedWrites.addAndGet(writes.size());
+    }
+
+    private Entry decode(byte[] key, byte[] dbEntry, long modifications)
+    {
+        // the cache matches the snapshot as long as nothing was written since it was taken
+        if (cache.getModifications() == modifications) {
+            Entry entry = cache.get(ByteBuffer.wrap(key));
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        Entry entry;
+        try {
+            entry = mapper.readValue(dbEntry, Entry.class);
+        }
+        catch (IOException e) {
+            log.error(e, "Corrupt entry " + Arrays.toString(key));
+
+            // delete the corrupt entry... if another node has a non-corrupt version it will be replicated
+            deleteCorrupt(key, dbEntry);
+
+            // skipped by the caller
+            return null;
+        }
+
+        cache.putIfUnmodified(entry, modifications);
+        return entry;
+    }
+
+    private class SnapshotIterator
+            extends AbstractIterator<Entry>
+    {
+        // the snapshot is taken on the first read, so an iterator that is never advanced holds nothing
+        private long modifications;
+        private Snapshot snapshot;
+        private boolean closed;
+
+        private byte[] lastKey;
+        private boolean exhausted;
+        private Iterator<Map.Entry<byte[], byte[]>> chunk = Iterators.emptyIterator();
+
+        @Override
+        protected synchronized Entry computeNext()
+        {
+            if (closed) {
+                return endOfData();
+            }
+            if (snapshot == null) {
+                // read before taking the snapshot, so that any write the snapshot might miss shows as a modification
+                modifications = cache.getModifications();
+                snapshot = db.getSnapshot();
+                openSnapshots.incrementAndGet();
+            }
+
+            while (true) {
+                while (chunk.hasNext()) {
+                    Map.Entry<byte[], byte[]> dbEntry = chunk.next();
+                    Entry entry = decode(dbEntry.getKey(), dbEntry.getValue(), modifications);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+
+                if (exhausted) {
+                    close();
+                    return endOfData();
+                }
+                chunk = readChunk();
+            }
+        }
+
+        private Iterator<Map.Entry<byte[], byte[]>> readChunk()
+        {
+            List<Map.Entry<byte[], byte[]>> entries = Lists.newArrayListWithCapacity(ITERATION_CHUNK);
+
+            DBIterator iterator = db.iterator(new ReadOptions().snapshot(snapshot));
+            try {
+                if (lastKey == null) {
+                    iterator.seekToFirst();
+                }
+                else {
+                    iterator.seek(lastKey);
+                    if (iterator.hasNext() && Arrays.equals(iterator.peekNext().getKey(), lastKey)) {
+                        iterator.next();
+                    }
+                }
+
+                while (entries.size() < ITERATION_CHUNK && iterator.hasNext()) {
+                    entries.add(iterator.next());
+                }
+                exhausted = !iterator.hasNext();
+            }
+            finally {
+                closeQuietly(iterator);
+            }
+
+            if (!entries.isEmpty()) {
+                lastKey = entries.get(entries.size() - 1).getKey();
+            }
+            return entries.iterator();
+        }
+
+        public synchronized void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunk = Iterators.emptyIterator();
+            if (snapshot != null) {
+                closeQuietly(snapshot);
+                openSnapshots.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Write
+    {
+        private final List<byte[]> keys;
+
+        // a null value deletes the key
+        private final List<byte[]> values;
+
+        // guarded by commitLock
+        private boolean committed;
+        private RuntimeException failure;
+
+        private Write(List<byte[]> keys, List<byte[]> values)
+        {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            log.warn(e, "Error closing %s", closeable);
+        }
     }
 }
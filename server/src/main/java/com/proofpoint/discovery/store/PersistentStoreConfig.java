@@ -17,12 +17,15 @@ package com.proofpoint.discovery.store;
 
 import com.proofpoint.configuration.Config;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 
 public class PersistentStoreConfig
 {
     private File location = new File("db");
+    private int cacheSize = 10000;
+    private boolean sync = false;
 
     @NotNull
     public File getLocation()
@@ -36,4 +39,29 @@ public class PersistentStoreConfig
         this.location = location;
         return this;
     }
+
+    @Min(0)
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    @Config("db.cache-size")
+    public PersistentStoreConfig setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public boolean isSync()
+    {
+        return sync;
+    }
+
+    @Config("db.sync")
+    public PersistentStoreConfig setSync(boolean sync)
+    {
+        this.sync = sync;
+        return this;
+    }
 }
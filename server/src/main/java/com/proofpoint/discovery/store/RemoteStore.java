@@ -15,7 +15,12 @@
  */
 package com.proofpoint.discovery.store;
 
+import java.util.Collection;
+
 public interface RemoteStore
 {
     void put(Entry entry);
+    void putAll(Collection<Entry> entries);
+    void renew(Lease lease);
+    void renewAll(Collection<Lease> leases);
 }
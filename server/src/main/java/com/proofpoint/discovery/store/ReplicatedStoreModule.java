@@ -27,7 +27,6 @@ import com.proofpoint.discovery.client.ServiceSelector;
 import com.proofpoint.http.client.HttpClient;
 import com.proofpoint.http.client.HttpClientModule;
 import com.proofpoint.node.NodeInfo;
-import org.joda.time.DateTime;
 import org.weakref.jmx.MBeanExporter;
 
 import javax.annotation.PreDestroy;
@@ -42,8 +41,8 @@ import static org.weakref.jmx.ObjectNames.generatedNameOf;
 import static org.weakref.jmx.guice.MBeanModule.newExporter;
 
 /**
- * Expects a LocalStore to be bound elsewhere.
- * Provides a DistributedStore with the specified annotation.
+ * Provides a DistributedStore with the specified annotation, backed by a LocalStore of the given class
+ * or, if no class is given, by the LocalStore bound elsewhere with {@code @Named(name)}.
  */
 public class ReplicatedStoreModule
     implements Module
@@ -52,6 +51,11 @@ public class ReplicatedStoreModule
     private final Class<? extends Annotation> annotation;
     private final Class<? extends LocalStore> localStoreClass;
 
+    public ReplicatedStoreModule(String name, Class<? extends Annotation> annotation)
+    {
+        this(name, annotation, null);
+    }
+
     public ReplicatedStoreModule(String name, Class<? extends Annotation> annotation, Class<? extends LocalStore> localStoreClass)
     {
         this.name = name;
@@ -67,22 +71,30 @@ public class ReplicatedStoreModule
 
         // global
         binder.bind(StoreResource.class).in(Scopes.SINGLETON);
-        binder.bind(DateTime.class).toProvider(RealTimeProvider.class).in(Scopes.NO_SCOPE);;
+        binder.bind(Clock.class).to(SystemClock.class).in(Scopes.SINGLETON);
+        binder.bind(SystemClock.class).in(Scopes.SINGLETON);
         binder.bind(SmileMapper.class).in(Scopes.SINGLETON);
         binder.bind(ConflictResolver.class).in(Scopes.SINGLETON);
 
         // per store
         Key<HttpClient> httpClientKey = Key.get(HttpClient.class, annotation);
         Key<LocalStore> localStoreKey = Key.get(LocalStore.class, annotation);
+        Key<LocalStore> backingStoreKey = Key.get(LocalStore.class, named(name));
+        Key<DistributedStore> distributedStoreKey = Key.get(DistributedStore.class, annotation);
         Key<StoreConfig> storeConfigKey = Key.get(StoreConfig.class, annotation);
         Key<RemoteStore> remoteStoreKey = Key.get(RemoteStore.class, annotation);
 
         bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(StoreConfig.class);
         binder.install(new HttpClientModule(name, annotation));
-        binder.bind(DistributedStore.class).annotatedWith(annotation).toProvider(new DistributedStoreProvider(name, localStoreKey, storeConfigKey, remoteStoreKey)).in(Scopes.SINGLETON);
+        binder.bind(DistributedStore.class).annotatedWith(annotation).toProvider(new DistributedStoreProvider(name, backingStoreKey, storeConfigKey, remoteStoreKey)).in(Scopes.SINGLETON);
         binder.bind(Replicator.class).annotatedWith(annotation).toProvider(new ReplicatorProvider(name, localStoreKey, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
         binder.bind(HttpRemoteStore.class).annotatedWith(annotation).toProvider(new RemoteHttpStoreProvider(name, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
-        binder.bind(LocalStore.class).annotatedWith(annotation).to(localStoreClass).in(Scopes.SINGLETON);
+        if (localStoreClass != null) {
+            binder.bind(backingStoreKey).to(localStoreClass).in(Scopes.SINGLETON);
+        }
+
+        // replication writes go through the distributed store's view of the local store so that its listeners see them
+        binder.bind(localStoreKey).toProvider(new LocalStoreProvider(distributedStoreKey)).in(Scopes.SINGLETON);
 
         binder.bind(RemoteStore.class).annotatedWith(annotation).to(Key.get(HttpRemoteStore.class, annotation));
 
@@ -128,7 +140,7 @@ public class ReplicatedStoreModule
                 HttpClient httpClient = injector.getInstance(httpClientKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
 
-                replicator = new Replicator(name, nodeInfo, serviceSelector, httpClient, localStore, storeConfig);
+                replicator = new Replicator(name, nodeInfo, serviceSelector, httpClient, localStore, storeConfig, injector.getInstance(Clock.class));
                 replicator.start();
             }
 
@@ -190,7 +202,7 @@ public class ReplicatedStoreModule
                 HttpClient httpClient = injector.getInstance(httpClientKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
 
-                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, storeConfig, httpClient, mbeanExporter);
+                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, storeConfig, httpClient, mbeanExporter, injector.getInstance(Clock.class));
                 remoteStore.start();
             }
 
@@ -230,6 +242,31 @@ public class ReplicatedStoreModule
         }
     }
 
+    private static class LocalStoreProvider
+            implements Provider<LocalStore>
+    {
+        private final Key<DistributedStore> distributedStoreKey;
+
+        private Injector injector;
+
+        private LocalStoreProvider(Key<DistributedStore> distributedStoreKey)
+        {
+            this.distributedStoreKey = distributedStoreKey;
+        }
+
+        @Override
+        public LocalStore get()
+        {
+            return injector.getInstance(distributedStoreKey).getLocalStore();
+        }
+
+        @Inject
+        public void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+    }
+
     private static class DistributedStoreProvider
             implements Provider<DistributedStore>
     {
@@ -239,7 +276,7 @@ public class ReplicatedStoreModule
         private final Key<? extends RemoteStore> remoteStoreKey;
 
         private Injector injector;
-        private Provider<DateTime> dateTimeProvider;
+        private Clock clock;
         private DistributedStore store;
 
         public DistributedStoreProvider(String name,
@@ -261,7 +298,7 @@ public class ReplicatedStoreModule
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
                 RemoteStore remoteStore = injector.getInstance(remoteStoreKey);
 
-                store = new DistributedStore(name, localStore, remoteStore, storeConfig, dateTimeProvider);
+                store = new DistributedStore(name, localStore, remoteStore, storeConfig, clock);
                 store.start();
             }
 
@@ -283,9 +320,9 @@ public class ReplicatedStoreModule
         }
 
         @Inject
-        public void setDateTimeProvider(Provider<DateTime> dateTimeProvider)
+        public void setClock(Clock clock)
         {
-            this.dateTimeProvider = dateTimeProvider;
+            this.clock = clock;
         }
     }
 
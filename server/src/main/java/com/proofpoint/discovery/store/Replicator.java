@@ -53,6 +53,7 @@ public class Replicator
     private final HttpClient httpClient;
     private final LocalStore localStore;
     private final Duration replicationInterval;
+    private final Clock clock;
 
     private ScheduledFuture<?> future;
     private ScheduledExecutorService executor;
@@ -66,16 +67,17 @@ public class Replicator
             ServiceSelector selector,
             HttpClient httpClient,
             LocalStore localStore,
-            StoreConfig config)
+            StoreConfig config,
+            Clock clock)
     {
         this.name = name;
         this.node = node;
         this.selector = selector;
         this.httpClient = httpClient;
         this.localStore = localStore;
+        this.clock = clock;
 
         this.replicationInterval = config.getReplicationInterval();
-
     }
 
     @PostConstruct
@@ -158,9 +160,7 @@ public class Replicator
                         if (response.getStatusCode() == 200) {
                             try {
                                 List<Entry> entries = mapper.readValue(response.getInputStream(), new TypeReference<List<Entry>>() {});
-                                for (Entry entry : entries) {
-                                    localStore.put(entry);
-                                }
+                                localStore.putAll(entries);
                             }
                             catch (EOFException e) {
                                 // ignore
@@ -179,6 +179,6 @@ public class Replicator
             }
         }
 
-        lastReplicationTimestamp.set(System.currentTimeMillis());
+        lastReplicationTimestamp.set(clock.currentTimeMillis());
     }
 }
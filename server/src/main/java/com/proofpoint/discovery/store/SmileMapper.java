@@ -57,6 +57,9 @@ import java.util.Set;
 public class SmileMapper
         implements MessageBodyReader<Object>, MessageBodyWriter<Object>
 {
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE_TYPE = new MediaType("application", "x-jackson-smile");
+
     public static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
 
     /**
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Periodically writes the entries of a local store to a file, and loads them back on startup, so that
+ * a restarted node does not start out empty.
+ * <p/>
+ * The file holds a header, the entries with their original versions, timestamps and max ages, an end
+ * marker and a CRC32 of everything before it. It is written to a temporary file that then replaces
+ * the previous checkpoint, so a crash while writing leaves the previous checkpoint in place.
+ */
+public class StoreCheckpointer
+{
+    private static final Logger log = Logger.get(StoreCheckpointer.class);
+
+    private static final int MAGIC = 0x44534350; // "DSCP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int END_OF_ENTRIES = -1;
+    private static final int NO_VALUE = -1;
+    private static final long NO_MAX_AGE = -1;
+
+    private final String name;
+    private final LocalStore localStore;
+    private final File location;
+    private final Duration interval;
+    private final Clock clock;
+
+    private final AtomicLong lastCheckpointTimestamp = new AtomicLong();
+    private final AtomicLong lastCheckpointEntries = new AtomicLong();
+    private final AtomicLong loadedEntries = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    public StoreCheckpointer(String name, LocalStore localStore, StoreCheckpointConfig config, Clock clock)
+    {
+        Preconditions.checkNotNull(name, "name is null");
+        Preconditions.checkNotNull(localStore, "localStore is null");
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(clock, "clock is null");
+
+        this.name = name;
+        this.localStore = localStore;
+        this.location = config.getLocation();
+        this.interval = config.getInterval();
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("checkpoint-" + name + "-%d").setDaemon(true).build());
+            executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        checkpoint();
+                    }
+                    catch (Throwable t) {
+                        log.warn(t, "Error checkpointing %s store", name);
+                    }
+                }
+            }, (long) interval.toMillis(), (long) interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic checkpoints and writes a last one.
+     */
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        try {
+            checkpoint();
+        }
+        catch (IOException e) {
+            log.warn(e, "Error checkpointing %s store", name);
+        }
+    }
+
+    @Managed
+    public long getLastCheckpointTimestamp()
+    {
+        return lastCheckpointTimestamp.get();
+    }
+
+    @Managed
+    public long getLastCheckpointEntries()
+    {
+        return lastCheckpointEntries.get();
+    }
+
+    @Managed
+    public long getLoadedEntries()
+    {
+        return loadedEntries.get();
+    }
+
+    /**
+     * Puts the entries of the checkpoint that have not expired in the local store. A missing,
+     * truncated or corrupt checkpoint loads nothing.
+     */
+    public void load()
+    {
+        if (!location.exists()) {
+            return;
+        }
+
+        List<Entry> entries;
+        try {
+            entries = read();
+        }
+        catch (IOException e) {
+            log.warn(e, "Ignoring unreadable checkpoint %s of %s store", location, name);
+            return;
+        }
+
+        long now = clock.currentTimeMillis();
+        List<Entry> live = Lists.newArrayListWithCapacity(entries.size());
+        for (Entry entry : entries) {
+            if (entry.getMaxAgeInMs() == null || now - entry.getTimestamp() <= entry.getMaxAgeInMs()) {
+                live.add(entry);
+            }
+        }
+
+        localStore.putAll(live);
+        loadedEntries.set(live.size());
+        log.info("Loaded %s of %s entries of %s store from checkpoint %s", live.size(), entries.size(), name, location);
+    }
+
+    public synchronized void checkpoint()
+            throws IOException
+    {
+        File temp = new File(location.getPath() + ".tmp");
+
+        long count = 0;
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            DataOutputStream out = new DataOutputStream(checkedOut);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            CloseableIterable<Entry> entries = localStore.getAll();
+            try {
+                for (Entry entry : entries) {
+                    writeEntry(out, entry);
+                    count++;
+                }
+            }
+            finally {
+                entries.close();
+            }
+            out.writeInt(END_OF_ENTRIES);
+            out.flush();
+
+            new DataOutputStream(fileOut).writeLong(checkedOut.getChecksum().getValue());
+            fileOut.getFD().sync();
+        }
+        finally {
+            fileOut.close();
+        }
+
+        if (!temp.renameTo(location)) {
+            throw new IOException("Cannot replace checkpoint " + location + " with " + temp);
+        }
+
+        lastCheckpointTimestamp.set(clock.currentTimeMillis());
+        lastCheckpointEntries.set(count);
+    }
+
+    private List<Entry> read()
+            throws IOException
+    {
+        List<Entry> entries = Lists.newArrayList();
+
+        FileInputStream fileIn = new FileInputStream(location);
+        try {
+            BufferedInputStream bufferedIn = new BufferedInputStream(fileIn);
+            CheckedInputStream checkedIn = new CheckedInputStream(bufferedIn, new CRC32());
+            DataInputStream in = new DataInputStream(checkedIn);
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint");
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported checkpoint format " + formatVersion);
+            }
+
+            while (true) {
+                int keyLength = in.readInt();
+                if (keyLength == END_OF_ENTRIES) {
+                    break;
+                }
+                entries.add(readEntry(in, keyLength, location.length()));
+            }
+
+            long checksum = checkedIn.getChecksum().getValue();
+            if (new DataInputStream(bufferedIn).readLong() != checksum) {
+                throw new IOException("Checksum mismatch");
+            }
+        }
+        finally {
+            fileIn.close();
+        }
+
+        return entries;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry)
+            throws IOException
+    {
+        out.writeInt(entry.getKey().length);
+        out.write(entry.getKey());
+        if (entry.getValue() == null) {
+            out.writeInt(NO_VALUE);
+        }
+        else {
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        out.writeLong(entry.getVersion().getSequence());
+        out.writeLong(entry.getTimestamp());
+        out.writeLong(entry.getMaxAgeInMs() == null ? NO_MAX_AGE : entry.getMaxAgeInMs());
+    }
+
+    // lengths are checked against the size of the file, so that corruption cannot cause huge allocations
+    private static Entry readEntry(DataInputStream in, int keyLength, long fileLength)
+            throws IOException
+    {
+        if (keyLength < 0 || keyLength > fileLength) {
+            throw new IOException("Corrupt checkpoint");
+        }
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+
+        byte[] value = null;
+        int valueLength = in.readInt();
+        if (valueLength != NO_VALUE) {
+            if (valueLength < 0 || valueLength > fileLength) {
+                throw new IOException("Corrupt checkpoint");
+            }
+            value = new byte[valueLength];
+            in.readFully(value);
+        }
+
+        Version version = new Version(in.readLong());
+        long timestamp = in.readLong();
+        long maxAge = in.readLong();
+
+        if (maxAge != NO_MAX_AGE && maxAge <= 0) {
+            throw new IOException("Corrupt checkpoint");
+        }
+        return new Entry(key, value, version, timestamp, maxAge == NO_MAX_AGE ? null : maxAge);
+    }
+}
@@ -27,6 +27,10 @@ public class StoreConfig
 {
     private Duration tombstoneMaxAge = new Duration(1, TimeUnit.DAYS);
     private Duration garbageCollectionInterval = new Duration(1, TimeUnit.HOURS);
+    private Duration garbageCollectionSliceInterval = new Duration(100, TimeUnit.MILLISECONDS);
+    private int garbageCollectionSliceMaxEntries = 10000;
+    private Duration garbageCollectionSliceMaxTime = new Duration(10, TimeUnit.MILLISECONDS);
+    private Duration expirationTick = new Duration(100, TimeUnit.MILLISECONDS);
     private int maxBatchSize = 1000;
     private int queueSize = 1000;
     private Duration remoteUpdateInterval = new Duration(5, TimeUnit.SECONDS);
@@ -58,6 +62,61 @@ public class StoreConfig
         return this;
     }
 
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getGarbageCollectionSliceInterval()
+    {
+        return garbageCollectionSliceInterval;
+    }
+
+    @Config("store.gc-slice-interval")
+    public StoreConfig setGarbageCollectionSliceInterval(Duration garbageCollectionSliceInterval)
+    {
+        this.garbageCollectionSliceInterval = garbageCollectionSliceInterval;
+        return this;
+    }
+
+    @Min(1)
+    public int getGarbageCollectionSliceMaxEntries()
+    {
+        return garbageCollectionSliceMaxEntries;
+    }
+
+    @Config("store.gc-slice-max-entries")
+    public StoreConfig setGarbageCollectionSliceMaxEntries(int garbageCollectionSliceMaxEntries)
+    {
+        this.garbageCollectionSliceMaxEntries = garbageCollectionSliceMaxEntries;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getGarbageCollectionSliceMaxTime()
+    {
+        return garbageCollectionSliceMaxTime;
+    }
+
+    @Config("store.gc-slice-max-time")
+    public StoreConfig setGarbageCollectionSliceMaxTime(Duration garbageCollectionSliceMaxTime)
+    {
+        this.garbageCollectionSliceMaxTime = garbageCollectionSliceMaxTime;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getExpirationTick()
+    {
+        return expirationTick;
+    }
+
+    @Config("store.expiration-tick")
+    public StoreConfig setExpirationTick(Duration expirationTick)
+    {
+        this.expirationTick = expirationTick;
+        return this;
+    }
+
     @Min(1)
     public int getMaxBatchSize()
     {
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+/**
+ * Receives every write applied to a {@link DistributedStore}'s local store, whether it
+ * originated locally, was pushed by a peer or was pulled by the {@link Replicator}.
+ *
+ * Entries are reported as they were offered to the local store, before conflict resolution,
+ * so listeners that keep derived state must apply the same version rules as the store.
+ */
+public interface StoreListener
+{
+    /**
+     * Called after an entry (or a tombstone, if its value is null) has been offered to the local store.
+     */
+    void entryPut(Entry entry);
+
+    /**
+     * Called after the local store has been asked to drop the entry for the key, if its version
+     * is the same as or older than the specified version.
+     */
+    void entryDeleted(byte[] key, Version version);
+}
@@ -17,7 +17,9 @@ package com.proofpoint.discovery.store;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.proofpoint.units.Duration;
 
@@ -40,11 +42,13 @@ public class StoreResource
 {
     private final Map<String, LocalStore> localStores;
     private final Map<String, Duration> tombstoneMaxAges;
+    private final Clock clock;
 
     @Inject
-    public StoreResource(Map<String, LocalStore> localStores, Map<String, StoreConfig> configs)
+    public StoreResource(Map<String, LocalStore> localStores, Map<String, StoreConfig> configs, Clock clock)
     {
         this.localStores = ImmutableMap.copyOf(localStores);
+        this.clock = clock;
         this.tombstoneMaxAges = ImmutableMap.copyOf(Maps.transformValues(configs, new Function<StoreConfig, Duration>()
         {
             @Override
@@ -61,7 +65,8 @@ public class StoreResource
     {
         LocalStore store = localStores.get(storeName);
 
-        Entry entry = new Entry(key.getBytes(Charsets.UTF_8), value, new Version(System.currentTimeMillis()), System.currentTimeMillis(), null); // TODO: version
+        long now = clock.currentTimeMillis();
+        Entry entry = new Entry(key.getBytes(Charsets.UTF_8), value, new Version(now), now, null); // TODO: version
         store.put(entry);
     }
     
@@ -75,11 +80,38 @@ public class StoreResource
             return Response.status(Status.NOT_FOUND).build();
         }
 
+        long now = clock.coarseTimeMillis();
+        List<Entry> live = Lists.newArrayListWithCapacity(entries.size());
         for (Entry entry : entries) {
-            if (!isExpired(tombstoneMaxAge, entry)) {
-                store.put(entry);
+            if (!isExpired(tombstoneMaxAge, entry, now)) {
+                live.add(entry);
             }
         }
+        store.putAll(live);
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("leases")
+    @Consumes({"application/x-jackson-smile", "application/json"})
+    public Response renewMultipleEntries(@PathParam("store") String storeName, List<Lease> leases)
+    {
+        LocalStore store = localStores.get(storeName);
+        if (store == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+
+        long now = clock.coarseTimeMillis();
+        List<Entry> renewed = Lists.newArrayListWithCapacity(leases.size());
+        for (Lease lease : leases) {
+            if (now - lease.getTimestamp() <= lease.getMaxAgeInMs()) {
+                Entry entry = lease.renew(store.get(lease.getKey()));
+                if (entry != null) {
+                    renewed.add(entry);
+                }
+            }
+        }
+        store.putAll(renewed);
         return Response.noContent().build();
     }
 
@@ -91,12 +123,20 @@ public class StoreResource
         if (store == null) {
             return Response.status(Status.NOT_FOUND).build();
         }
-        return Response.ok(store.getAll()).build();
+
+        // copied before responding, since the entity is written after this returns and the entries can hold a snapshot open
+        CloseableIterable<Entry> entries = store.getAll();
+        try {
+            return Response.ok(ImmutableList.copyOf(entries)).build();
+        }
+        finally {
+            entries.close();
+        }
     }
 
-    private boolean isExpired(Duration tombstoneMaxAge, Entry entry)
+    private static boolean isExpired(Duration tombstoneMaxAge, Entry entry, long now)
     {
-        long ageInMs = System.currentTimeMillis() - entry.getTimestamp();
+        long ageInMs = now - entry.getTimestamp();
 
         return entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis() ||
                 entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs();
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The system clock. Once started, the coarse time is a cached value refreshed in the background;
+ * until then it is read from the system like the current time.
+ */
+public class SystemClock
+        implements Clock
+{
+    private static final long RESOLUTION_MILLIS = 10;
+
+    private ScheduledExecutorService executor;
+    private volatile long coarseTime;
+    private volatile boolean started;
+
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (executor == null) {
+            coarseTime = System.currentTimeMillis();
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("system-clock-%d").setDaemon(true).build());
+            executor.scheduleAtFixedRate(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    coarseTime = System.currentTimeMillis();
+                }
+            }, RESOLUTION_MILLIS, RESOLUTION_MILLIS, TimeUnit.MILLISECONDS);
+            started = true;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (executor != null) {
+            started = false;
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long coarseTimeMillis()
+    {
+        if (!started) {
+            return System.currentTimeMillis();
+        }
+        return coarseTime;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map keyed by UUIDs held as pairs of longs, for keys that are the text of a UUID. Lookups
+ * parse the key in place, so they neither allocate nor hash the text, and no key object is kept per
+ * entry.
+ * <p/>
+ * The map is split in segments. Reads take no lock; writes lock their segment. Like {@link
+ * java.util.concurrent.ConcurrentMap}, values are changed with compare-and-set style operations.
+ */
+class UuidKeyMap<V>
+{
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private static final int UUID_LENGTH = 36;
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    UuidKeyMap()
+    {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<V>();
+        }
+    }
+
+    /**
+     * Returns true if the key is the text of a UUID as produced by {@link java.util.UUID#toString()}.
+     * Only the canonical, lower case form is accepted, so that distinct keys never map to the same UUID.
+     */
+    public static boolean isUuid(byte[] key)
+    {
+        if (key.length != UUID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            byte b = key[i];
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (b != '-') {
+                    return false;
+                }
+            }
+            else if (!(b >= '0' && b <= '9' || b >= 'a' && b <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long mostSignificantBits(byte[] key)
+    {
+        return parseHex(key, 0, 8, 9, 13, 14, 18);
+    }
+
+    public static long leastSignificantBits(byte[] key)
+    {
+        return parseHex(key, 19, 23, 24, 36, 0, 0);
+    }
+
+    public V get(long mostSignificantBits, long leastSignificantBits)
+    {
+        int hash = hash(mostSignificantBits, leastSignificantBits);
+        return segmentFor(hash).get(mostSignificantBits, leastSignificantBits, hash);
+    }
+
+    /**
+     * Sets the value for the key to update if it currently is expected, where null stands for no value.
+     * Returns false, changing nothing, if it is not.
+     */
+    public boolean replace(long mostSignificantBits, long leastSignificantBits, V expected, V update)
+    {
+        int hash = hash(mostSignificantBits, leastSignificantBits);
+        return segmentFor(hash).replace(mostSignificantBits, leastSignificantBits, hash, expected, update);
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the values, weakly consistent like those of concurrent collections.
+     */
+    public Iterable<V> values()
+    {
+        return new Iterable<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                Iterator<V>[] iterators = new Iterator[SEGMENTS];
+                for (int i = 0; i < SEGMENTS; i++) {
+                    iterators[i] = segments[i].table.values();
+                }
+                return Iterators.concat(iterators);
+            }
+        };
+    }
+
+    private Segment<V> segmentFor(int hash)
+    {
+        return segments[(hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    private static int hash(long mostSignificantBits, long leastSignificantBits)
+    {
+        long hash = mostSignificantBits * 31 + leastSignificantBits;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    private static long parseHex(byte[] key, int start1, int end1, int start2, int end2, int start3, int end3)
+    {
+        long value = 0;
+        value = parseHex(key, start1, end1, value);
+        value = parseHex(key, start2, end2, value);
+        return parseHex(key, start3, end3, value);
+    }
+
+    private static long parseHex(byte[] key, int start, int end, long value)
+    {
+        for (int i = start; i < end; i++) {
+            byte b = key[i];
+            value = (value << 4) | (b <= '9' ? b - '0' : b - 'a' + 10);
+        }
+        return value;
+    }
+
+    private static class Segment<V>
+    {
+        private volatile Table<V> table = new Table<V>(INITIAL_SEGMENT_CAPACITY);
+
+        // guarded by this
+        private int usedSlots;
+        private volatile int size;
+
+        public V get(long mostSignificantBits, long leastSignificantBits, int hash)
+        {
+            Table<V> current = table;
+            int slot = current.find(mostSignificantBits, leastSignificantBits, hash);
+            if (slot < 0) {
+                return null;
+            }
+            return current.values.get(slot);
+        }
+
+        public synchronized boolean replace(long mostSignificantBits, long leastSignificantBits, int hash, V expected, V update)
+        {
+            Table<V> current = table;
+            int slot = current.find(mostSignificantBits, leastSignificantBits, hash);
+            V old = slot < 0 ? null : current.values.get(slot);
+            if (!Objects.equal(old, expected)) {
+                return false;
+            }
+            if (old == update) {
+                return true;
+            }
+
+            if (slot < 0) {
+                if (usedSlots + 1 > current.capacity() / 4 * 3) {
+                    // grow only if live values need the room, otherwise just drop the removed keys
+                    current = resize(size + 1 > current.capacity() / 2 ? current.capacity() * 2 : current.capacity());
+                    slot = current.find(mostSignificantBits, leastSignificantBits, hash);
+                }
+                slot = -(slot + 1);
+                current.claim(slot, mostSignificantBits, leastSignificantBits);
+                usedSlots++;
+            }
+
+            // removing leaves the key claiming its slot, so a concurrent reader never sees another key there
+            current.values.set(slot, update);
+            if (old == null) {
+                size++;
+            }
+            else if (update == null) {
+                size--;
+            }
+            return true;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        private Table<V> resize(int capacity)
+        {
+            Table<V> old = table;
+            Table<V> resized = new Table<V>(capacity);
+            usedSlots = 0;
+            for (int slot = 0; slot < old.capacity(); slot++) {
+                V value = old.values.get(slot);
+                if (value != null) {
+                    long mostSignificantBits = old.keys[slot * 2];
+                    long leastSignificantBits = old.keys[slot * 2 + 1];
+                    int newSlot = -(resized.find(mostSignificantBits, leastSignificantBits, hash(mostSignificantBits, leastSignificantBits)) + 1);
+                    resized.claim(newSlot, mostSignificantBits, leastSignificantBits);
+                    resized.values.set(newSlot, value);
+                    usedSlots++;
+                }
+            }
+            table = resized;
+            return resized;
+        }
+    }
+
+    /**
+     * An open-addressing table. A slot, once claimed by a key, keeps it for the life of the table.
+     */
+    private static class Table<V>
+    {
+        // the keys of a slot are written before it is marked claimed, which publishes them to readers
+        private final long[] keys;
+        private final AtomicIntegerArray claimed;
+        private final AtomicReferenceArray<V> values;
+        private final int mask;
+
+        private Table(int capacity)
+        {
+            Preconditions.checkArgument(Integer.bitCount(capacity) == 1, "capacity must be a power of 2");
+
+            keys = new long[capacity * 2];
+            claimed = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<V>(capacity);
+            mask = capacity - 1;
+        }
+
+        public int capacity()
+        {
+            return mask + 1;
+        }
+
+        /**
+         * Returns the slot claimed by the key, or -(slot + 1) for the free slot where it would go.
+         */
+        public int find(long mostSignificantBits, long leastSignificantBits, int hash)
+        {
+            int slot = hash & mask;
+            while (claimed.get(slot) != 0) {
+                if (keys[slot * 2] == mostSignificantBits && keys[slot * 2 + 1] == leastSignificantBits) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -(slot + 1);
+        }
+
+        public void claim(int slot, long mostSignificantBits, long leastSignificantBits)
+        {
+            keys[slot * 2] = mostSignificantBits;
+            keys[slot * 2 + 1] = leastSignificantBits;
+            claimed.set(slot, 1);
+        }
+
+        public Iterator<V> values()
+        {
+            return new AbstractIterator<V>()
+            {
+                private int slot;
+
+                @Override
+                protected V computeNext()
+                {
+                    while (slot <= mask) {
+                        V value = values.get(slot++);
+                        if (value != null) {
+                            return value;
+                        }
+                    }
+                    return endOfData();
+                }
+            };
+        }
+    }
+}
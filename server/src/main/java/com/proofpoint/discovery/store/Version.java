@@ -21,7 +21,7 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import javax.annotation.concurrent.Immutable;
 
 @Immutable
-class Version
+public class Version
 {
     private final long sequence;
 
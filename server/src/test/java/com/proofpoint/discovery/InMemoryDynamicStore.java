@@ -16,6 +16,8 @@
 package com.proofpoint.discovery;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.proofpoint.units.Duration;
@@ -24,9 +26,12 @@ import org.joda.time.DateTime;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.google.common.base.Predicates.and;
 import static com.google.common.collect.Collections2.transform;
@@ -40,6 +45,7 @@ public class InMemoryDynamicStore
         implements DynamicStore
 {
     private final Map<Id<Node>, Entry> descriptors = Maps.newHashMap();
+    private final List<ServiceChangeListener> listeners = new CopyOnWriteArrayList<ServiceChangeListener>();
     private final Duration maxAge;
     private final Provider<DateTime> currentTime;
 
@@ -51,7 +57,7 @@ public class InMemoryDynamicStore
     }
 
     @Override
-    public synchronized boolean put(Id<Node> nodeId, DynamicAnnouncement announcement)
+    public synchronized String put(Id<Node> nodeId, DynamicAnnouncement announcement)
     {
         Preconditions.checkNotNull(nodeId, "nodeId is null");
         Preconditions.checkNotNull(announcement, "announcement is null");
@@ -61,7 +67,9 @@ public class InMemoryDynamicStore
         DateTime expiration = currentTime.get().plusMillis((int) maxAge.toMillis());
         Entry old = descriptors.put(nodeId, new Entry(expiration, services));
 
-        return old == null || old.getExpiration().isBefore(currentTime.get());
+        fireChange(old == null ? Collections.<Service>emptySet() : old.getServices(), services);
+
+        return Integer.toHexString(services.hashCode());
     }
 
     @Override
@@ -69,7 +77,63 @@ public class InMemoryDynamicStore
     {
         Preconditions.checkNotNull(nodeId, "nodeId is null");
 
-        return descriptors.remove(nodeId) != null;
+        Entry old = descriptors.remove(nodeId);
+        if (old == null) {
+            return false;
+        }
+
+        fireChange(old.getServices(), Collections.<Service>emptySet());
+        return true;
+    }
+
+    @Override
+    public synchronized Map<Id<Node>, String> putAll(Map<Id<Node>, DynamicAnnouncement> announcements)
+    {
+        ImmutableMap.Builder<Id<Node>, String> entityTags = ImmutableMap.builder();
+        for (Map.Entry<Id<Node>, DynamicAnnouncement> entry : announcements.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+            entityTags.put(entry.getKey(), getEntityTag(entry.getKey()));
+        }
+        return entityTags.build();
+    }
+
+    @Override
+    public synchronized Set<Id<Node>> renewAll(Map<Id<Node>, String> entityTags)
+    {
+        ImmutableSet.Builder<Id<Node>> failed = ImmutableSet.builder();
+        for (Map.Entry<Id<Node>, String> entry : entityTags.entrySet()) {
+            if (!renew(entry.getKey(), entry.getValue())) {
+                failed.add(entry.getKey());
+            }
+        }
+        return failed.build();
+    }
+
+    @Override
+    public synchronized String getEntityTag(Id<Node> nodeId)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+
+        Entry entry = descriptors.get(nodeId);
+        if (entry == null || entry.getExpiration().isBefore(currentTime.get())) {
+            return null;
+        }
+        return Integer.toHexString(entry.getServices().hashCode());
+    }
+
+    @Override
+    public synchronized boolean renew(Id<Node> nodeId, String entityTag)
+    {
+        Preconditions.checkNotNull(nodeId, "nodeId is null");
+        Preconditions.checkNotNull(entityTag, "entityTag is null");
+
+        if (!entityTag.equals(getEntityTag(nodeId))) {
+            return false;
+        }
+
+        DateTime expiration = currentTime.get().plusMillis((int) maxAge.toMillis());
+        descriptors.put(nodeId, new Entry(expiration, descriptors.get(nodeId).getServices()));
+        return true;
     }
 
     @Override
@@ -84,6 +148,12 @@ public class InMemoryDynamicStore
         return builder.build();
     }
 
+    @Override
+    public Iterable<Service> iterateAll()
+    {
+        return getAll();
+    }
+
     @Override
     public synchronized Set<Service> get(String type)
     {
@@ -101,6 +171,35 @@ public class InMemoryDynamicStore
         return ImmutableSet.copyOf(filter(getAll(), and(matchesType(type), matchesPool(pool))));
     }
 
+    @Override
+    public synchronized List<Set<Service>> get(List<ServiceQuery> queries)
+    {
+        ImmutableList.Builder<Set<Service>> results = ImmutableList.builder();
+        for (ServiceQuery query : queries) {
+            ImmutableSet.Builder<Service> services = ImmutableSet.builder();
+            for (Service service : get(query.getType())) {
+                if (query.matches(service)) {
+                    services.add(service);
+                }
+            }
+            results.add(services.build());
+        }
+        return results.build();
+    }
+
+    @Override
+    public void addListener(ServiceChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    private void fireChange(Set<Service> removed, Set<Service> added)
+    {
+        for (ServiceChangeListener listener : listeners) {
+            listener.servicesChanged(removed, added);
+        }
+    }
+
     private synchronized void removeExpired()
     {
         Iterator<Entry> iterator = descriptors.values().iterator();
@@ -111,6 +210,7 @@ public class InMemoryDynamicStore
 
             if (now.isAfter(entry.getExpiration())) {
                 iterator.remove();
+                fireChange(entry.getServices(), Collections.<Service>emptySet());
             }
         }
     }
@@ -16,11 +16,15 @@
 package com.proofpoint.discovery;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.google.common.base.Predicates.and;
 import static com.google.common.collect.Iterables.filter;
@@ -31,6 +35,7 @@ public class InMemoryStaticStore
     implements StaticStore
 {
     private final Map<Id<Service>, Service> services = Maps.newHashMap();
+    private final List<ServiceChangeListener> listeners = new CopyOnWriteArrayList<ServiceChangeListener>();
 
     @Override
     public synchronized void put(Service service)
@@ -38,13 +43,19 @@ public class InMemoryStaticStore
         Preconditions.checkNotNull(service, "service is null");
         Preconditions.checkArgument(service.getNodeId() == null, "service.nodeId should be null");
 
-        services.put(service.getId(), service);
+        Service old = services.put(service.getId(), service);
+
+        fireChange(old == null ? Collections.<Service>emptySet() : Collections.singleton(old), Collections.singleton(service));
     }
 
     @Override
     public synchronized void delete(Id<Service> id)
     {
-        services.remove(id);
+        Service old = services.remove(id);
+
+        if (old != null) {
+            fireChange(Collections.singleton(old), Collections.<Service>emptySet());
+        }
     }
 
     @Override
@@ -53,6 +64,12 @@ public class InMemoryStaticStore
         return ImmutableSet.copyOf(services.values());
     }
 
+    @Override
+    public Iterable<Service> iterateAll()
+    {
+        return getAll();
+    }
+
     @Override
     public synchronized Set<Service> get(String type)
     {
@@ -64,4 +81,33 @@ public class InMemoryStaticStore
     {
         return ImmutableSet.copyOf(filter(getAll(), and(matchesType(type), matchesPool(pool))));
     }
+
+    @Override
+    public synchronized List<Set<Service>> get(List<ServiceQuery> queries)
+    {
+        ImmutableList.Builder<Set<Service>> results = ImmutableList.builder();
+        for (ServiceQuery query : queries) {
+            ImmutableSet.Builder<Service> services = ImmutableSet.builder();
+            for (Service service : get(query.getType())) {
+                if (query.matches(service)) {
+                    services.add(service);
+                }
+            }
+            results.add(services.build());
+        }
+        return results.build();
+    }
+
+    @Override
+    public void addListener(ServiceChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    private void fireChange(Set<Service> removed, Set<Service> added)
+    {
+        for (ServiceChangeListener listener : listeners) {
+            listener.servicesChanged(removed, added);
+        }
+    }
 }
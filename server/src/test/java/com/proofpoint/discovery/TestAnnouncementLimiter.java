@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class TestAnnouncementLimiter
+{
+    private TestingTimeProvider timeProvider;
+    private AnnouncementLimiter limiter;
+
+    @BeforeMethod
+    public void setup()
+    {
+        timeProvider = new TestingTimeProvider();
+        limiter = new AnnouncementLimiter(new DiscoveryConfig()
+                .setAnnouncementNodeRate(1)
+                .setAnnouncementNodeBurst(2)
+                .setAnnouncementAddressRate(2)
+                .setAnnouncementAddressBurst(3)
+                .setMaxConcurrentAnnouncements(2),
+                timeProvider);
+    }
+
+    @Test
+    public void testThrottlesNode()
+    {
+        Id<Node> nodeId = Id.random();
+
+        assertAdmitted(limiter.acquire("10.0.0.1", ImmutableList.of(nodeId)));
+        assertAdmitted(limiter.acquire("10.0.0.2", ImmutableList.of(nodeId)));
+        assertRejected(limiter.acquire("10.0.0.3", ImmutableList.of(nodeId)), "1");
+        assertEquals(limiter.getThrottledNodes(), 1);
+
+        // other nodes are not affected
+        assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(Id.<Node>random())));
+
+        timeProvider.add(new Duration(1, TimeUnit.SECONDS));
+        assertAdmitted(limiter.acquire("10.0.0.4", ImmutableList.of(nodeId)));
+    }
+
+    @Test
+    public void testThrottlesAddress()
+    {
+        for (int i = 0; i < 3; i++) {
+            assertAdmitted(limiter.acquire("10.0.0.1", ImmutableList.of(Id.<Node>random())));
+        }
+        assertRejected(limiter.acquire("10.0.0.1", ImmutableList.of(Id.<Node>random())), "1");
+        assertEquals(limiter.getThrottledAddresses(), 1);
+
+        assertAdmitted(limiter.acquire("10.0.0.2", ImmutableList.of(Id.<Node>random())));
+    }
+
+    @Test
+    public void testLimitsConcurrency()
+    {
+        assertNull(limiter.acquire("10.0.0.1", ImmutableList.of(Id.<Node>random())));
+        assertNull(limiter.acquire("10.0.0.2", ImmutableList.of(Id.<Node>random())));
+        assertEquals(limiter.getActiveAnnouncements(), 2);
+
+        assertRejected(limiter.acquire("10.0.0.3", ImmutableList.of(Id.<Node>random())), "1");
+        assertEquals(limiter.getRejectedConcurrent(), 1);
+
+        limiter.release();
+        assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(Id.<Node>random())));
+    }
+
+    @Test
+    public void testThrottledBulkAnnouncementKeepsTokens()
+    {
+        Id<Node> first = Id.random();
+        Id<Node> second = Id.random();
+
+        // drain the second node's bucket
+        assertAdmitted(limiter.acquire("10.0.0.1", ImmutableList.of(second)));
+        assertAdmitted(limiter.acquire("10.0.0.2", ImmutableList.of(second)));
+
+        // the bulk announcement is turned away at the second node, after the address and first node were debited
+        assertRejected(limiter.acquire("10.0.0.3", ImmutableList.of(first, second)), "1");
+        assertEquals(limiter.getThrottledNodes(), 1);
+
+        // so neither lost a token: the address and the first node each still have their full burst
+        for (int i = 0; i < 2; i++) {
+            assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(first)));
+        }
+        assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(Id.<Node>random())));
+        assertRejected(limiter.acquire("10.0.0.3", ImmutableList.of(Id.<Node>random())), "1");
+    }
+
+    @Test
+    public void testConcurrencyRejectionKeepsTokens()
+    {
+        Id<Node> nodeId = Id.random();
+
+        assertNull(limiter.acquire("10.0.0.1", ImmutableList.of(Id.<Node>random())));
+        assertNull(limiter.acquire("10.0.0.2", ImmutableList.of(Id.<Node>random())));
+
+        for (int i = 0; i < 5; i++) {
+            assertRejected(limiter.acquire("10.0.0.3", ImmutableList.of(nodeId)), "1");
+        }
+        assertEquals(limiter.getRejectedConcurrent(), 5);
+        assertEquals(limiter.getThrottledNodes(), 0);
+        assertEquals(limiter.getThrottledAddresses(), 0);
+
+        limiter.release();
+        limiter.release();
+
+        // none of the rejected attempts spent the node's tokens
+        assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(nodeId)));
+        assertAdmitted(limiter.acquire("10.0.0.3", ImmutableList.of(nodeId)));
+    }
+
+    @Test
+    public void testZeroRateDisablesLimit()
+    {
+        limiter = new AnnouncementLimiter(new DiscoveryConfig().setAnnouncementNodeRate(0).setAnnouncementAddressRate(0), timeProvider);
+
+        Id<Node> nodeId = Id.random();
+        for (int i = 0; i < 100; i++) {
+            assertAdmitted(limiter.acquire("10.0.0.1", ImmutableList.of(nodeId)));
+        }
+        assertEquals(limiter.getTrackedNodes(), 0);
+        assertEquals(limiter.getTrackedAddresses(), 0);
+    }
+
+    private void assertAdmitted(Response rejection)
+    {
+        assertNull(rejection);
+        limiter.release();
+    }
+
+    private static void assertRejected(Response rejection, String retryAfter)
+    {
+        assertNotNull(rejection);
+        assertEquals(rejection.getStatus(), AnnouncementLimiter.TOO_MANY_REQUESTS);
+        assertEquals(rejection.getMetadata().getFirst(AnnouncementLimiter.RETRY_AFTER), retryAfter);
+    }
+}
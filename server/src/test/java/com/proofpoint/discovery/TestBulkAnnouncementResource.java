@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.store.RealTimeProvider;
+import com.proofpoint.discovery.store.SystemClock;
+import com.proofpoint.node.NodeInfo;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+
+import static com.google.common.collect.Iterables.concat;
+import static com.google.common.collect.Iterables.transform;
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestBulkAnnouncementResource
+{
+    private InMemoryDynamicStore store;
+    private BulkAnnouncementResource resource;
+    private HttpServletRequest request;
+
+    @BeforeMethod
+    public void setup()
+    {
+        store = new InMemoryDynamicStore(new DiscoveryConfig(), new RealTimeProvider());
+        request = Mockito.mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+
+        resource = new BulkAnnouncementResource(store, new NodeInfo("testing"), new AnnouncementLimiter(new DiscoveryConfig(), new SystemClock()));
+    }
+
+    @Test
+    public void testAnnounceAndRenew()
+    {
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> blueNodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "alpha", "/x/y/z", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222")))
+        );
+
+        Response response = resource.post(new BulkAnnouncement("testing", ImmutableMap.of(redNodeId.toString(), red, blueNodeId.toString(), blue), null), request);
+        assertEquals(response.getStatus(), Response.Status.OK.getStatusCode());
+
+        assertEqualsIgnoreOrder(store.getAll(), concat(
+                transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool())),
+                transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool()))));
+
+        BulkAnnouncementResult result = (BulkAnnouncementResult) response.getEntity();
+        assertEquals(result.getEntityTags().keySet(), ImmutableSet.of(redNodeId.toString(), blueNodeId.toString()));
+        assertTrue(result.getFailedRenewals().isEmpty());
+
+        Id<Node> unknownNodeId = Id.random();
+        response = resource.post(new BulkAnnouncement("testing", null, ImmutableMap.of(
+                redNodeId.toString(), result.getEntityTags().get(redNodeId.toString()),
+                blueNodeId.toString(), "stale",
+                unknownNodeId.toString(), "stale")), request);
+        assertEquals(response.getStatus(), Response.Status.OK.getStatusCode());
+
+        result = (BulkAnnouncementResult) response.getEntity();
+        assertTrue(result.getEntityTags().isEmpty());
+        assertEquals(result.getFailedRenewals(), ImmutableSet.of(blueNodeId.toString(), unknownNodeId.toString()));
+    }
+
+    @Test
+    public void testEnvironmentConflict()
+    {
+        DynamicAnnouncement announcement = new DynamicAnnouncement("production", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Response response = resource.post(new BulkAnnouncement("testing", ImmutableMap.of(Id.<Node>random().toString(), announcement), null), request);
+        assertEquals(response.getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
+
+        response = resource.post(new BulkAnnouncement("production", ImmutableMap.of(Id.<Node>random().toString(), announcement), null), request);
+        assertEquals(response.getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
+
+        assertTrue(store.getAll().isEmpty());
+    }
+
+    @Test
+    public void testInvalidNodeIdAppliesNothing()
+    {
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Response response = resource.post(new BulkAnnouncement("testing", ImmutableMap.of(Id.<Node>random().toString(), announcement, "not-a-node-id", announcement), null), request);
+        assertEquals(response.getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
+
+        assertTrue(store.getAll().isEmpty());
+    }
+}
@@ -20,6 +20,7 @@ import com.proofpoint.configuration.testing.ConfigAssertions;
 import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -32,7 +33,16 @@ public class TestDiscoveryConfig
     public void testDefaults()
     {
         ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(DiscoveryConfig.class)
-                                                        .setMaxAge(new Duration(30, TimeUnit.SECONDS)));
+                                                        .setMaxAge(new Duration(30, TimeUnit.SECONDS))
+                                                        .setMaxWatchWait(new Duration(5, TimeUnit.MINUTES))
+                                                        .setMaxChangeLogSize(10000)
+                                                        .setMaxSubscriptionBuffer(1000)
+                                                        .setSubscriptionWriteTimeout(new Duration(30, TimeUnit.SECONDS))
+                                                        .setAnnouncementNodeRate(1)
+                                                        .setAnnouncementNodeBurst(10)
+                                                        .setAnnouncementAddressRate(100)
+                                                        .setAnnouncementAddressBurst(1000)
+                                                        .setMaxConcurrentAnnouncements(64));
     }
 
     @Test
@@ -40,10 +50,28 @@ public class TestDiscoveryConfig
     {
         Map<String, String> properties = ImmutableMap.<String, String>builder()
                 .put("discovery.max-age", "1m")
+                .put("discovery.max-watch-wait", "10m")
+                .put("discovery.max-change-log-size", "500")
+                .put("discovery.max-subscription-buffer", "50")
+                .put("discovery.subscription-write-timeout", "5s")
+                .put("discovery.announcement.node-rate", "0.5")
+                .put("discovery.announcement.node-burst", "5")
+                .put("discovery.announcement.address-rate", "20")
+                .put("discovery.announcement.address-burst", "200")
+                .put("discovery.announcement.max-concurrent", "8")
                 .build();
 
         DiscoveryConfig expected = new DiscoveryConfig()
-                .setMaxAge(new Duration(1, TimeUnit.MINUTES));
+                .setMaxAge(new Duration(1, TimeUnit.MINUTES))
+                .setMaxWatchWait(new Duration(10, TimeUnit.MINUTES))
+                .setMaxChangeLogSize(500)
+                .setMaxSubscriptionBuffer(50)
+                .setSubscriptionWriteTimeout(new Duration(5, TimeUnit.SECONDS))
+                .setAnnouncementNodeRate(0.5)
+                .setAnnouncementNodeBurst(5)
+                .setAnnouncementAddressRate(20)
+                .setAnnouncementAddressBurst(200)
+                .setMaxConcurrentAnnouncements(8);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
@@ -56,4 +84,28 @@ public class TestDiscoveryConfig
 
         assertFailsValidation(config, "maxAge", "may not be null", NotNull.class);
     }
+
+    @Test
+    public void testValidatesNotNullMaxWatchWait()
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setMaxWatchWait(null);
+
+        assertFailsValidation(config, "maxWatchWait", "may not be null", NotNull.class);
+    }
+
+    @Test
+    public void testValidatesNotNullSubscriptionWriteTimeout()
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setSubscriptionWriteTimeout(null);
+
+        assertFailsValidation(config, "subscriptionWriteTimeout", "may not be null", NotNull.class);
+    }
+
+    @Test
+    public void testValidatesMinChangeLogSize()
+    {
+        DiscoveryConfig config = new DiscoveryConfig().setMaxChangeLogSize(0);
+
+        assertFailsValidation(config, "maxChangeLogSize", "must be greater than or equal to 1", Min.class);
+    }
 }
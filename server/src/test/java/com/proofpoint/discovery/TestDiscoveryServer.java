@@ -15,6 +15,8 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
@@ -22,7 +24,11 @@ import com.google.inject.Binder;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Module;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.Response;
 import com.proofpoint.configuration.ConfigurationFactory;
 import com.proofpoint.configuration.ConfigurationModule;
@@ -48,6 +54,8 @@ import com.proofpoint.json.JsonCodec;
 import com.proofpoint.json.JsonModule;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.node.NodeModule;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 import org.iq80.leveldb.util.FileUtils;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -55,12 +63,22 @@ import org.testng.annotations.Test;
 import org.weakref.jmx.guice.MBeanModule;
 
 import javax.management.MBeanServer;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
-
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE;
 import static com.proofpoint.json.JsonCodec.mapJsonCodec;
+import static com.proofpoint.testing.Assertions.assertNotEquals;
 import static javax.ws.rs.core.Response.Status;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
@@ -295,6 +313,275 @@ public class TestDiscoveryServer
         assertEquals(discoveryStats.getServiceQueryProcessingTime().getCount(), 2);
     }
 
+    @Test
+    public void testServiceQueryEntityTag()
+            throws Exception
+    {
+        Map<String, Object> announcement = ImmutableMap.<String, Object>builder()
+                .put("environment", "testing")
+                .put("type", "apple")
+                .put("pool", "red")
+                .put("location", "/a/b/c")
+                .put("properties", ImmutableMap.of("http", "http://host"))
+                .build();
+
+        AsyncHttpClient httpClient = new AsyncHttpClient();
+        Response response = httpClient.preparePost(server.getBaseUrl().resolve("/v1/announcement/static").toString())
+                .addHeader("Content-Type", "application/json")
+                .setBody(JsonCodec.jsonCodec(Object.class).toJson(announcement))
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.CREATED.getStatusCode());
+        String id = mapJsonCodec(String.class, Object.class)
+                .fromJson(response.getResponseBody())
+                .get("id")
+                .toString();
+
+        String serviceUri = server.getBaseUrl().resolve("/v1/service/apple/red").toString();
+        response = httpClient.prepareGet(serviceUri)
+                .execute()
+                .get();
+
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        assertTrue(response.getHeader("Cache-Control").contains("max-age=30"));
+        String entityTag = response.getHeader("ETag");
+        assertNotNull(entityTag);
+        assertTrue(entityTag.startsWith("W/"), "entity tag should be weak, as it is shared by the gzipped and identity responses");
+
+        // unchanged results are not sent again
+        response = httpClient.prepareGet(serviceUri)
+                .addHeader("If-None-Match", entityTag)
+                .execute()
+                .get();
+
+        assertEquals(response.getStatusCode(), Status.NOT_MODIFIED.getStatusCode());
+        assertEquals(response.getHeader("ETag"), entityTag);
+        assertEquals(discoveryStats.getServiceQuerySuccessCount(), 2);
+
+        response = httpClient.prepareDelete(server.getBaseUrl().resolve("/v1/announcement/static/" + id).toString())
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.NO_CONTENT.getStatusCode());
+
+        response = httpClient.prepareGet(serviceUri)
+                .addHeader("If-None-Match", entityTag)
+                .execute()
+                .get();
+
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        assertNotEquals(response.getHeader("ETag"), entityTag);
+    }
+
+    @Test
+    public void testWatchServiceQuery()
+            throws Exception
+    {
+        AsyncHttpClient httpClient = new AsyncHttpClient();
+        String serviceUri = server.getBaseUrl().resolve("/v1/service/apple/red").toString();
+
+        Response response = httpClient.prepareGet(serviceUri)
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        String index = response.getHeader(ServiceResource.INDEX_HEADER);
+        assertNotNull(index);
+
+        // unchanged results are answered when the wait ends
+        response = httpClient.prepareGet(serviceUri + "?index=" + index + "&wait=100ms")
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        assertEquals(response.getHeader(ServiceResource.INDEX_HEADER), index);
+
+        // a change answers the waiting request
+        Future<Response> watch = httpClient.prepareGet(serviceUri + "?index=" + index + "&wait=1m")
+                .execute();
+
+        Map<String, Object> announcement = ImmutableMap.<String, Object>builder()
+                .put("environment", "testing")
+                .put("type", "apple")
+                .put("pool", "red")
+                .put("location", "/a/b/c")
+                .put("properties", ImmutableMap.of("http", "http://host"))
+                .build();
+        response = httpClient.preparePost(server.getBaseUrl().resolve("/v1/announcement/static").toString())
+                .addHeader("Content-Type", "application/json")
+                .setBody(JsonCodec.jsonCodec(Object.class).toJson(announcement))
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.CREATED.getStatusCode());
+
+        response = watch.get(10, TimeUnit.SECONDS);
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        assertNotEquals(response.getHeader(ServiceResource.INDEX_HEADER), index);
+        assertTrue(response.getResponseBody().contains("http://host"));
+    }
+
+    @Test
+    public void testServiceSubscription()
+            throws Exception
+    {
+        AsyncHttpClient httpClient = new AsyncHttpClient();
+        EventStreamHandler events = new EventStreamHandler();
+        Future<Integer> subscription = httpClient.prepareGet(server.getBaseUrl().resolve("/v1/subscription?type=apple").toString())
+                .execute(events);
+
+        try {
+            String event = events.nextEvent();
+            assertTrue(event.startsWith("event: snapshot\ndata: "), event);
+            assertEquals(events.getStatusCode(), Status.OK.getStatusCode());
+            assertTrue(events.getContentType().startsWith(ServiceSubscriptionResource.EVENT_STREAM));
+
+            // recorded as the subscription is set up, which may race with the snapshot
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (discoveryStats.getServiceSubscriptionSuccessCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(discoveryStats.getServiceSubscriptionSuccessCount(), 1);
+            assertEquals(discoveryStats.getServiceSubscriptionFailureCount(), 0);
+
+            DiscoveryEvent monitorEvent = (DiscoveryEvent) inMemoryEventClient.getEvents().get(0);
+            assertEquals(monitorEvent.getType(), DiscoveryEventType.SERVICESUBSCRIPTION.name());
+            assertTrue(monitorEvent.getRequestUri().matches("http://.*/v1/subscription\\?type=apple"));
+
+            Map<String, Object> announcement = ImmutableMap.<String, Object>builder()
+                    .put("environment", "testing")
+                    .put("type", "apple")
+                    .put("pool", "red")
+                    .put("location", "/a/b/c")
+                    .put("properties", ImmutableMap.of("http", "http://host"))
+                    .build();
+            Response response = httpClient.preparePost(server.getBaseUrl().resolve("/v1/announcement/static").toString())
+                    .addHeader("Content-Type", "application/json")
+                    .setBody(JsonCodec.jsonCodec(Object.class).toJson(announcement))
+                    .execute()
+                    .get();
+            assertEquals(response.getStatusCode(), Status.CREATED.getStatusCode());
+
+            event = events.nextEvent();
+            assertTrue(event.startsWith("event: change\ndata: "), event);
+            assertTrue(event.contains("http://host"), event);
+        }
+        finally {
+            subscription.cancel(true);
+            httpClient.close();
+        }
+    }
+
+    @Test
+    public void testSmileAndGzip()
+            throws Exception
+    {
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        Map<String, Object> announcement = ImmutableMap.<String, Object>builder()
+                .put("environment", "testing")
+                .put("pool", "red")
+                .put("location", "/a/b/c")
+                .put("services", ImmutableList.of(ImmutableMap.of(
+                        "id", UUID.randomUUID().toString(),
+                        "type", "apple",
+                        "properties", ImmutableMap.of("http", "http://host"))))
+                .build();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(body);
+        smileMapper.writeValue(gzip, announcement);
+        gzip.close();
+
+        AsyncHttpClient httpClient = new AsyncHttpClient();
+        Response response = httpClient.preparePut(server.getBaseUrl().resolve("/v1/announcement/" + UUID.randomUUID()).toString())
+                .addHeader("Content-Type", APPLICATION_SMILE)
+                .addHeader("Content-Encoding", "gzip")
+                .setBody(body.toByteArray())
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.ACCEPTED.getStatusCode());
+
+        response = httpClient.prepareGet(server.getBaseUrl().resolve("/v1/service/apple/red").toString())
+                .addHeader("Accept", APPLICATION_SMILE)
+                .addHeader("Accept-Encoding", "gzip")
+                .execute()
+                .get();
+        assertEquals(response.getStatusCode(), Status.OK.getStatusCode());
+        assertEquals(response.getContentType(), APPLICATION_SMILE);
+        assertEquals(response.getHeader("Content-Encoding"), "gzip");
+
+        Map<String, Object> services = smileMapper.readValue(new GZIPInputStream(response.getResponseBodyAsStream()), Map.class);
+        assertEquals(services.get("environment"), "testing");
+        assertEquals(((List<?>) services.get("services")).size(), 1);
+    }
+
+    /**
+     * Collects the server-sent events of a streamed response, skipping keep alive comments.
+     */
+    private static class EventStreamHandler
+            implements AsyncHandler<Integer>
+    {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        private final StringBuilder buffer = new StringBuilder();
+        private volatile int statusCode;
+        private volatile String contentType;
+
+        public String nextEvent()
+                throws InterruptedException
+        {
+            String event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event, "no event received");
+            return event;
+        }
+
+        public int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        @Override
+        public void onThrowable(Throwable t)
+        {
+        }
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus responseStatus)
+        {
+            statusCode = responseStatus.getStatusCode();
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers)
+        {
+            contentType = headers.getHeaders().getFirstValue("Content-Type");
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart)
+        {
+            buffer.append(new String(bodyPart.getBodyPartBytes(), Charsets.UTF_8));
+            int end = buffer.indexOf("\n\n");
+            while (end >= 0) {
+                String event = buffer.substring(0, end);
+                buffer.delete(0, end + 2);
+                if (!event.startsWith(":")) {
+                    events.add(event);
+                }
+                end = buffer.indexOf("\n\n");
+            }
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public Integer onCompleted()
+        {
+            return statusCode;
+        }
+    }
+
     private ServiceSelector selectorFor(String type, String pool)
     {
         Map<String, String> clientProperties = ImmutableMap.<String, String>builder()
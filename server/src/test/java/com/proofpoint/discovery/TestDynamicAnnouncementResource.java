@@ -18,15 +18,21 @@ package com.proofpoint.discovery;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.store.RealTimeProvider;
+import com.proofpoint.discovery.store.SystemClock;
 import com.proofpoint.node.NodeInfo;
+import org.mockito.Mockito;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 import static com.google.common.collect.Iterables.transform;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
@@ -35,12 +41,16 @@ public class TestDynamicAnnouncementResource
 {
     private InMemoryDynamicStore store;
     private DynamicAnnouncementResource resource;
+    private HttpServletRequest request;
 
     @BeforeMethod
     public void setup()
     {
         store = new InMemoryDynamicStore(new DiscoveryConfig(), new RealTimeProvider());
-        resource = new DynamicAnnouncementResource(store, new NodeInfo("testing"));
+        request = Mockito.mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+
+        resource = new DynamicAnnouncementResource(store, new NodeInfo("testing"), new AnnouncementLimiter(new DiscoveryConfig(), new SystemClock()));
     }
 
     @Test
@@ -51,7 +61,7 @@ public class TestDynamicAnnouncementResource
         );
 
         Id<Node> nodeId = Id.random();
-        Response response = resource.put(announcement, nodeId);
+        Response response = resource.put(announcement, nodeId, request);
 
         assertNotNull(response);
         assertEquals(response.getStatus(), Response.Status.ACCEPTED.getStatusCode());
@@ -73,7 +83,7 @@ public class TestDynamicAnnouncementResource
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "new")))
         );
 
-        Response response = resource.put(announcement, nodeId);
+        Response response = resource.put(announcement, nodeId, request);
 
         assertNotNull(response);
         assertEquals(response.getStatus(), Response.Status.ACCEPTED.getStatusCode());
@@ -81,6 +91,24 @@ public class TestDynamicAnnouncementResource
         assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
     }
 
+    @Test
+    public void testRenew()
+    {
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111")))
+        );
+
+        Id<Node> nodeId = Id.random();
+        Response response = resource.put(announcement, nodeId, request);
+        EntityTag entityTag = (EntityTag) response.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertNotNull(entityTag);
+
+        assertEquals(resource.renew(nodeId, entityTag.toString(), request).getStatus(), Response.Status.NO_CONTENT.getStatusCode());
+        assertEquals(resource.renew(nodeId, "\"unknown\"", request).getStatus(), Response.Status.PRECONDITION_FAILED.getStatusCode());
+        assertEquals(resource.renew(Id.<Node>random(), entityTag.toString(), request).getStatus(), Response.Status.PRECONDITION_FAILED.getStatusCode());
+        assertEquals(resource.renew(nodeId, null, request).getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
+    }
+
     @Test
     public void testEnvironmentConflict()
     {
@@ -89,7 +117,7 @@ public class TestDynamicAnnouncementResource
         );
 
         Id<Node> nodeId = Id.random();
-        Response response = resource.put(announcement, nodeId);
+        Response response = resource.put(announcement, nodeId, request);
 
         assertNotNull(response);
         assertEquals(response.getStatus(), Response.Status.BAD_REQUEST.getStatusCode());
@@ -140,7 +168,7 @@ public class TestDynamicAnnouncementResource
         );
 
         Id<Node> nodeId = Id.random();
-        Response response = resource.put(announcement, nodeId);
+        Response response = resource.put(announcement, nodeId, request);
 
         assertNotNull(response);
         assertEquals(response.getStatus(), Response.Status.ACCEPTED.getStatusCode());
@@ -15,15 +15,16 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.proofpoint.units.Duration;
-import org.joda.time.DateTime;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
-import javax.inject.Provider;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Collections2.transform;
@@ -31,6 +32,9 @@ import static com.google.common.collect.Iterables.concat;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public abstract class TestDynamicStore
@@ -40,7 +44,7 @@ public abstract class TestDynamicStore
     protected TestingTimeProvider currentTime;
     protected DynamicStore store;
 
-    protected abstract DynamicStore initializeStore(DiscoveryConfig config, Provider<DateTime> timeProvider);
+    protected abstract DynamicStore initializeStore(DiscoveryConfig config, TestingTimeProvider timeProvider);
 
     @BeforeMethod
     public void setup()
@@ -64,7 +68,7 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
         ));
 
-        assertTrue(store.put(nodeId, blue));
+        assertNotNull(store.put(nodeId, blue));
 
         assertEquals(store.getAll(), transform(blue.getServiceAnnouncements(), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
     }
@@ -77,11 +81,38 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
         ));
 
-        assertTrue(store.put(nodeId, blue));
+        assertNotNull(store.put(nodeId, blue));
         advanceTimeBeyondMaxAge();
         assertEquals(store.getAll(), Collections.<Service>emptySet());
     }
 
+    @Test
+    public void testRenew()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        String entityTag = store.put(nodeId, blue);
+        assertNotNull(entityTag);
+        assertEquals(store.getEntityTag(nodeId), entityTag);
+
+        currentTime.add(new Duration(MAX_AGE.toMillis() / 2, TimeUnit.MILLISECONDS));
+        assertTrue(store.renew(nodeId, entityTag));
+        assertFalse(store.renew(nodeId, entityTag + "0"));
+        assertFalse(store.renew(Id.<Node>random(), entityTag));
+
+        // the renewal moved the expiration past the original one
+        currentTime.add(new Duration(MAX_AGE.toMillis() * 3 / 4, TimeUnit.MILLISECONDS));
+        assertEquals(store.getAll(), transform(blue.getServiceAnnouncements(), toServiceWith(nodeId, blue.getLocation(), blue.getPool())));
+        assertEquals(store.getEntityTag(nodeId), entityTag);
+
+        advanceTimeBeyondMaxAge();
+        assertNull(store.getEntityTag(nodeId));
+        assertFalse(store.renew(nodeId, entityTag));
+    }
+
     @Test
     public void testPutMultipleForSameNode()
     {
@@ -92,7 +123,7 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:3333"))
         ));
 
-        assertTrue(store.put(nodeId, announcement));
+        assertNotNull(store.put(nodeId, announcement));
 
         assertEqualsIgnoreOrder(store.getAll(), transform(announcement.getServiceAnnouncements(), toServiceWith(nodeId, announcement.getLocation(), announcement.getPool())));
     }
@@ -130,9 +161,9 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))
         ));
 
-        assertTrue(store.put(nodeId, oldAnnouncement));
+        assertNotNull(store.put(nodeId, oldAnnouncement));
         advanceTimeBeyondMaxAge();
-        assertTrue(store.put(nodeId, newAnnouncement));
+        assertNotNull(store.put(nodeId, newAnnouncement));
 
         assertEqualsIgnoreOrder(store.getAll(), transform(newAnnouncement.getServiceAnnouncements(), toServiceWith(nodeId, newAnnouncement.getLocation(), newAnnouncement.getPool())));
     }
@@ -155,9 +186,9 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:3333"))
         ));
 
-        assertTrue(store.put(blueNodeId, blue));
-        assertTrue(store.put(redNodeId, red));
-        assertTrue(store.put(greenNodeId, green));
+        assertNotNull(store.put(blueNodeId, blue));
+        assertNotNull(store.put(redNodeId, red));
+        assertNotNull(store.put(greenNodeId, green));
 
         assertEqualsIgnoreOrder(store.getAll(), concat(
                 transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())),
@@ -183,9 +214,9 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:3333"))
         ));
 
-        assertTrue(store.put(blueNodeId, blue));
-        assertTrue(store.put(redNodeId, red));
-        assertTrue(store.put(greenNodeId, green));
+        assertNotNull(store.put(blueNodeId, blue));
+        assertNotNull(store.put(redNodeId, red));
+        assertNotNull(store.put(greenNodeId, green));
 
         assertEqualsIgnoreOrder(store.get("storage"), concat(
                 transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())),
@@ -217,10 +248,10 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:4444"))
         ));
 
-        assertTrue(store.put(blueNodeId, blue));
-        assertTrue(store.put(redNodeId, red));
-        assertTrue(store.put(greenNodeId, green));
-        assertTrue(store.put(yellowNodeId, yellow));
+        assertNotNull(store.put(blueNodeId, blue));
+        assertNotNull(store.put(redNodeId, red));
+        assertNotNull(store.put(greenNodeId, green));
+        assertNotNull(store.put(yellowNodeId, yellow));
 
         assertEqualsIgnoreOrder(store.get("storage", "poolA"), concat(
                 transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())),
@@ -233,6 +264,56 @@ public abstract class TestDynamicStore
                 transform(yellow.getServiceAnnouncements(), toServiceWith(yellowNodeId, red.getLocation(), red.getPool()))));
     }
 
+    @Test
+    public void testGetByProperties()
+    {
+        Id<Node> blueNodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111", "zone", "a"))
+        ));
+
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolB", "/US/West/SC4/rack1/host1/vm1/slot2", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("https", "https://localhost:2222", "zone", "b"))
+        ));
+
+        Id<Node> greenNodeId = Id.random();
+        DynamicAnnouncement green = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot3", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:3333", "zone", "a"))
+        ));
+
+        assertNotNull(store.put(blueNodeId, blue));
+        assertNotNull(store.put(redNodeId, red));
+        assertNotNull(store.put(greenNodeId, green));
+
+        List<Set<Service>> results = store.get(ImmutableList.of(
+                new ServiceQuery("storage", null, ImmutableMap.of("zone", "a"), null),
+                new ServiceQuery("storage", null, null, ImmutableSet.of("http")),
+                new ServiceQuery("storage", "poolA", ImmutableMap.of("zone", "b"), null),
+                new ServiceQuery("storage", null, ImmutableMap.of("zone", "c"), null)));
+
+        assertEqualsIgnoreOrder(results.get(0), transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())));
+        assertEqualsIgnoreOrder(results.get(1), transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())));
+        assertTrue(results.get(2).isEmpty());
+        assertTrue(results.get(3).isEmpty());
+
+        // moving a service to another zone must take it out of the old zone's results
+        DynamicAnnouncement movedBlue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111", "zone", "b"))
+        ));
+        currentTime.increment();
+        store.put(blueNodeId, movedBlue);
+
+        results = store.get(ImmutableList.of(
+                new ServiceQuery("storage", null, ImmutableMap.of("zone", "a"), null),
+                new ServiceQuery("storage", null, ImmutableMap.of("zone", "b"), null)));
+
+        assertTrue(results.get(0).isEmpty());
+        assertEqualsIgnoreOrder(results.get(1), concat(
+                transform(movedBlue.getServiceAnnouncements(), toServiceWith(blueNodeId, movedBlue.getLocation(), movedBlue.getPool())),
+                transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool()))));
+    }
+
     @Test
     public void testDelete()
     {
@@ -247,8 +328,8 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:2222"))
         ));
 
-        assertTrue(store.put(blueNodeId, blue));
-        assertTrue(store.put(redNodeId, red));
+        assertNotNull(store.put(blueNodeId, blue));
+        assertNotNull(store.put(redNodeId, red));
 
         assertEqualsIgnoreOrder(store.getAll(), concat(
                 transform(blue.getServiceAnnouncements(), toServiceWith(blueNodeId, blue.getLocation(), blue.getPool())),
@@ -272,7 +353,7 @@ public abstract class TestDynamicStore
                 new DynamicServiceAnnouncement(Id.<Service>random(), "monitoring", ImmutableMap.of("http", "http://localhost:2222"))
         ));
 
-        assertTrue(store.put(redNodeId, red));
+        assertNotNull(store.put(redNodeId, red));
         assertEqualsIgnoreOrder(store.getAll(), transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool())));
 
         currentTime.increment();
@@ -281,7 +362,7 @@ public abstract class TestDynamicStore
 
         currentTime.increment();
 
-        assertTrue(store.put(redNodeId, red));
+        assertNotNull(store.put(redNodeId, red));
 
         assertEqualsIgnoreOrder(store.getAll(), transform(red.getServiceAnnouncements(), toServiceWith(redNodeId, red.getLocation(), red.getPool())));
     }
@@ -307,7 +388,6 @@ public abstract class TestDynamicStore
         assertEqualsIgnoreOrder(store.getAll(), builder.build());
     }
 
-
     private void advanceTimeBeyondMaxAge()
     {
         currentTime.add(new Duration(MAX_AGE.toMillis() * 2, TimeUnit.MILLISECONDS));
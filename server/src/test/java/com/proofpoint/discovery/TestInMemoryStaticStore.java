@@ -15,15 +15,11 @@
  */
 package com.proofpoint.discovery;
 
-import org.joda.time.DateTime;
-
-import javax.inject.Provider;
-
 public class TestInMemoryStaticStore
     extends TestStaticStore
 {
     @Override
-    protected StaticStore initializeStore(Provider<DateTime> timeProvider)
+    protected StaticStore initializeStore(TestingTimeProvider timeProvider)
     {
         return new InMemoryStaticStore();
     }
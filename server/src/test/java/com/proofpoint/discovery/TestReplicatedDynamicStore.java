@@ -15,28 +15,193 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.proofpoint.discovery.store.ConflictResolver;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
 import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.Lease;
 import com.proofpoint.discovery.store.RemoteStore;
 import com.proofpoint.discovery.store.StoreConfig;
-import org.joda.time.DateTime;
+import com.proofpoint.discovery.store.Version;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
 
-import javax.inject.Provider;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 public class TestReplicatedDynamicStore
     extends TestDynamicStore
 {
+    private final JsonCodec<List<Service>> codec = JsonCodec.listJsonCodec(Service.class);
+
+    private DistributedStore distributedStore;
+    private List<Entry> replicatedEntries;
+    private List<Lease> replicatedLeases;
+
     @Override
-    protected DynamicStore initializeStore(DiscoveryConfig config, Provider<DateTime> timeProvider)
+    protected DynamicStore initializeStore(DiscoveryConfig config, TestingTimeProvider timeProvider)
     {
-        RemoteStore dummy = new RemoteStore() {
-            public void put(Entry entry) { }
+        replicatedEntries = Lists.newArrayList();
+        replicatedLeases = Lists.newArrayList();
+        RemoteStore recording = new RemoteStore() {
+            public void put(Entry entry) { replicatedEntries.add(entry); }
+            public void putAll(Collection<Entry> entries) { replicatedEntries.addAll(entries); }
+            public void renew(Lease lease) { replicatedLeases.add(lease); }
+            public void renewAll(Collection<Lease> leases) { replicatedLeases.addAll(leases); }
         };
 
-        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver()), dummy, new StoreConfig(), timeProvider);
+        distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver()), recording, new StoreConfig(), timeProvider);
+
+        return new ReplicatedDynamicStore(distributedStore, config, timeProvider);
+    }
+
+    @Test
+    public void testReplicatedEntry()
+    {
+        Id<Node> nodeId = Id.random();
+        Service service = new Service(Id.<Service>random(), nodeId, "storage", "poolA", "/a/b/c", ImmutableMap.of("http", "http://localhost:1111"));
+
+        distributedStore.getLocalStore().put(entryOf(nodeId, ImmutableList.of(service), currentTime.get().getMillis()));
+
+        assertEquals(store.get("storage", "poolA"), ImmutableSet.of(service));
+        assertEquals(store.get("storage"), ImmutableSet.of(service));
+        assertTrue(store.get("storage", "poolB").isEmpty());
+    }
+
+    @Test
+    public void testStaleReplicatedEntryIsIgnored()
+    {
+        Id<Node> nodeId = Id.random();
+        Service oldService = new Service(Id.<Service>random(), nodeId, "storage", "poolA", "/a/b/c", ImmutableMap.of("http", "http://localhost:1111"));
+        Service newService = new Service(Id.<Service>random(), nodeId, "web", "poolA", "/a/b/c", ImmutableMap.of("http", "http://localhost:2222"));
+
+        long now = currentTime.get().getMillis();
+        distributedStore.getLocalStore().put(entryOf(nodeId, ImmutableList.of(newService), now));
+        distributedStore.getLocalStore().put(entryOf(nodeId, ImmutableList.of(oldService), now - 1));
+
+        assertEquals(store.getAll(), ImmutableSet.of(newService));
+        assertTrue(store.get("storage").isEmpty());
+    }
+
+    @Test
+    public void testGarbageCollectedEntryIsRemoved()
+    {
+        Id<Node> nodeId = Id.random();
+        Service service = new Service(Id.<Service>random(), nodeId, "storage", "poolA", "/a/b/c", ImmutableMap.of("http", "http://localhost:1111"));
+
+        Entry entry = entryOf(nodeId, ImmutableList.of(service), currentTime.get().getMillis());
+        distributedStore.getLocalStore().put(entry);
+        distributedStore.getLocalStore().delete(entry.getKey(), entry.getVersion());
+
+        assertTrue(store.getAll().isEmpty());
+        assertTrue(store.get("storage", "poolA").isEmpty());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemovedByTheStore()
+    {
+        final List<Service> removed = Lists.newArrayList();
+        store.addListener(new ServiceChangeListener()
+        {
+            @Override
+            public void servicesChanged(Collection<Service> removedServices, Collection<Service> addedServices)
+            {
+                removed.addAll(removedServices);
+            }
+        });
 
-        return new ReplicatedDynamicStore(distributedStore, config);
+        Id<Node> nodeId = Id.random();
+        Service service = new Service(Id.<Service>random(), nodeId, "storage", "poolA", "/a/b/c", ImmutableMap.of("http", "http://localhost:1111"));
+        distributedStore.getLocalStore().put(entryOf(nodeId, ImmutableList.of(service), currentTime.get().getMillis()));
+
+        // queries stop returning the entry at once, listeners hear of it when the store expires it
+        currentTime.add(new Duration(2, TimeUnit.MINUTES));
+        assertTrue(store.getAll().isEmpty());
+        assertTrue(removed.isEmpty());
+
+        distributedStore.expireDueEntries();
+        assertEquals(removed, ImmutableList.of(service));
+        assertNull(distributedStore.getLocalStore().get(nodeId.toString().getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testUnchangedAnnouncementReplicatesLease()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "poolA", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        store.put(nodeId, announcement);
+        currentTime.increment();
+        store.put(nodeId, announcement);
+
+        assertEquals(replicatedEntries.size(), 1);
+        assertEquals(replicatedLeases.size(), 1);
+
+        Lease lease = replicatedLeases.get(0);
+        assertEquals(lease.getVersion(), new Version(currentTime.get().getMillis()));
+        assertEquals(lease.getDigest(), Lease.digest(replicatedEntries.get(0).getValue()));
+
+        // a replica holding the announced value applies the lease, one holding another value does not
+        Entry renewed = lease.renew(replicatedEntries.get(0));
+        assertEquals(renewed.getValue(), replicatedEntries.get(0).getValue());
+        assertEquals(renewed.getTimestamp(), lease.getTimestamp());
+        assertNull(lease.renew(entryOf(nodeId, ImmutableList.<Service>of(), replicatedEntries.get(0).getTimestamp())));
+
+        DynamicAnnouncement changed = new DynamicAnnouncement("testing", "poolA", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+        currentTime.increment();
+        store.put(nodeId, changed);
+
+        assertEquals(replicatedEntries.size(), 2);
+        assertEquals(replicatedLeases.size(), 1);
+    }
+
+    @Test
+    public void testBulkAnnouncementReplicatesChangesOnly()
+    {
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolA", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        Id<Node> blueNodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/x/y/z", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+
+        Map<Id<Node>, String> entityTags = store.putAll(ImmutableMap.of(redNodeId, red, blueNodeId, blue));
+        assertEquals(entityTags, ImmutableMap.of(redNodeId, store.getEntityTag(redNodeId), blueNodeId, store.getEntityTag(blueNodeId)));
+        assertEquals(replicatedEntries.size(), 2);
+        assertTrue(replicatedLeases.isEmpty());
+
+        DynamicAnnouncement changedBlue = new DynamicAnnouncement("testing", "poolA", "/x/y/z", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("http", "http://localhost:3333"))
+        ));
+        currentTime.increment();
+        store.putAll(ImmutableMap.of(redNodeId, red, blueNodeId, changedBlue));
+
+        assertEquals(replicatedEntries.size(), 3);
+        assertEquals(replicatedLeases.size(), 1);
+        assertEquals(replicatedLeases.get(0).getKey(), redNodeId.toString().getBytes(UTF_8));
+    }
+
+    private Entry entryOf(Id<Node> nodeId, List<Service> services, long version)
+    {
+        return new Entry(nodeId.toString().getBytes(UTF_8), codec.toJson(services).getBytes(UTF_8), new Version(version), version, 60000L);
     }
 }
@@ -19,20 +19,23 @@ import com.proofpoint.discovery.store.ConflictResolver;
 import com.proofpoint.discovery.store.DistributedStore;
 import com.proofpoint.discovery.store.Entry;
 import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.Lease;
 import com.proofpoint.discovery.store.RemoteStore;
 import com.proofpoint.discovery.store.StoreConfig;
-import org.joda.time.DateTime;
 
-import javax.inject.Provider;
+import java.util.Collection;
 
 public class TestReplicatedStaticStore
     extends TestStaticStore
 {
     @Override
-    protected StaticStore initializeStore(Provider<DateTime> timeProvider)
+    protected StaticStore initializeStore(TestingTimeProvider timeProvider)
     {
         RemoteStore dummy = new RemoteStore() {
             public void put(Entry entry) { }
+            public void putAll(Collection<Entry> entries) { }
+            public void renew(Lease lease) { }
+            public void renewAll(Collection<Lease> leases) { }
         };
 
         DistributedStore distributedStore = new DistributedStore("static", new InMemoryStore(new ConflictResolver()), dummy, new StoreConfig(), timeProvider);
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.node.NodeInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestServiceChangeLog
+{
+    private InMemoryDynamicStore dynamicStore;
+    private InMemoryStaticStore staticStore;
+    private ServiceChangeLog changeLog;
+
+    @BeforeMethod
+    public void setup()
+    {
+        dynamicStore = new InMemoryDynamicStore(new DiscoveryConfig(), new TestingTimeProvider());
+        staticStore = new InMemoryStaticStore();
+        changeLog = new ServiceChangeLog(dynamicStore, staticStore, new NodeInfo("testing"), new DiscoveryConfig().setMaxChangeLogSize(3));
+    }
+
+    @Test
+    public void testAddedAndRemoved()
+    {
+        ServiceChanges initial = changeLog.getSnapshot(null, null);
+        assertTrue(initial.isSnapshot());
+        assertTrue(initial.getServices().isEmpty());
+
+        Service service = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(service);
+
+        ServiceChanges added = changeLog.getChangesSince(initial.getEpoch(), initial.getGeneration(), null, null);
+        assertFalse(added.isSnapshot());
+        assertEquals(added.getServices(), ImmutableSet.of(service));
+        assertTrue(added.getRemoved().isEmpty());
+
+        staticStore.delete(service.getId());
+
+        ServiceChanges removed = changeLog.getChangesSince(added.getEpoch(), added.getGeneration(), null, null);
+        assertFalse(removed.isSnapshot());
+        assertTrue(removed.getServices().isEmpty());
+        assertEquals(removed.getRemoved(), ImmutableSet.of(service.getId()));
+
+        // nothing new since the last generation
+        ServiceChanges none = changeLog.getChangesSince(removed.getEpoch(), removed.getGeneration(), null, null);
+        assertFalse(none.isSnapshot());
+        assertEquals(none.getGeneration(), removed.getGeneration());
+        assertTrue(none.getServices().isEmpty());
+        assertTrue(none.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testUpdateIsReportedAsChange()
+    {
+        Id<Node> nodeId = Id.random();
+        Id<Service> serviceId = Id.random();
+        dynamicStore.put(nodeId, new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(
+                new DynamicServiceAnnouncement(serviceId, "storage", ImmutableMap.of("key", "1")))));
+
+        ServiceChanges before = changeLog.getSnapshot(null, null);
+
+        DynamicServiceAnnouncement updated = new DynamicServiceAnnouncement(serviceId, "storage", ImmutableMap.of("key", "2"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(updated));
+        dynamicStore.put(nodeId, announcement);
+
+        ServiceChanges changes = changeLog.getChangesSince(before.getEpoch(), before.getGeneration(), null, null);
+        assertEquals(changes.getServices().size(), 1);
+        assertEquals(changes.getServices().iterator().next().getProperties(), ImmutableMap.of("key", "2"));
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testFiltersByTypeAndPool()
+    {
+        ServiceChanges initial = changeLog.getSnapshot(null, null);
+
+        Service storageAlpha = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        Service storageBeta = new Service(Id.<Service>random(), null, "storage", "beta", "/a/b/c", ImmutableMap.of("key", "2"));
+        Service web = new Service(Id.<Service>random(), null, "web", "alpha", "/a/b/c", ImmutableMap.of("key", "3"));
+        staticStore.put(storageAlpha);
+        staticStore.put(storageBeta);
+        staticStore.put(web);
+
+        assertEquals(changeLog.getChangesSince(initial.getEpoch(), initial.getGeneration(), "storage", null).getServices(), ImmutableSet.of(storageAlpha, storageBeta));
+        assertEquals(changeLog.getChangesSince(initial.getEpoch(), initial.getGeneration(), "storage", "alpha").getServices(), ImmutableSet.of(storageAlpha));
+        assertEquals(changeLog.getSnapshot("web", null).getServices(), ImmutableSet.of(web));
+    }
+
+    @Test
+    public void testFallsBackToSnapshot()
+    {
+        ServiceChanges initial = changeLog.getSnapshot(null, null);
+
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "1"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+        dynamicStore.put(nodeId, announcement);
+        for (int i = 0; i < 3; i++) {
+            staticStore.put(new Service(Id.<Service>random(), null, "web", "alpha", "/a/b/c", ImmutableMap.of("key", String.valueOf(i))));
+        }
+
+        // the change for the dynamic announcement has been dropped from the log
+        ServiceChanges changes = changeLog.getChangesSince(initial.getEpoch(), initial.getGeneration(), "storage", null);
+        assertTrue(changes.isSnapshot());
+        assertEquals(changes.getServices(), ImmutableSet.of(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()).apply(storage)));
+
+        // generations from another epoch are not trusted
+        assertTrue(changeLog.getChangesSince("unknown", changes.getGeneration(), "storage", null).isSnapshot());
+    }
+}
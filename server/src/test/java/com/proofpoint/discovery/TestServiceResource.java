@@ -15,6 +15,7 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.monitor.DiscoveryMonitor;
@@ -22,11 +23,13 @@ import com.proofpoint.discovery.monitor.DiscoveryStats;
 import com.proofpoint.event.client.InMemoryEventClient;
 import com.proofpoint.jaxrs.testing.MockUriInfo;
 import com.proofpoint.node.NodeInfo;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.mockito.Mockito;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.util.Collections;
 
@@ -51,7 +54,7 @@ public class TestServiceResource
         httpServletRequest = Mockito.mock(HttpServletRequest.class);
         when(httpServletRequest.getRemoteAddr()).thenReturn("127.0.0.1");
 
-        resource = new ServiceResource(dynamicStore, staticStore, new NodeInfo("testing"));
+        resource = new ServiceResource(dynamicStore, staticStore, new NodeInfo("testing"), new DiscoveryConfig(), new ObjectMapper());
     }
 
 /*    @Test
@@ -141,4 +144,50 @@ public class TestServiceResource
                 toServiceWith(blueNodeId, blue.getLocation(), blue.getPool()).apply(blueStorage))));
     }
     */
+
+    @Test
+    public void testBatchQuery()
+    {
+        Id<Node> redNodeId = Id.random();
+        DynamicServiceAnnouncement redStorage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "1"));
+        DynamicServiceAnnouncement redWeb = new DynamicServiceAnnouncement(Id.<Service>random(), "web", ImmutableMap.of("key", "2"));
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "alpha", "/a/b/c", of(redStorage, redWeb));
+
+        Id<Node> blueNodeId = Id.random();
+        DynamicServiceAnnouncement blueStorage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "4"));
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "beta", "/a/b/c", of(blueStorage));
+
+        dynamicStore.put(redNodeId, red);
+        dynamicStore.put(blueNodeId, blue);
+
+        Service staticWeb = new Service(Id.<Service>random(), null, "web", "beta", "/x/y/z", ImmutableMap.of("key", "5"));
+        staticStore.put(staticWeb);
+
+        Response response = resource.getServices(ImmutableList.of(
+                new ServiceQuery("storage", "beta"),
+                new ServiceQuery("web", null),
+                new ServiceQuery("unknown", null)));
+        assertEquals(response.getStatus(), 200);
+
+        ServiceQueryResults results = (ServiceQueryResults) response.getEntity();
+        assertEquals(results.getEnvironment(), "testing");
+        assertEquals(results.getResults().size(), 3);
+
+        assertEquals(results.getResults().get(0).getType(), "storage");
+        assertEquals(results.getResults().get(0).getPool(), "beta");
+        assertEquals(results.getResults().get(0).getServices(), ImmutableSet.of(toServiceWith(blueNodeId, blue.getLocation(), blue.getPool()).apply(blueStorage)));
+
+        assertEquals(results.getResults().get(1).getServices(), ImmutableSet.of(
+                toServiceWith(redNodeId, red.getLocation(), red.getPool()).apply(redWeb),
+                staticWeb));
+
+        assertEquals(results.getResults().get(2).getServices(), Collections.<Service>emptySet());
+    }
+
+    @Test
+    public void testBatchQueryRequiresType()
+    {
+        Response response = resource.getServices(ImmutableList.of(new ServiceQuery(null, "alpha")));
+        assertEquals(response.getStatus(), 400);
+    }
 }
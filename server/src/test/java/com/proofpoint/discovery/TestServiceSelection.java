@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.proofpoint.discovery.ServiceSelection.Strategy;
+import org.testng.annotations.Test;
+
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestServiceSelection
+{
+    @Test
+    public void testSmallResultIsReturnedWhole()
+    {
+        Set<Service> services = services("/US/West/SC4/rack1/host1", "/US/West/SC4/rack2/host1");
+        assertEquals(new ServiceSelection(Strategy.RANDOM, 5, null).select(services), services);
+        assertEquals(new ServiceSelection(Strategy.HASH, 2, "client").select(services), services);
+    }
+
+    @Test
+    public void testRandom()
+    {
+        Set<Service> services = services("/a/1", "/a/2", "/a/3", "/a/4", "/a/5");
+        Set<Service> selected = new ServiceSelection(Strategy.RANDOM, 2, null).select(services);
+        assertEquals(selected.size(), 2);
+        assertTrue(services.containsAll(selected));
+    }
+
+    @Test
+    public void testHashIsStable()
+    {
+        Set<Service> services = services("/a/1", "/a/2", "/a/3", "/a/4", "/a/5", "/a/6", "/a/7", "/a/8");
+        Set<Service> selected = new ServiceSelection(Strategy.HASH, 3, "client").select(services);
+        assertEquals(selected.size(), 3);
+        assertEquals(new ServiceSelection(Strategy.HASH, 3, "client").select(services), selected);
+
+        // removing a service that was not selected does not move the key
+        Service unselected = Sets.difference(services, selected).iterator().next();
+        assertEquals(new ServiceSelection(Strategy.HASH, 3, "client").select(Sets.difference(services, ImmutableSet.of(unselected))), selected);
+
+        // removing a selected service only replaces that service
+        Service removed = selected.iterator().next();
+        Set<Service> reselected = new ServiceSelection(Strategy.HASH, 3, "client").select(Sets.difference(services, ImmutableSet.of(removed)));
+        assertEquals(Sets.intersection(reselected, selected), Sets.difference(selected, ImmutableSet.of(removed)));
+    }
+
+    @Test
+    public void testLocation()
+    {
+        Service sameRack = service("/US/West/SC4/rack1/host2");
+        Service sameDatacenter = service("/US/West/SC4/rack2/host1");
+        Service otherDatacenter = service("/US/West/SC5/rack1/host1");
+        Service otherRegion = service("/US/East/NY1/rack1/host1");
+        Set<Service> services = ImmutableSet.of(otherRegion, otherDatacenter, sameDatacenter, sameRack);
+
+        assertEquals(new ServiceSelection(Strategy.LOCATION, 1, "/US/West/SC4/rack1/host1").select(services), ImmutableSet.of(sameRack));
+        assertEquals(new ServiceSelection(Strategy.LOCATION, 2, "/US/West/SC4/rack1/host1").select(services), ImmutableSet.of(sameRack, sameDatacenter));
+        assertEquals(new ServiceSelection(Strategy.LOCATION, 1, "/US/East").select(services), ImmutableSet.of(otherRegion));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testHashRequiresKey()
+    {
+        new ServiceSelection(Strategy.HASH, 1, null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testLimitMustBePositive()
+    {
+        new ServiceSelection(Strategy.RANDOM, 0, null);
+    }
+
+    private static Set<Service> services(String... locations)
+    {
+        ImmutableSet.Builder<Service> services = ImmutableSet.builder();
+        for (String location : locations) {
+            services.add(service(location));
+        }
+        return services.build();
+    }
+
+    private static Service service(String location)
+    {
+        return new Service(Id.<Service>random(), Id.<Node>random(), "storage", "alpha", location, ImmutableMap.of("http", "http://localhost"));
+    }
+}
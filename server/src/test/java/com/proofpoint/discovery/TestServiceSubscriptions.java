@@ -0,0 +1,320 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.ServiceSubscriptions.Subscription;
+import com.proofpoint.units.Duration;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestServiceSubscriptions
+{
+    private InMemoryDynamicStore dynamicStore;
+    private InMemoryStaticStore staticStore;
+    private QueuedExecutor writers;
+    private ServiceSubscriptions subscriptions;
+
+    @BeforeMethod
+    public void setup()
+    {
+        dynamicStore = new InMemoryDynamicStore(new DiscoveryConfig(), new TestingTimeProvider());
+        staticStore = new InMemoryStaticStore();
+        writers = new QueuedExecutor();
+        subscriptions = new ServiceSubscriptions("testing", dynamicStore, staticStore, new ObjectMapper(), 2, new Duration(1, TimeUnit.MINUTES), writers);
+    }
+
+    @Test
+    public void testSnapshotThenChanges()
+    {
+        Service existing = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(existing);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        subscriptions.subscribe("storage", null, out, new CloseFlag());
+        writers.runAll();
+
+        String events = new String(out.toByteArray(), Charsets.UTF_8);
+        assertTrue(events.startsWith("event: snapshot\ndata: "));
+        assertTrue(events.contains(existing.getId().toString()));
+        assertTrue(events.endsWith("\n\n"));
+
+        out.reset();
+        Service added = new Service(Id.<Service>random(), null, "storage", "beta", "/a/b/c", ImmutableMap.of("key", "2"));
+        staticStore.put(added);
+        staticStore.delete(existing.getId());
+        writers.runAll();
+
+        events = new String(out.toByteArray(), Charsets.UTF_8);
+        String[] parts = events.split("\n\n");
+        assertEquals(parts.length, 2);
+        assertTrue(parts[0].startsWith("event: change\ndata: "));
+        assertTrue(parts[0].contains(added.getId().toString()));
+        assertTrue(parts[1].contains("\"removed\":[\"" + existing.getId() + "\"]"));
+    }
+
+    @Test
+    public void testChangesDuringSnapshotFollowIt()
+    {
+        final Service changed = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        InMemoryStaticStore store = new InMemoryStaticStore()
+        {
+            private boolean changing = true;
+
+            @Override
+            public Set<Service> get(String type)
+            {
+                Set<Service> services = super.get(type);
+                if (changing) {
+                    changing = false;
+                    // changed by another thread after the snapshot is read, which must not wait for the subscriber
+                    final InMemoryStaticStore store = this;
+                    Thread writer = new Thread()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            store.put(changed);
+                        }
+                    };
+                    writer.start();
+                    try {
+                        writer.join(TimeUnit.SECONDS.toMillis(10));
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    assertFalse(writer.isAlive(), "change waited for the subscriber");
+                }
+                return services;
+            }
+        };
+        subscriptions = new ServiceSubscriptions("testing", dynamicStore, store, new ObjectMapper(), 2, new Duration(1, TimeUnit.MINUTES), writers);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        subscriptions.subscribe("storage", null, out, new CloseFlag());
+        writers.runAll();
+
+        String[] parts = new String(out.toByteArray(), Charsets.UTF_8).split("\n\n");
+        assertEquals(parts.length, 2);
+        assertTrue(parts[0].startsWith("event: snapshot\ndata: "));
+        assertFalse(parts[0].contains(changed.getId().toString()));
+        assertTrue(parts[1].startsWith("event: change\ndata: "));
+        assertTrue(parts[1].contains(changed.getId().toString()));
+    }
+
+    @Test
+    public void testFiltersChanges()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        subscriptions.subscribe("storage", "alpha", out, new CloseFlag());
+        writers.runAll();
+        out.reset();
+
+        staticStore.put(new Service(Id.<Service>random(), null, "web", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "beta", "/a/b/c", ImmutableMap.of("key", "2")));
+        writers.runAll();
+
+        assertEquals(out.size(), 0);
+    }
+
+    @Test
+    public void testDropsSlowSubscriber()
+    {
+        CloseFlag closed = new CloseFlag();
+        Subscription subscription = subscriptions.subscribe(null, null, new ByteArrayOutputStream(), closed);
+
+        // the snapshot and two changes overflow a buffer of two events
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "2")));
+        assertTrue(subscription.isClosed());
+        assertEquals(subscriptions.getDroppedSubscriptionCount(), 1);
+        assertEquals(subscriptions.getSubscriptionCount(), 0);
+
+        assertFalse(closed.isClosed());
+        writers.runAll();
+        assertTrue(closed.isClosed());
+    }
+
+    @Test
+    public void testDropsStalledSubscriber()
+            throws Exception
+    {
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        try {
+            subscriptions = new ServiceSubscriptions("testing", dynamicStore, staticStore, new ObjectMapper(), 2, new Duration(1, TimeUnit.MILLISECONDS), writerThread);
+
+            StalledOutputStream out = new StalledOutputStream();
+            final CountDownLatch closed = new CountDownLatch(1);
+            Subscription subscription = subscriptions.subscribe(null, null, out, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    closed.countDown();
+                }
+            });
+            assertTrue(out.writing.await(10, TimeUnit.SECONDS));
+            Thread.sleep(10);
+
+            subscriptions.dropStalledSubscriptions();
+            assertTrue(subscription.isClosed());
+            assertEquals(subscriptions.getDroppedSubscriptionCount(), 1);
+            assertEquals(subscriptions.getSubscriptionCount(), 0);
+
+            // the writer is released for other subscribers
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+            assertFalse(writerThread.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    return Thread.currentThread().isInterrupted();
+                }
+            }).get(10, TimeUnit.SECONDS));
+        }
+        finally {
+            writerThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClose()
+    {
+        CloseFlag closed = new CloseFlag();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Subscription subscription = subscriptions.subscribe("storage", null, out, closed);
+        writers.runAll();
+        assertEquals(subscriptions.getSubscriptionCount(), 1);
+
+        subscription.close();
+        writers.runAll();
+        assertTrue(closed.isClosed());
+        assertEquals(subscriptions.getSubscriptionCount(), 0);
+
+        out.reset();
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        writers.runAll();
+        assertEquals(out.size(), 0);
+    }
+
+    private static class StalledOutputStream
+            extends OutputStream
+    {
+        private final CountDownLatch writing = new CountDownLatch(1);
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            writing.countDown();
+            try {
+                // a client that never reads
+                new CountDownLatch(1).await();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static class CloseFlag
+            implements Runnable
+    {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public void run()
+        {
+            closed.set(true);
+        }
+
+        public boolean isClosed()
+        {
+            return closed.get();
+        }
+    }
+
+    private static class QueuedExecutor
+            extends AbstractExecutorService
+    {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void runAll()
+        {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        @Override
+        public void shutdown()
+        {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return new ArrayList<Runnable>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.proofpoint.discovery.ServicesResponseCache.CachedResponse;
+import com.proofpoint.discovery.store.ConflictResolver;
+import com.proofpoint.discovery.store.DistributedStore;
+import com.proofpoint.discovery.store.Entry;
+import com.proofpoint.discovery.store.InMemoryStore;
+import com.proofpoint.discovery.store.Lease;
+import com.proofpoint.discovery.store.RemoteStore;
+import com.proofpoint.discovery.store.StoreConfig;
+import com.proofpoint.units.Duration;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static com.proofpoint.discovery.store.SmileMapper.APPLICATION_SMILE_TYPE;
+import static com.proofpoint.testing.Assertions.assertNotEquals;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestServicesResponseCache
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private InMemoryDynamicStore dynamicStore;
+    private InMemoryStaticStore staticStore;
+    private ServicesResponseCache cache;
+
+    @BeforeMethod
+    public void setup()
+    {
+        dynamicStore = new InMemoryDynamicStore(new DiscoveryConfig(), new TestingTimeProvider());
+        staticStore = new InMemoryStaticStore();
+        cache = new ServicesResponseCache("testing", dynamicStore, staticStore, objectMapper, MoreExecutors.sameThreadExecutor());
+    }
+
+    @Test
+    public void testServesCachedResponse()
+            throws IOException
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "1"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+        dynamicStore.put(nodeId, announcement);
+
+        CachedResponse response = cache.get("storage", "alpha", APPLICATION_JSON_TYPE);
+        assertResponse(response, new Services("testing", ImmutableSet.of(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()).apply(storage))));
+
+        assertSame(cache.get("storage", "alpha", APPLICATION_JSON_TYPE), response);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        cache = new ServicesResponseCache("testing", dynamicStore, staticStore, objectMapper, MoreExecutors.sameThreadExecutor(), 2);
+
+        CachedResponse storage = cache.get("storage", APPLICATION_JSON_TYPE);
+        CachedResponse web = cache.get("web", APPLICATION_JSON_TYPE);
+        assertSame(cache.get("storage", APPLICATION_JSON_TYPE), storage);
+
+        // a full cache still takes new responses, dropping the one used longest ago
+        CachedResponse monitor = cache.get("monitor", APPLICATION_JSON_TYPE);
+        assertSame(cache.get("monitor", APPLICATION_JSON_TYPE), monitor);
+        assertSame(cache.get("storage", APPLICATION_JSON_TYPE), storage);
+        assertNotSame(cache.get("web", APPLICATION_JSON_TYPE), web);
+    }
+
+    @Test
+    public void testPrunedIndexesDoNotGoBack()
+    {
+        cache = new ServicesResponseCache("testing", dynamicStore, staticStore, objectMapper, MoreExecutors.sameThreadExecutor(), 2);
+
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        long index = cache.getIndex("storage", null);
+        assertTrue(index > 0);
+
+        // changes to many other types leave more indexes than the bound, so unused ones are dropped
+        for (int i = 0; i < 10; i++) {
+            staticStore.put(new Service(Id.<Service>random(), null, "type" + i, "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        }
+
+        assertTrue(cache.getIndex("storage", null) >= index);
+        assertTrue(cache.getIndex("unknown", null) >= index);
+    }
+
+    @Test
+    public void testInvalidatesOnDynamicChange()
+            throws IOException
+    {
+        CachedResponse empty = cache.get("storage", "alpha", APPLICATION_JSON_TYPE);
+        long allIndex = cache.getIndex();
+        CachedResponse other = cache.get("web", APPLICATION_JSON_TYPE);
+        assertResponse(empty, new Services("testing", Collections.<Service>emptySet()));
+
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "1"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+        dynamicStore.put(nodeId, announcement);
+
+        Services expected = new Services("testing", ImmutableSet.of(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()).apply(storage)));
+        assertResponse(cache.get("storage", "alpha", APPLICATION_JSON_TYPE), expected);
+        assertResponse(cache.get("storage", APPLICATION_JSON_TYPE), expected);
+        assertTrue(cache.getIndex() > allIndex);
+        assertSame(cache.get("web", APPLICATION_JSON_TYPE), other);
+
+        dynamicStore.delete(nodeId);
+
+        assertResponse(cache.get("storage", "alpha", APPLICATION_JSON_TYPE), new Services("testing", Collections.<Service>emptySet()));
+    }
+
+    @Test
+    public void testInvalidatesOnExpiry()
+            throws IOException
+    {
+        TestingTimeProvider timeProvider = new TestingTimeProvider();
+        DistributedStore distributedStore = new DistributedStore("dynamic", new InMemoryStore(new ConflictResolver()), new NullRemoteStore(), new StoreConfig(), timeProvider);
+        DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
+        ReplicatedDynamicStore replicatedStore = new ReplicatedDynamicStore(distributedStore, config, timeProvider);
+        cache = new ServicesResponseCache("testing", replicatedStore, staticStore, objectMapper, MoreExecutors.sameThreadExecutor());
+
+        Id<Node> nodeId = Id.random();
+        DynamicServiceAnnouncement storage = new DynamicServiceAnnouncement(Id.<Service>random(), "storage", ImmutableMap.of("key", "1"));
+        DynamicAnnouncement announcement = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(storage));
+        replicatedStore.put(nodeId, announcement);
+
+        CachedResponse response = cache.get("storage", APPLICATION_JSON_TYPE);
+        assertResponse(response, new Services("testing", ImmutableSet.of(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()).apply(storage))));
+
+        // the cache hears of the expired announcement when the store deletes it
+        timeProvider.add(new Duration(2, TimeUnit.MINUTES));
+        assertSame(cache.get("storage", APPLICATION_JSON_TYPE), response);
+        distributedStore.expireDueEntries();
+
+        assertResponse(cache.get("storage", APPLICATION_JSON_TYPE), new Services("testing", Collections.<Service>emptySet()));
+    }
+
+    @Test
+    public void testEntityTagFollowsContent()
+    {
+        CachedResponse empty = cache.get("storage", APPLICATION_JSON_TYPE);
+
+        Service service = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(service);
+
+        CachedResponse withService = cache.get("storage", APPLICATION_JSON_TYPE);
+        assertNotEquals(withService.getEntityTag(), empty.getEntityTag());
+
+        staticStore.delete(service.getId());
+
+        // same content after invalidation yields the same tag
+        CachedResponse emptyAgain = cache.get("storage", APPLICATION_JSON_TYPE);
+        assertNotSame(emptyAgain, empty);
+        assertEquals(emptyAgain.getEntityTag(), empty.getEntityTag());
+    }
+
+    @Test
+    public void testInvalidatesOnStaticChange()
+            throws IOException
+    {
+        assertResponse(cache.get("storage", APPLICATION_JSON_TYPE), new Services("testing", Collections.<Service>emptySet()));
+
+        Service service = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(service);
+
+        assertResponse(cache.get("storage", APPLICATION_JSON_TYPE), new Services("testing", ImmutableSet.of(service)));
+        assertResponse(cache.get("storage", "alpha", APPLICATION_JSON_TYPE), new Services("testing", ImmutableSet.of(service)));
+
+        staticStore.delete(service.getId());
+
+        assertResponse(cache.get("storage", APPLICATION_JSON_TYPE), new Services("testing", Collections.<Service>emptySet()));
+    }
+
+    @Test
+    public void testSmile()
+            throws IOException
+    {
+        Service service = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(service);
+
+        CachedResponse json = cache.get("storage", APPLICATION_JSON_TYPE);
+        CachedResponse smile = cache.get("storage", APPLICATION_SMILE_TYPE);
+        assertEquals(smile.getMediaType(), APPLICATION_SMILE_TYPE);
+        assertNotEquals(smile.getEntityTag(), json.getEntityTag());
+        assertEquals(smile.getIndex(), json.getIndex());
+        assertEquals(new ObjectMapper(new SmileFactory()).readValue(smile.getBody(), Object.class), objectMapper.readValue(json.getBody(), Object.class));
+        assertSame(cache.get("storage", APPLICATION_SMILE_TYPE), smile);
+
+        // both representations are invalidated
+        staticStore.delete(service.getId());
+        assertNotSame(cache.get("storage", APPLICATION_SMILE_TYPE), smile);
+    }
+
+    @Test
+    public void testWatchFiresOnAffectingChange()
+    {
+        CountingCallback storageWatcher = new CountingCallback();
+        CountingCallback webWatcher = new CountingCallback();
+        cache.watch("storage", "alpha", cache.get("storage", "alpha", APPLICATION_JSON_TYPE).getIndex(), storageWatcher);
+        cache.watch("web", null, cache.get("web", APPLICATION_JSON_TYPE).getIndex(), webWatcher);
+
+        Service service = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1"));
+        staticStore.put(service);
+
+        assertEquals(storageWatcher.getCount(), 1);
+        assertEquals(webWatcher.getCount(), 0);
+
+        // watches fire only once
+        staticStore.delete(service.getId());
+        assertEquals(storageWatcher.getCount(), 1);
+    }
+
+    @Test
+    public void testWatchFiresOutsideLock()
+    {
+        final List<Runnable> tasks = Lists.newArrayList();
+        ServicesResponseCache queueingCache = new ServicesResponseCache("testing", dynamicStore, staticStore, objectMapper, new Executor()
+        {
+            @Override
+            public void execute(Runnable task)
+            {
+                tasks.add(task);
+            }
+        });
+
+        CountingCallback watcher = new CountingCallback();
+        queueingCache.watch("storage", null, queueingCache.get("storage", APPLICATION_JSON_TYPE).getIndex(), watcher);
+
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+
+        // the change, reported under the store's lock, only queued the notification
+        assertEquals(watcher.getCount(), 0);
+        assertEquals(tasks.size(), 1);
+
+        tasks.get(0).run();
+        assertEquals(watcher.getCount(), 1);
+    }
+
+    @Test
+    public void testWatchAtStaleIndexFiresImmediately()
+    {
+        long index = cache.get("storage", APPLICATION_JSON_TYPE).getIndex();
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+
+        CountingCallback watcher = new CountingCallback();
+        cache.watch("storage", null, index, watcher);
+        assertEquals(watcher.getCount(), 1);
+
+        assertNotEquals(cache.get("storage", APPLICATION_JSON_TYPE).getIndex(), index);
+    }
+
+    @Test
+    public void testCancelledWatchDoesNotFire()
+    {
+        CountingCallback watcher = new CountingCallback();
+        cache.watch("storage", null, cache.get("storage", APPLICATION_JSON_TYPE).getIndex(), watcher).cancel();
+
+        staticStore.put(new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "1")));
+        assertEquals(watcher.getCount(), 0);
+    }
+
+    private void assertResponse(CachedResponse response, Services expected)
+            throws IOException
+    {
+        // Services can't be deserialized, so compare the json trees
+        assertEquals(objectMapper.readValue(response.getBody(), Object.class), objectMapper.readValue(objectMapper.writeValueAsBytes(expected), Object.class));
+    }
+
+    private static class NullRemoteStore
+            implements RemoteStore
+    {
+        @Override
+        public void put(Entry entry)
+        {
+        }
+
+        @Override
+        public void putAll(Collection<Entry> entries)
+        {
+        }
+
+        @Override
+        public void renew(Lease lease)
+        {
+        }
+
+        @Override
+        public void renewAll(Collection<Lease> leases)
+        {
+        }
+    }
+
+    private static class CountingCallback
+            implements Runnable
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void run()
+        {
+            count.incrementAndGet();
+        }
+
+        public int getCount()
+        {
+            return count.get();
+        }
+    }
+}
@@ -24,13 +24,18 @@ import com.proofpoint.discovery.monitor.DiscoveryStats;
 import com.proofpoint.event.client.InMemoryEventClient;
 import com.proofpoint.jaxrs.testing.MockUriInfo;
 import com.proofpoint.node.NodeInfo;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.mockito.Mockito;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -42,13 +47,14 @@ public class TestStaticAnnouncementResource
 {
     private InMemoryStaticStore store;
     private StaticAnnouncementResource resource;
+    private final ObjectMapper objectMapper = new ObjectMapper();
     private final UriInfo uriInfo = MockUriInfo.from("http://localhost:4111/v1/announcement/static");
 
     @BeforeMethod
     public void setup()
     {
         store = new InMemoryStaticStore();
-        resource = new StaticAnnouncementResource(store, new NodeInfo("testing"));
+        resource = new StaticAnnouncementResource(store, new NodeInfo("testing"), objectMapper);
     }
 
     @Test
@@ -116,6 +122,7 @@ public class TestStaticAnnouncementResource
 
     @Test
     public void testGet()
+            throws IOException
     {
         Service blue = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "valueBlue"));
         Service red = new Service(Id.<Service>random(), null, "storage", "alpha", "/a/b/c", ImmutableMap.of("key", "valueRed"));
@@ -123,9 +130,14 @@ public class TestStaticAnnouncementResource
         store.put(red);
         store.put(blue);
 
-        Services actual = resource.get();
-        Services expected = new Services("testing", ImmutableSet.of(red, blue));
+        Response response = resource.get(Mockito.mock(Request.class));
+        assertEquals(response.getStatus(), 200);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
 
-        assertEquals(actual, expected);
+        // Services can't be deserialized, so compare the json trees
+        Services expected = new Services("testing", ImmutableSet.of(red, blue));
+        assertEquals(objectMapper.readValue(out.toByteArray(), Object.class), objectMapper.readValue(objectMapper.writeValueAsBytes(expected), Object.class));
     }
 }
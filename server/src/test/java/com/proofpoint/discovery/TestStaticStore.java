@@ -17,11 +17,9 @@ package com.proofpoint.discovery;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import org.joda.time.DateTime;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
-import javax.inject.Provider;
 import java.util.Set;
 
 import static com.proofpoint.testing.Assertions.assertEqualsIgnoreOrder;
@@ -38,7 +36,7 @@ public abstract class TestStaticStore
     protected StaticStore store;
     protected TestingTimeProvider currentTime;
 
-    protected abstract StaticStore initializeStore(Provider<DateTime> timeProvider);
+    protected abstract StaticStore initializeStore(TestingTimeProvider timeProvider);
 
     @BeforeMethod
     public void setup()
@@ -15,6 +15,7 @@
  */
 package com.proofpoint.discovery;
 
+import com.proofpoint.discovery.store.Clock;
 import com.proofpoint.units.Duration;
 import org.joda.time.DateTime;
 
@@ -23,7 +24,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 class TestingTimeProvider
-        implements Provider<DateTime>
+        implements Provider<DateTime>, Clock
 {
     private final AtomicLong currentTime = new AtomicLong(System.currentTimeMillis());
 
@@ -47,4 +48,16 @@ class TestingTimeProvider
     {
         return new DateTime(currentTime.get());
     }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return currentTime.get();
+    }
+
+    @Override
+    public long coarseTimeMillis()
+    {
+        return currentTime.get();
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestBatchProcessor
+{
+    private final List<String> processed = new CopyOnWriteArrayList<String>();
+    private BatchProcessor<String> processor;
+
+    @AfterMethod
+    public void tearDown()
+    {
+        if (processor != null) {
+            processor.stop();
+        }
+    }
+
+    @Test
+    public void testCoalescesByKey()
+            throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(2);
+        processor = new BatchProcessor<String>("test", new RecordingHandler(latch), new FirstLetterCoalescer(), 10, 10);
+
+        processor.put("a1");
+        processor.put("b1");
+        processor.put("a3");
+        processor.put("a2");
+        processor.start();
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(processed, ImmutableList.of("a3", "b1"));
+        assertEquals(processor.getCoalescedEntries(), 2);
+        assertEquals(processor.getDroppedEntries(), 0);
+    }
+
+    @Test
+    public void testDuplicatesDoNotDropOtherKeys()
+            throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(2);
+        processor = new BatchProcessor<String>("test", new RecordingHandler(latch), new FirstLetterCoalescer(), 10, 2);
+
+        processor.putAll(ImmutableList.of("a1", "b1", "a2", "a3", "b2"));
+        processor.start();
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(processed, ImmutableList.of("a3", "b2"));
+        assertEquals(processor.getDroppedEntries(), 0);
+    }
+
+    @Test
+    public void testDropsOldestWithoutCoalescer()
+            throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(2);
+        processor = new BatchProcessor<String>("test", new RecordingHandler(latch), 10, 2);
+
+        processor.putAll(ImmutableList.of("a1", "a2", "a3"));
+        processor.start();
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(processed, ImmutableList.of("a2", "a3"));
+        assertEquals(processor.getDroppedEntries(), 1);
+    }
+
+    private class RecordingHandler
+            implements BatchProcessor.BatchHandler<String>
+    {
+        private final CountDownLatch latch;
+
+        private RecordingHandler(CountDownLatch latch)
+        {
+            this.latch = latch;
+        }
+
+        @Override
+        public void processBatch(Collection<String> entries)
+        {
+            for (String entry : entries) {
+                processed.add(entry);
+                latch.countDown();
+            }
+        }
+    }
+
+    private static class FirstLetterCoalescer
+            implements BatchProcessor.Coalescer<String>
+    {
+        @Override
+        public Object getKey(String entry)
+        {
+            return entry.charAt(0);
+        }
+
+        @Override
+        public String merge(String queued, String entry)
+        {
+            return entry.compareTo(queued) < 0 ? queued : entry;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Iterables.size;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestDistributedStore
+{
+    private final AtomicLong currentTime = new AtomicLong(1000000);
+    private InMemoryStore localStore;
+    private DistributedStore store;
+
+    // run once on the next read of the clock
+    private volatile Runnable onClockRead;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        Clock clock = new Clock()
+        {
+            @Override
+            public long currentTimeMillis()
+            {
+                Runnable action = onClockRead;
+                if (action != null) {
+                    onClockRead = null;
+                    action.run();
+                }
+                return currentTime.get();
+            }
+
+            @Override
+            public long coarseTimeMillis()
+            {
+                return currentTime.get();
+            }
+        };
+
+        RemoteStore dummy = new RemoteStore() {
+            public void put(Entry entry) { }
+            public void putAll(Collection<Entry> entries) { }
+            public void renew(Lease lease) { }
+            public void renewAll(Collection<Lease> leases) { }
+        };
+
+        localStore = new InMemoryStore(new ConflictResolver());
+        store = new DistributedStore("test", localStore, dummy, new StoreConfig().setTombstoneMaxAge(new Duration(1, TimeUnit.MINUTES)), clock);
+    }
+
+    @Test
+    public void testGarbageCollectionInSlices()
+    {
+        for (int i = 0; i < 10; i++) {
+            store.put(("live-" + i).getBytes(UTF_8), "value".getBytes(UTF_8));
+            store.put(("expiring-" + i).getBytes(UTF_8), "value".getBytes(UTF_8), new Duration(1, TimeUnit.SECONDS));
+        }
+        store.delete("deleted".getBytes(UTF_8));
+
+        currentTime.addAndGet(TimeUnit.MINUTES.toMillis(2));
+
+        assertFalse(store.collectGarbage(7, Long.MAX_VALUE));
+        assertEquals(store.getGcEntriesScanned(), 7);
+        assertFalse(store.collectGarbage(7, Long.MAX_VALUE));
+        assertTrue(store.collectGarbage(7, Long.MAX_VALUE));
+
+        assertEquals(store.getGcEntriesScanned(), 21);
+        assertEquals(store.getGcExpiredEntriesRemoved(), 10);
+        assertEquals(store.getGcTombstonesPurged(), 1);
+        assertEquals(store.getGcPasses(), 1);
+        assertEquals(store.getGcBacklog(), 0);
+        assertEquals(size(localStore.getAll()), 10);
+    }
+
+    @Test
+    public void testBacklogEstimate()
+    {
+        for (int i = 0; i < 10; i++) {
+            store.put(("live-" + i).getBytes(UTF_8), "value".getBytes(UTF_8));
+        }
+
+        store.removeExpiredEntries();
+        assertEquals(store.getGcPasses(), 1);
+
+        assertFalse(store.collectGarbage(4, Long.MAX_VALUE));
+        assertEquals(store.getGcBacklog(), 6);
+    }
+
+    @Test
+    public void testRenewDoesNotExtendReplacedValue()
+    {
+        final byte[] key = "blue".getBytes(UTF_8);
+        byte[] value = "value".getBytes(UTF_8);
+        store.put(key, value, new Duration(1, TimeUnit.MINUTES));
+
+        // a put that lands while the renewal is in progress wins, even though the lease is newer
+        onClockRead = new RacingPut(key, "other".getBytes(UTF_8));
+        assertFalse(store.renew(key, Lease.digest(value), new Duration(1, TimeUnit.MINUTES)));
+        assertEquals(store.get(key), "other".getBytes(UTF_8));
+    }
+
+    @Test
+    public void testRenewAllDoesNotExtendReplacedValue()
+    {
+        final byte[] key = "blue".getBytes(UTF_8);
+        byte[] value = "value".getBytes(UTF_8);
+        store.put(key, value, new Duration(1, TimeUnit.MINUTES));
+
+        onClockRead = new RacingPut(key, "other".getBytes(UTF_8));
+        Set<ByteBuffer> failed = store.renewAll(ImmutableMap.of(ByteBuffer.wrap(key), Lease.digest(value)), new Duration(1, TimeUnit.MINUTES));
+        assertEquals(failed, ImmutableSet.of(ByteBuffer.wrap(key)));
+        assertEquals(store.get(key), "other".getBytes(UTF_8));
+    }
+
+    @Test
+    public void testExpiresOnSchedule()
+    {
+        store.put("blue".getBytes(UTF_8), "value".getBytes(UTF_8), new Duration(1, TimeUnit.SECONDS));
+        assertEquals(store.getScheduledExpirations(), 1);
+
+        currentTime.addAndGet(TimeUnit.SECONDS.toMillis(2));
+        store.expireDueEntries();
+
+        assertEquals(store.getExpiredEntries(), 1);
+        assertEquals(store.getScheduledExpirations(), 0);
+        assertEquals(size(localStore.getAll()), 0);
+    }
+
+    private class RacingPut
+            implements Runnable
+    {
+        private final byte[] key;
+        private final byte[] value;
+
+        private RacingPut(byte[] key, byte[] value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public void run()
+        {
+            currentTime.incrementAndGet();
+            store.put(key, value, new Duration(1, TimeUnit.MINUTES));
+            currentTime.incrementAndGet();
+        }
+    }
+}
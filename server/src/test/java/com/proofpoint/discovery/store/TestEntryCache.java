@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestEntryCache
+{
+    @Test
+    public void testPutAndGet()
+    {
+        EntryCache cache = new EntryCache(100);
+        Entry entry = entryOf("blue", "apple");
+
+        cache.putIfUnmodified(entry, cache.getModifications());
+
+        assertEquals(cache.get(key("blue")), entry);
+        assertNull(cache.get(key("red")));
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        EntryCache cache = new EntryCache(100);
+        cache.putIfUnmodified(entryOf("blue", "apple"), cache.getModifications());
+
+        cache.invalidate(key("blue"));
+
+        assertNull(cache.get(key("blue")));
+    }
+
+    @Test
+    public void testIgnoresReadsOlderThanAWrite()
+    {
+        EntryCache cache = new EntryCache(100);
+
+        long modifications = cache.getModifications();
+        cache.invalidate(key("red"));
+        cache.putIfUnmodified(entryOf("blue", "apple"), modifications);
+
+        assertNull(cache.get(key("blue")));
+    }
+
+    @Test
+    public void testBounded()
+    {
+        EntryCache cache = new EntryCache(160);
+        for (int i = 0; i < 10000; i++) {
+            cache.putIfUnmodified(entryOf("key" + i, "value" + i), cache.getModifications());
+        }
+
+        assertTrue(cache.size() <= 160, "cache holds " + cache.size() + " entries");
+        assertEquals(cache.get(key("key9999")), entryOf("key9999", "value9999"));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        EntryCache cache = new EntryCache(0);
+        cache.putIfUnmodified(entryOf("blue", "apple"), cache.getModifications());
+
+        assertNull(cache.get(key("blue")));
+        assertEquals(cache.size(), 0);
+    }
+
+    private static Entry entryOf(String key, String value)
+    {
+        return new Entry(key.getBytes(UTF_8), value.getBytes(UTF_8), new Version(1), 0, null);
+    }
+
+    private static ByteBuffer key(String key)
+    {
+        return ByteBuffer.wrap(key.getBytes(UTF_8));
+    }
+}
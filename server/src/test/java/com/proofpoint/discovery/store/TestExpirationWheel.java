@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestExpirationWheel
+{
+    @Test
+    public void testHandsOutDueDeadlines()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(1), 1025);
+        wheel.schedule(key("red"), new Version(1), 1055);
+
+        assertTrue(wheel.advance(1025).isEmpty());
+
+        List<ExpirationWheel.Deadline> due = wheel.advance(1030);
+        assertEquals(due.size(), 1);
+        assertEquals(due.get(0).getKey(), key("blue"));
+        assertEquals(wheel.size(), 1);
+
+        due = wheel.advance(1060);
+        assertEquals(due.size(), 1);
+        assertEquals(due.get(0).getKey(), key("red"));
+        assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void testKeepsDeadlinesForLaterRevolutions()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(1), 1005 + 8 * 10);
+
+        assertTrue(wheel.advance(1080).isEmpty());
+        assertEquals(wheel.advance(1090).size(), 1);
+    }
+
+    @Test
+    public void testLongPauseHandsOutEverythingDue()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(1), 1015);
+        wheel.schedule(key("red"), new Version(1), 1500);
+        wheel.schedule(key("green"), new Version(1), 5000);
+
+        assertEquals(wheel.advance(2000).size(), 2);
+        assertEquals(wheel.size(), 1);
+    }
+
+    @Test
+    public void testRescheduleReplacesDeadline()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(1), 1015);
+        wheel.schedule(key("blue"), new Version(2), 1045);
+
+        assertTrue(wheel.advance(1030).isEmpty());
+
+        List<ExpirationWheel.Deadline> due = wheel.advance(1050);
+        assertEquals(due.size(), 1);
+        assertEquals(due.get(0).getVersion(), new Version(2));
+    }
+
+    @Test
+    public void testOlderVersionDoesNotReplaceDeadline()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(2), 1045);
+        wheel.schedule(key("blue"), new Version(1), 1015);
+
+        assertTrue(wheel.advance(1030).isEmpty());
+        assertEquals(wheel.advance(1050).size(), 1);
+    }
+
+    @Test
+    public void testCancel()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.schedule(key("blue"), new Version(2), 1015);
+
+        wheel.cancel(key("blue"), new Version(1));
+        assertEquals(wheel.size(), 1);
+
+        wheel.cancel(key("blue"), new Version(2));
+        assertEquals(wheel.size(), 0);
+        assertTrue(wheel.advance(1050).isEmpty());
+    }
+
+    @Test
+    public void testPastDeadlineGoesOutWithNextTick()
+    {
+        ExpirationWheel wheel = new ExpirationWheel(10, 8, 1000);
+        wheel.advance(1100);
+        wheel.schedule(key("blue"), new Version(1), 900);
+
+        assertEquals(wheel.advance(1110).size(), 1);
+    }
+
+    private static byte[] key(String key)
+    {
+        return key.getBytes(UTF_8);
+    }
+}
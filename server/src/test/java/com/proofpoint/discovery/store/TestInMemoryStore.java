@@ -16,9 +16,13 @@
 package com.proofpoint.discovery.store;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.UUID;
+
 import static com.google.common.base.Charsets.UTF_8;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
@@ -67,6 +71,19 @@ public class TestInMemoryStore
         assertEquals(store.get("blue".getBytes(Charsets.UTF_8)), entry);
     }
 
+    @Test
+    public void testPutAll()
+    {
+        Entry blue = entryOf("blue", "apple", 2, 0);
+        store.put(blue);
+
+        Entry red = entryOf("red", "cherry", 1, 0);
+        store.putAll(ImmutableList.of(entryOf("blue", "banana", 1, 0), red));
+
+        assertEquals(store.get("blue".getBytes(UTF_8)), blue);
+        assertEquals(store.get("red".getBytes(UTF_8)), red);
+    }
+
     @Test
     public void testResolvesConflict()
     {
@@ -79,6 +96,39 @@ public class TestInMemoryStore
         assertEquals(store.get("blue".getBytes(Charsets.UTF_8)), entry2);
     }
 
+    @Test
+    public void testUuidKeys()
+    {
+        String key = UUID.randomUUID().toString();
+        Entry entry2 = entryOf(key, "apple", 2, 0);
+        store.put(entry2);
+        store.put(entryOf(key, "banana", 1, 0));
+
+        assertEquals(store.get(key.getBytes(UTF_8)), entry2);
+
+        store.delete(key.getBytes(UTF_8), new Version(1));
+        assertEquals(store.get(key.getBytes(UTF_8)), entry2);
+
+        store.delete(key.getBytes(UTF_8), entry2.getVersion());
+        assertNull(store.get(key.getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testUuidAndOtherKeysAreDistinct()
+    {
+        String key = UUID.randomUUID().toString();
+        Entry lowerCase = entryOf(key, "apple", 1, 0);
+        Entry upperCase = entryOf(key.toUpperCase(), "banana", 1, 0);
+        Entry other = entryOf("blue", "cherry", 1, 0);
+        store.put(lowerCase);
+        store.put(upperCase);
+        store.put(other);
+
+        assertEquals(store.get(key.getBytes(UTF_8)), lowerCase);
+        assertEquals(store.get(key.toUpperCase().getBytes(UTF_8)), upperCase);
+        assertEquals(ImmutableSet.copyOf(store.getAll()), ImmutableSet.of(lowerCase, upperCase, other));
+    }
+
     private static Entry entryOf(String key, String value, long version, long timestamp)
     {
         return new Entry(key.getBytes(UTF_8), value.getBytes(Charsets.UTF_8), new Version(version), timestamp, null);
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
+import org.iq80.leveldb.util.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Set;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestLogStore
+{
+    private File tempDir;
+    private LogStoreConfig config;
+    private LogStore store;
+
+    @BeforeMethod
+    protected void setUp()
+            throws Exception
+    {
+        tempDir = Files.createTempDir();
+        config = new LogStoreConfig()
+                .setLocation(tempDir)
+                .setSegmentSize(new DataSize(4, Unit.KILOBYTE));
+        store = new LogStore(new ConflictResolver(), config);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        store.shutdown();
+        FileUtils.deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testPut()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        assertEquals(store.get(key("blue")), entry);
+        assertNull(store.get(key("red")));
+    }
+
+    @Test
+    public void testPutPreservesMetadata()
+    {
+        Entry tombstone = new Entry(key("blue"), null, new Version(3), 42, null);
+        Entry expiring = new Entry(key("red"), "apple".getBytes(UTF_8), new Version(4), 43, 1000L);
+        store.put(tombstone);
+        store.put(expiring);
+
+        assertEquals(store.get(key("blue")), tombstone);
+        assertEquals(store.get(key("red")), expiring);
+    }
+
+    @Test
+    public void testDelete()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        store.delete(key("blue"), entry.getVersion());
+
+        assertNull(store.get(key("blue")));
+        assertEquals(store.size(), 0);
+    }
+
+    @Test
+    public void testDeleteOlderVersion()
+    {
+        Entry entry = entryOf("blue", "apple", 5);
+        store.put(entry);
+
+        store.delete(key("blue"), new Version(2));
+
+        assertEquals(store.get(key("blue")), entry);
+    }
+
+    @Test
+    public void testPutAll()
+    {
+        Entry blue = entryOf("blue", "apple", 2);
+        store.put(blue);
+
+        Entry red = entryOf("red", "cherry", 1);
+        store.putAll(ImmutableList.of(entryOf("blue", "banana", 1), red));
+
+        assertEquals(store.get("blue".getBytes(UTF_8)), blue);
+        assertEquals(store.get("red".getBytes(UTF_8)), red);
+    }
+
+    @Test
+    public void testResolvesConflict()
+    {
+        Entry entry2 = entryOf("blue", "apple", 2);
+        store.put(entry2);
+        store.put(entryOf("blue", "banana", 1));
+
+        assertEquals(store.get(key("blue")), entry2);
+    }
+
+    @Test
+    public void testGetAllIsSnapshot()
+    {
+        Entry blue = entryOf("blue", "apple", 1);
+        Entry red = entryOf("red", "cherry", 1);
+        store.put(blue);
+        store.put(red);
+
+        Iterable<Entry> all = store.getAll();
+        assertEquals(ImmutableSet.copyOf(all), ImmutableSet.of(blue, red));
+
+        Entry green = entryOf("green", "lime", 1);
+        store.put(green);
+        store.delete(key("blue"), blue.getVersion());
+        assertEquals(ImmutableSet.copyOf(all), ImmutableSet.of(red, green));
+    }
+
+    @Test
+    public void testRecovers()
+            throws Exception
+    {
+        Set<Entry> expected = Sets.newHashSet();
+        for (int i = 0; i < 200; i++) {
+            Entry entry = entryOf("key" + i, "value" + i, 1);
+            store.put(entry);
+            expected.add(entry);
+        }
+        for (int i = 0; i < 200; i += 2) {
+            Entry entry = entryOf("key" + i, "updated" + i, 2);
+            store.put(entry);
+            expected.remove(entryOf("key" + i, "value" + i, 1));
+            expected.add(entry);
+        }
+        for (int i = 0; i < 200; i += 5) {
+            expected.remove(store.get(key("key" + i)));
+            store.delete(key("key" + i), new Version(2));
+        }
+        store.shutdown();
+
+        store = new LogStore(new ConflictResolver(), config);
+
+        assertEquals(ImmutableSet.copyOf(store.getAll()), expected);
+        assertEquals(store.size(), expected.size());
+    }
+
+    @Test
+    public void testRecoversFromTornRecord()
+            throws Exception
+    {
+        Entry blue = entryOf("blue", "apple", 1);
+        store.put(blue);
+        store.put(entryOf("red", "cherry", 1));
+        store.shutdown();
+
+        // corrupt the last byte of the second record
+        File segment = new File(tempDir, "segment-0.log");
+        int end = (41 + "blue".length() + "apple".length()) + (41 + "red".length() + "cherry".length());
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(end - 1);
+            file.write('X');
+        }
+        finally {
+            file.close();
+        }
+
+        store = new LogStore(new ConflictResolver(), config);
+        assertEquals(ImmutableSet.copyOf(store.getAll()), ImmutableSet.of(blue));
+
+        // the log continues where the intact records end
+        Entry green = entryOf("green", "lime", 1);
+        store.put(green);
+        store.shutdown();
+
+        store = new LogStore(new ConflictResolver(), config);
+        assertEquals(ImmutableSet.copyOf(store.getAll()), ImmutableSet.of(blue, green));
+    }
+
+    @Test
+    public void testCompaction()
+            throws Exception
+    {
+        for (int version = 1; version <= 20; version++) {
+            for (int i = 0; i < 20; i++) {
+                store.put(entryOf("key" + i, "value" + version, version));
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            store.delete(key("key" + i), new Version(20));
+        }
+
+        int segments = store.getSegmentCount();
+        assertTrue(segments > 5, "expected several segments, got " + segments);
+
+        store.compact();
+
+        assertTrue(store.getSegmentCount() < segments);
+        Set<Entry> expected = Sets.newHashSet();
+        for (int i = 10; i < 20; i++) {
+            expected.add(entryOf("key" + i, "value20", 20));
+        }
+        assertEquals(ImmutableSet.copyOf(store.getAll()), expected);
+
+        store.shutdown();
+        store = new LogStore(new ConflictResolver(), config);
+        assertEquals(ImmutableSet.copyOf(store.getAll()), expected);
+    }
+
+    private static Entry entryOf(String key, String value, long version)
+    {
+        return new Entry(key(key), value.getBytes(UTF_8), new Version(version), 0, null);
+    }
+
+    private static byte[] key(String key)
+    {
+        return key.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Sets;
+import com.proofpoint.units.DataSize;
+import com.proofpoint.units.DataSize.Unit;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Iterator;
+import java.util.Set;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestOffHeapStore
+{
+    private OffHeapStore store;
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        store = new OffHeapStore(new ConflictResolver(), new OffHeapStoreConfig().setSlabSize(new DataSize(4, Unit.KILOBYTE)));
+    }
+
+    @Test
+    public void testPut()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        assertEquals(store.get(key("blue")), entry);
+        assertNull(store.get(key("red")));
+    }
+
+    @Test
+    public void testPutPreservesMetadata()
+    {
+        Entry tombstone = new Entry(key("blue"), null, new Version(3), 42, null);
+        Entry expiring = new Entry(key("red"), "apple".getBytes(UTF_8), new Version(4), 43, 1000L);
+        store.put(tombstone);
+        store.put(expiring);
+
+        assertEquals(store.get(key("blue")), tombstone);
+        assertEquals(store.get(key("red")), expiring);
+    }
+
+    @Test
+    public void testDelete()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        store.delete(key("blue"), entry.getVersion());
+
+        assertNull(store.get(key("blue")));
+        assertEquals(store.size(), 0);
+    }
+
+    @Test
+    public void testDeleteOlderVersion()
+    {
+        Entry entry = entryOf("blue", "apple", 5);
+        store.put(entry);
+
+        store.delete(key("blue"), new Version(2));
+
+        assertEquals(store.get(key("blue")), entry);
+    }
+
+    @Test
+    public void testPutAll()
+    {
+        Entry blue = entryOf("blue", "apple", 2);
+        store.put(blue);
+
+        Entry red = entryOf("red", "cherry", 1);
+        store.putAll(ImmutableList.of(entryOf("blue", "banana", 1), red));
+
+        assertEquals(store.get("blue".getBytes(UTF_8)), blue);
+        assertEquals(store.get("red".getBytes(UTF_8)), red);
+    }
+
+    @Test
+    public void testResolvesConflict()
+    {
+        Entry entry2 = entryOf("blue", "apple", 2);
+        store.put(entry2);
+        store.put(entryOf("blue", "banana", 1));
+
+        assertEquals(store.get(key("blue")), entry2);
+
+        Entry entry3 = entryOf("blue", "cherry", 3);
+        store.put(entry3);
+
+        assertEquals(store.get(key("blue")), entry3);
+        assertEquals(store.size(), 1);
+    }
+
+    @Test
+    public void testGrowsIndex()
+    {
+        Set<Entry> entries = Sets.newHashSet();
+        for (int i = 0; i < 5000; i++) {
+            Entry entry = entryOf("key-" + i, "value-" + i, 1);
+            entries.add(entry);
+            store.put(entry);
+        }
+
+        assertEquals(store.size(), 5000);
+        for (Entry entry : entries) {
+            assertEquals(store.get(entry.getKey()), entry);
+        }
+        assertEquals(ImmutableSet.copyOf(store.getAll()), entries);
+    }
+
+    @Test
+    public void testIterationSurvivesResizeAndCompaction()
+    {
+        Set<Entry> entries = Sets.newHashSet();
+        for (int i = 0; i < 500; i++) {
+            Entry entry = entryOf("key-" + i, "value-" + i, 1);
+            entries.add(entry);
+            store.put(entry);
+        }
+
+        Set<Entry> iterated = Sets.newHashSet();
+        Iterator<Entry> iterator = store.getAll().iterator();
+        iterated.add(iterator.next());
+
+        // grow the index and supersede every record, so their slabs are compacted or released
+        for (int i = 0; i < 5000; i++) {
+            store.put(entryOf("other-" + i, "value", 1));
+        }
+        for (int i = 0; i < 500; i++) {
+            store.put(entryOf("key-" + i, "newer-" + i, 2));
+        }
+
+        Iterators.addAll(iterated, iterator);
+        assertEquals(iterated, entries);
+    }
+
+    @Test
+    public void testReclaimsSupersededRecords()
+    {
+        for (int version = 1; version <= 2000; version++) {
+            for (int i = 0; i < 10; i++) {
+                store.put(entryOf("key-" + i, "value-" + version, version));
+            }
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(store.get(key("key-" + i)), entryOf("key-" + i, "value-2000", 2000));
+        }
+
+        // ten live records fit in one slab, so beyond the one appended to at most one more is left
+        assertTrue(store.getAllocatedBytes() <= 8 * 1024 + 1024 * 8, "allocated " + store.getAllocatedBytes());
+    }
+
+    @Test
+    public void testDeletedSlotsAreReused()
+    {
+        for (int i = 0; i < 10000; i++) {
+            Entry entry = entryOf("key-" + i, "value", 1);
+            store.put(entry);
+            store.delete(entry.getKey(), entry.getVersion());
+        }
+
+        assertEquals(store.size(), 0);
+        assertTrue(ImmutableSet.copyOf(store.getAll()).isEmpty());
+    }
+
+    private static Entry entryOf(String key, String value, long version)
+    {
+        return new Entry(key(key), value.getBytes(UTF_8), new Version(version), 0, null);
+    }
+
+    private static byte[] key(String key)
+    {
+        return key.getBytes(UTF_8);
+    }
+}
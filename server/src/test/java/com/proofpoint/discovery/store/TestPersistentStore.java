@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.iq80.leveldb.util.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Iterator;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class TestPersistentStore
+{
+    private File tempDir;
+    private PersistentStore store;
+
+    @BeforeMethod
+    protected void setUp()
+            throws Exception
+    {
+        tempDir = Files.createTempDir();
+        store = new PersistentStore(new PersistentStoreConfig().setLocation(tempDir), new ConflictResolver());
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        FileUtils.deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testPut()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        assertEquals(store.get(key("blue")), entry);
+        assertNull(store.get(key("red")));
+    }
+
+    @Test
+    public void testDelete()
+    {
+        Entry entry = entryOf("blue", "apple", 1);
+        store.put(entry);
+
+        store.delete(key("blue"), entry.getVersion());
+
+        assertNull(store.get(key("blue")));
+    }
+
+    @Test
+    public void testDeleteOlderVersion()
+    {
+        Entry entry = entryOf("blue", "apple", 5);
+        store.put(entry);
+
+        store.delete(key("blue"), new Version(2));
+
+        assertEquals(store.get(key("blue")), entry);
+    }
+
+    @Test
+    public void testResolvesConflict()
+    {
+        Entry entry2 = entryOf("blue", "apple", 2);
+        store.put(entry2);
+        store.put(entryOf("blue", "banana", 1));
+
+        assertEquals(store.get(key("blue")), entry2);
+        assertEquals(store.getStaleEntries(), 1);
+        assertEquals(store.getCommittedWrites(), 1);
+    }
+
+    @Test
+    public void testPutAllResolvesConflicts()
+    {
+        Entry blue = entryOf("blue", "apple", 2);
+        store.put(blue);
+
+        Entry red = entryOf("red", "cherry", 3);
+        store.putAll(ImmutableList.of(entryOf("blue", "banana", 1), entryOf("red", "strawberry", 2), red, entryOf("red", "raspberry", 1)));
+
+        assertEquals(store.get(key("blue")), blue);
+        assertEquals(store.get(key("red")), red);
+        assertEquals(ImmutableSet.copyOf(store.getAll()), ImmutableSet.of(blue, red));
+    }
+
+    @Test
+    public void testAbandonedIteratorReleasesSnapshot()
+    {
+        for (int i = 0; i < 1000; i++) {
+            store.put(entryOf("key-" + i, "value", 1));
+        }
+
+        CloseableIterable<Entry> entries = store.getAll();
+        Iterator<Entry> iterator = entries.iterator();
+        assertEquals(store.getOpenSnapshots(), 0, "snapshot should not be taken until iteration starts");
+
+        iterator.next();
+        assertEquals(store.getOpenSnapshots(), 1);
+
+        entries.close();
+        assertEquals(store.getOpenSnapshots(), 0);
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testExhaustedIteratorReleasesSnapshot()
+    {
+        store.put(entryOf("blue", "apple", 1));
+
+        CloseableIterable<Entry> entries = store.getAll();
+        assertEquals(ImmutableList.copyOf(entries).size(), 1);
+        assertEquals(store.getOpenSnapshots(), 0);
+        entries.close();
+    }
+
+    private static Entry entryOf(String key, String value, long version)
+    {
+        return new Entry(key(key), value.getBytes(UTF_8), new Version(version), 0, null);
+    }
+
+    private static byte[] key(String key)
+    {
+        return key.getBytes(UTF_8);
+    }
+}
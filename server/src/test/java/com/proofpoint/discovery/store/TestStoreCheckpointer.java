@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.iq80.leveldb.util.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestStoreCheckpointer
+{
+    private File tempDir;
+    private StoreCheckpointConfig config;
+    private final AtomicLong currentTime = new AtomicLong(1000000);
+    private final Clock clock = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return currentTime.get();
+        }
+
+        @Override
+        public long coarseTimeMillis()
+        {
+            return currentTime.get();
+        }
+    };
+
+    @BeforeMethod
+    protected void setUp()
+    {
+        tempDir = Files.createTempDir();
+        config = new StoreCheckpointConfig().setLocation(new File(tempDir, "checkpoint"));
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        FileUtils.deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testRoundTrip()
+            throws Exception
+    {
+        Entry plain = new Entry(key("blue"), "apple".getBytes(UTF_8), new Version(1), 999000, null);
+        Entry expiring = new Entry(key("red"), "cherry".getBytes(UTF_8), new Version(2), 999500, 10000L);
+        Entry tombstone = new Entry(key("green"), null, new Version(3), 999900, null);
+
+        LocalStore store = new InMemoryStore(new ConflictResolver());
+        store.put(plain);
+        store.put(expiring);
+        store.put(tombstone);
+        StoreCheckpointer checkpointer = new StoreCheckpointer("test", store, config, clock);
+        checkpointer.checkpoint();
+        assertEquals(checkpointer.getLastCheckpointEntries(), 3);
+
+        LocalStore restored = new InMemoryStore(new ConflictResolver());
+        StoreCheckpointer loader = new StoreCheckpointer("test", restored, config, clock);
+        loader.load();
+
+        assertEquals(ImmutableSet.copyOf(restored.getAll()), ImmutableSet.of(plain, expiring, tombstone));
+        assertEquals(loader.getLoadedEntries(), 3);
+    }
+
+    @Test
+    public void testSkipsExpiredEntries()
+            throws Exception
+    {
+        Entry plain = new Entry(key("blue"), "apple".getBytes(UTF_8), new Version(1), 999000, null);
+        Entry expiring = new Entry(key("red"), "cherry".getBytes(UTF_8), new Version(2), 999500, 10000L);
+
+        LocalStore store = new InMemoryStore(new ConflictResolver());
+        store.put(plain);
+        store.put(expiring);
+        new StoreCheckpointer("test", store, config, clock).checkpoint();
+
+        currentTime.addAndGet(20000);
+
+        LocalStore restored = new InMemoryStore(new ConflictResolver());
+        new StoreCheckpointer("test", restored, config, clock).load();
+
+        assertEquals(ImmutableSet.copyOf(restored.getAll()), ImmutableSet.of(plain));
+    }
+
+    @Test
+    public void testIgnoresMissingCheckpoint()
+    {
+        LocalStore store = new InMemoryStore(new ConflictResolver());
+        new StoreCheckpointer("test", store, config, clock).load();
+
+        assertTrue(ImmutableSet.copyOf(store.getAll()).isEmpty());
+    }
+
+    @Test
+    public void testIgnoresCorruptCheckpoint()
+            throws Exception
+    {
+        LocalStore store = new InMemoryStore(new ConflictResolver());
+        store.put(new Entry(key("blue"), "apple".getBytes(UTF_8), new Version(1), 999000, null));
+        new StoreCheckpointer("test", store, config, clock).checkpoint();
+
+        RandomAccessFile file = new RandomAccessFile(config.getLocation(), "rw");
+        try {
+            file.seek(12);
+            file.write('X');
+        }
+        finally {
+            file.close();
+        }
+
+        LocalStore restored = new InMemoryStore(new ConflictResolver());
+        new StoreCheckpointer("test", restored, config, clock).load();
+
+        assertTrue(ImmutableSet.copyOf(restored.getAll()).isEmpty());
+    }
+
+    @Test
+    public void testShutdownWritesCheckpoint()
+    {
+        LocalStore store = new InMemoryStore(new ConflictResolver());
+        Entry entry = new Entry(key("blue"), "apple".getBytes(UTF_8), new Version(1), 999000, null);
+        store.put(entry);
+
+        StoreCheckpointer checkpointer = new StoreCheckpointer("test", store, config, clock);
+        checkpointer.start();
+        checkpointer.shutdown();
+
+        LocalStore restored = new InMemoryStore(new ConflictResolver());
+        new StoreCheckpointer("test", restored, config, clock).load();
+
+        assertEquals(ImmutableSet.copyOf(restored.getAll()), ImmutableSet.of(entry));
+    }
+
+    private static byte[] key(String key)
+    {
+        return key.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestUuidKeyMap
+{
+    @Test
+    public void testParse()
+    {
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.randomUUID();
+            byte[] key = uuid.toString().getBytes(UTF_8);
+
+            assertTrue(UuidKeyMap.isUuid(key));
+            assertEquals(UuidKeyMap.mostSignificantBits(key), uuid.getMostSignificantBits());
+            assertEquals(UuidKeyMap.leastSignificantBits(key), uuid.getLeastSignificantBits());
+        }
+    }
+
+    @Test
+    public void testRejectsNonCanonicalKeys()
+    {
+        String uuid = "2cfbfb74-a3a0-4b2c-bd4e-8ef0e3e9c0f1";
+        assertTrue(UuidKeyMap.isUuid(uuid.getBytes(UTF_8)));
+
+        assertFalse(UuidKeyMap.isUuid(uuid.toUpperCase().getBytes(UTF_8)));
+        assertFalse(UuidKeyMap.isUuid(uuid.replace('-', '_').getBytes(UTF_8)));
+        assertFalse(UuidKeyMap.isUuid(uuid.substring(1).getBytes(UTF_8)));
+        assertFalse(UuidKeyMap.isUuid((uuid + "0").getBytes(UTF_8)));
+        assertFalse(UuidKeyMap.isUuid("2cfbfb74-a3a0-4b2c-bd4e-8ef0e3e9c0fg".getBytes(UTF_8)));
+        assertFalse(UuidKeyMap.isUuid("blue".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testReplace()
+    {
+        UuidKeyMap<String> map = new UuidKeyMap<String>();
+
+        assertTrue(map.replace(1, 2, null, "apple"));
+        assertFalse(map.replace(1, 2, null, "banana"));
+        assertFalse(map.replace(1, 2, "banana", "cherry"));
+        assertEquals(map.get(1, 2), "apple");
+        assertNull(map.get(2, 1));
+
+        assertTrue(map.replace(1, 2, "apple", "banana"));
+        assertEquals(map.get(1, 2), "banana");
+        assertEquals(map.size(), 1);
+
+        assertTrue(map.replace(1, 2, "banana", null));
+        assertNull(map.get(1, 2));
+        assertEquals(map.size(), 0);
+
+        assertTrue(map.replace(1, 2, null, "cherry"));
+        assertEquals(map.get(1, 2), "cherry");
+    }
+
+    @Test
+    public void testGrowsAndReusesRemovedSlots()
+    {
+        UuidKeyMap<String> map = new UuidKeyMap<String>();
+
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(map.replace(i, -i, null, "value" + i));
+            expected.add("value" + i);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(map.replace(i, -i, "value" + i, null));
+            expected.remove("value" + i);
+        }
+        for (int i = 10000; i < 20000; i++) {
+            assertTrue(map.replace(i, -i, null, "value" + i));
+            expected.add("value" + i);
+        }
+
+        assertEquals(map.size(), expected.size());
+        assertEquals(ImmutableSet.copyOf(map.values()), expected);
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(map.get(i, -i), i < 10000 && i % 2 == 0 ? null : "value" + i);
+        }
+    }
+}